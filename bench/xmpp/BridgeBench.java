@@ -0,0 +1,92 @@
+package xmpp;
+
+import static io.netty.util.CharsetUtil.UTF_8;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.ReferenceCountUtil;
+
+/** A stanza each way through the whole of an XMPPClient, rather than the
+ * codecs on their own as in {@link FramingBench}. Up is the server's
+ * stanza going through the decoder, the codecs and onMessage out to the
+ * websocket as a frame; down is sendMessage taking a frame's content through
+ * the codecs to the server. Both ends are EmbeddedChannels, so no sockets.
+ *
+ * `ant bench -Dbench.args="BridgeBench -prof gc"` */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BridgeBench {
+	private EmbeddedChannel ws, upstream;
+	private Bridge.XMPPClient client;
+	private ByteBuf message, presence;
+
+	@Setup
+	public void setup() {
+		ws = new EmbeddedChannel();
+		upstream = new EmbeddedChannel();
+		client = new Bridge.XMPPClient(ws, "localhost");
+		client.initChannel(upstream);
+		client.connected(ws.eventLoop().newSucceededFuture(upstream));
+		upstream.writeInbound(FramingBench.buf(FramingBench.HEADER));
+		drain(ws);
+		message = FramingBench.buf(FramingBench.MESSAGE);
+		presence = FramingBench.buf("<presence from='juliet@example.com/balcony'"
+			+ " to='romeo@example.net'><show>away</show></presence>");
+	}
+
+	@TearDown
+	public void tearDown() {
+		ws.finishAndReleaseAll();
+		upstream.finishAndReleaseAll();
+		message.release();
+		presence.release();
+	}
+
+	static int drain(EmbeddedChannel ch) {
+		int n = 0;
+		for (Object o; (o = ch.readOutbound())!=null; n++) ReferenceCountUtil.release(o);
+		return n;
+	}
+
+	/** Server to websocket */
+	@Benchmark
+	public int up() {
+		upstream.pipeline().fireChannelRead(message.retainedDuplicate());
+		upstream.pipeline().fireChannelReadComplete();
+		return drain(ws);
+	}
+
+	/** Websocket to server */
+	@Benchmark
+	public int down() {
+		client.sendMessage(presence.retainedDuplicate());
+		client.flush();
+		return drain(upstream);
+	}
+
+	/** The old way down, a String from the frame copied back into a buffer */
+	@Benchmark
+	public int downString() {
+		client.sendMessage(presence.toString(UTF_8));
+		client.flush();
+		return drain(upstream);
+	}
+}
@@ -0,0 +1,123 @@
+package xmpp;
+
+import static io.netty.util.CharsetUtil.UTF_8;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+/** One stanza through the {@link XmlStreamHeadDecoder}, from a few hundred
+ * bytes up to a megabyte (a vCard with a photo in it, say), either in one
+ * piece or cut up the way TCP would hand it over. The fragment size is the
+ * size of each read, 0 being all of it at once, 1460 one ethernet segment
+ * and 64 something nasty.
+ *
+ * The content is either plain nested elements, or the same with a lot of
+ * CDATA or comments in it, which take the scanner down its slower paths.
+ *
+ * Reads go straight into the pipeline rather than through writeInbound, so
+ * it's only the decoder being measured. Score is per stanza.
+ *
+ * `ant bench -Dbench.args="DecoderBench -prof gc"` */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecoderBench {
+	@Param({"100", "1024", "16384", "131072", "1048576"})
+	public int size;
+
+	@Param({"0", "1460", "64"})
+	public int fragment;
+
+	@Param({"plain", "cdata", "comments"})
+	public String content;
+
+	private EmbeddedChannel ch;
+	private ChannelPipeline pipeline;
+	private ByteBuf[] reads;
+	private int decoded;
+
+	@Setup
+	public void setup() {
+		XmlStreamHeadDecoder decoder = new XmlStreamHeadDecoder();
+		decoder.started = true;
+		ch = new EmbeddedChannel(decoder, new ChannelInboundHandlerAdapter() {
+			@Override
+			public void channelRead(ChannelHandlerContext ctx, Object msg) {
+				decoded += ((ByteBuf)msg).readableBytes();
+				((ByteBuf)msg).release();
+			}
+		});
+		pipeline = ch.pipeline();
+		byte[] stanza = stanza(size, content);
+		int n = fragment>0 ? (stanza.length + fragment - 1)/fragment : 1;
+		int step = fragment>0 ? fragment : stanza.length;
+		reads = new ByteBuf[n];
+		for (int i = 0; i<n; i++) {
+			int from = i*step, len = Math.min(step, stanza.length - from);
+			reads[i] = PooledByteBufAllocator.DEFAULT.directBuffer(len)
+				.writeBytes(stanza, from, len);
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		ch.finishAndReleaseAll();
+		for (ByteBuf b: reads) b.release();
+	}
+
+	@Benchmark
+	public int decode() {
+		decoded = 0;
+		for (ByteBuf b: reads) {
+			pipeline.fireChannelRead(b.retainedDuplicate());
+			pipeline.fireChannelReadComplete();
+		}
+		if (decoded==0) throw new IllegalStateException("nothing decoded");
+		return decoded;
+	}
+
+	/** A message of about the given size. The filler is made of items with
+	 * attributes, with a CDATA section or a comment every so often if
+	 * asked for, and the odd > and / in them to keep the scanner honest */
+	static byte[] stanza(int size, String content) {
+		StringBuilder sb = new StringBuilder(size + 128)
+			.append("<message from='juliet@example.com/balcony' to='romeo@example.net'")
+			.append(" type='chat' id='ktx72v49'><body>");
+		String end = "</body></message>";
+		for (int i = 0; sb.length() + end.length()<size; i++) {
+			switch (content) {
+			case "cdata":
+				sb.append("<![CDATA[if (a<b && c>d) </item> <x/> ]]>");
+				break;
+			case "comments":
+				sb.append("<!-- <item id='").append(i).append("'/> -> - > -->");
+				break;
+			default:
+			}
+			sb.append("<item id='").append(i).append("' a='x/y'>text</item>");
+		}
+		return sb.append(end).toString().getBytes(UTF_8);
+	}
+}
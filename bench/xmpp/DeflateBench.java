@@ -0,0 +1,137 @@
+package xmpp;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtensionData;
+import io.netty.handler.codec.http.websocketx.extensions.compression.PerMessageDeflateServerExtensionHandshaker;
+
+/** What {@link Deflate} costs per stanza going out to a browser, against
+ * what it saves. Each op compresses one frame, cycling through 1024
+ * different stanzas of the kind, so keeping the context doesn't get to
+ * cheat by seeing the same one every time. The sizes before and after are
+ * printed at the end of each run.
+ *
+ * context=false is what sessions over xmpp.deflate.maxContexts get, a new
+ * deflater per message and nothing kept between them, which is the memory
+ * saving. This is the CPU it costs. -prof gc doesn't see zlib's memory, it
+ * isn't on the heap, so LoadTest with deflate=true is the one for that.
+ *
+ * `ant bench -Dbench.args="DeflateBench -prof gc"` */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DeflateBench {
+	@Param({"1", "6", "9"})
+	public int level;
+
+	@Param({"true", "false"})
+	public boolean context;
+
+	@Param({"message", "presence", "roster"})
+	public String stanza;
+
+	private EmbeddedChannel ch;
+	private ByteBuf[] stanzas;
+	private int next;
+	private long in, out;
+
+	@Setup
+	public void setup() {
+		Map<String, String> offer = new HashMap<>();
+		if (!context) offer.put("server_no_context_takeover", null);
+		ch = new EmbeddedChannel(new PerMessageDeflateServerExtensionHandshaker(
+				level, false, 15, true, false)
+			.handshakeExtension(new WebSocketExtensionData("permessage-deflate", offer))
+			.newExtensionEncoder());
+		Random r = new Random(42);
+		stanzas = new ByteBuf[1024];
+		for (int i = 0; i<stanzas.length; i++) {
+			stanzas[i] = FramingBench.buf(stanza(stanza, r));
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		System.out.printf("%n%s, level %d, context %s: %d bytes to %d per frame (%.0f%%)%n",
+			stanza, level, context, in/Math.max(next, 1), out/Math.max(next, 1),
+			100.0*out/Math.max(in, 1));
+		ch.finishAndReleaseAll();
+		for (ByteBuf b: stanzas) b.release();
+	}
+
+	@Benchmark
+	public int deflate() {
+		ByteBuf b = stanzas[next++ & 1023];
+		in += b.readableBytes();
+		ch.writeOutbound(new TextWebSocketFrame(b.retainedDuplicate()));
+		WebSocketFrame f = ch.readOutbound();
+		int n = f.content().readableBytes();
+		out += n;
+		f.release();
+		return n;
+	}
+
+	static final String[] NAMES = {"alice", "bob", "carol", "dave", "erin", "frank",
+		"grace", "heidi", "ivan", "judy", "mallory", "niaj", "olivia", "peggy"};
+	static final String[] SHOWS = {"away", "chat", "dnd", "xa"};
+
+	static String jid(Random r) {
+		return NAMES[r.nextInt(NAMES.length)] + r.nextInt(1000) + "@example.com";
+	}
+
+	static String stanza(String kind, Random r) {
+		String id = Long.toHexString(r.nextLong());
+		switch (kind) {
+		case "message":
+			return "<message xmlns='jabber:client' from='" + jid(r) + "/phone' to='"
+				+ jid(r) + "' type='chat' id='" + id + "'><body>Are we still on for "
+				+ (1+r.nextInt(12)) + " o'clock? I'll bring the " + NAMES[r.nextInt(NAMES.length)]
+				+ " stuff</body><active xmlns='http://jabber.org/protocol/chatstates'/>"
+				+ "<request xmlns='urn:xmpp:receipts'/><origin-id xmlns='urn:xmpp:sid:0' id='"
+				+ id + "'/></message>";
+		case "presence":
+			return "<presence xmlns='jabber:client' from='room" + r.nextInt(20)
+				+ "@conference.example.com/" + NAMES[r.nextInt(NAMES.length)] + r.nextInt(100)
+				+ "' to='" + jid(r) + "/web' id='" + id + "'><show>" + SHOWS[r.nextInt(4)]
+				+ "</show><c xmlns='http://jabber.org/protocol/caps' hash='sha-1' "
+				+ "node='https://conversations.im' ver='" + Long.toHexString(r.nextLong())
+				+ "='/><x xmlns='http://jabber.org/protocol/muc#user'><item affiliation='member' "
+				+ "jid='" + jid(r) + "/phone' role='participant'/></x>"
+				+ "<occupant-id xmlns='urn:xmpp:occupant-id:0' id='" + id + "'/></presence>";
+		default:
+			StringBuilder sb = new StringBuilder("<iq xmlns='jabber:client' type='result' id='")
+				.append(id).append("'><query xmlns='jabber:iq:roster' ver='")
+				.append(r.nextInt(100000)).append("'>");
+			for (int i = 0; i<30; i++) {
+				String jid = jid(r);
+				sb.append("<item jid='").append(jid).append("' name='")
+					.append(jid, 0, jid.indexOf('@')).append("' subscription='both'>")
+					.append("<group>").append(i%3==0 ? "Work" : "Friends").append("</group></item>");
+			}
+			return sb.append("</query></iq>").toString();
+		}
+	}
+}
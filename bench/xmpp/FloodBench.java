@@ -0,0 +1,143 @@
+package xmpp;
+
+import static io.netty.util.CharsetUtil.UTF_8;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.websocketx.WebSocket13FrameEncoder;
+
+/** A presence flood, like the one that follows login on a big roster, pushed
+ * from the XMPP side through the real upstream pipeline and out of a real
+ * (loopback) socket as websocket frames. Compared against flushing after
+ * every stanza, which is what the bridge used to do.
+ *
+ * Flushes are counted just above the socket. Each one that has something to
+ * send is a write syscall, so that's the number to look at along with the
+ * throughput.
+ *
+ * `ant bench-main -Dbench=FloodBench -Dbench.args="[floods] [presences]"` */
+public class FloodBench {
+	static final String HEADER = "<?xml version='1.0'?>"
+		+ "<stream:stream xmlns='jabber:client' "
+		+ "xmlns:stream='http://etherx.jabber.org/streams' id='1' from='x' "
+		+ "version='1.0'>";
+
+	public static void main(String[] args) throws Exception {
+		int floods = args.length>0 ? Integer.parseInt(args[0]) : 2000;
+		int presences = args.length>1 ? Integer.parseInt(args[1]) : 500;
+		byte[] flood = flood(presences);
+		Transport t = Transport.best();
+		EventLoopGroup group = t.newGroup(2);
+		try {
+			//a websocket client that reads and forgets
+			AtomicLong received = new AtomicLong();
+			Channel server = t.configure(new ServerBootstrap())
+				.group(group).channel(t.serverChannel())
+				.childHandler(new ChannelInboundHandlerAdapter() {
+					@Override
+					public void channelRead(ChannelHandlerContext ctx, Object msg) {
+						received.addAndGet(((ByteBuf)msg).readableBytes());
+						((ByteBuf)msg).release();
+					}
+
+					@Override
+					public boolean isSharable() {
+						return true;
+					}
+				})
+				.bind("127.0.0.1", 0).sync().channel();
+
+			for (int i = 0; i<2; i++) {
+				run("per-stanza", true, t, group, server, received, flood, floods, presences);
+				run("batched", false, t, group, server, received, flood, floods, presences);
+			}
+			server.close().sync();
+		} finally {
+			group.shutdownGracefully(0, 1, TimeUnit.SECONDS).sync();
+		}
+	}
+
+	static void run(String name, boolean perStanza, Transport t, EventLoopGroup group,
+		Channel server, AtomicLong received, byte[] flood, int floods, int presences)
+		throws Exception
+	{
+		AtomicLong flushes = new AtomicLong();
+		Channel ws = t.configure(new Bootstrap())
+			.group(group).channel(t.socketChannel())
+			.handler(new ChannelInitializer<Channel>() {
+				@Override
+				protected void initChannel(Channel ch) {
+					ch.pipeline().addLast(new WebSocket13FrameEncoder(false));
+					if (perStanza) ch.pipeline().addLast(new ChannelOutboundHandlerAdapter() {
+						@Override
+						public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise p) {
+							ctx.writeAndFlush(msg, p);
+						}
+					});
+					FlushBatchHandler.install(ch.pipeline());
+					//next to the socket, so it sees the early flushes too
+					ch.pipeline().addFirst(new ChannelOutboundHandlerAdapter() {
+						@Override
+						public void flush(ChannelHandlerContext ctx) {
+							flushes.incrementAndGet();
+							ctx.flush();
+						}
+					});
+				}
+			})
+			.connect(server.localAddress()).sync().channel();
+
+		EmbeddedChannel upstream = new EmbeddedChannel();
+		new Bridge.XMPPClient(ws, "localhost").initChannel(upstream);
+		ws.eventLoop().submit(()->upstream.writeInbound(buf(HEADER.getBytes(UTF_8)))).sync();
+		waitFor(received, 1);
+
+		long startBytes = received.get(), startFlushes = flushes.get();
+		long start = System.nanoTime();
+		for (int i = 0; i<floods; i++) {
+			ws.eventLoop().submit(()->upstream.writeInbound(buf(flood))).sync();
+		}
+		long expected = startBytes + (long)floods*(flood.length + presences*2);
+		waitFor(received, expected);
+		double secs = (System.nanoTime()-start)/1e9;
+		System.out.printf("%-10s %9.0f stanzas/s %8.2f flushes/flood%n", name,
+			floods*presences/secs, (double)(flushes.get()-startFlushes)/floods);
+
+		ws.close().sync();
+		upstream.finishAndReleaseAll();
+		received.set(0);
+	}
+
+	/** Spins until the sink has read at least this much */
+	static void waitFor(AtomicLong received, long bytes) throws InterruptedException {
+		while (received.get()<bytes) Thread.sleep(1);
+	}
+
+	static ByteBuf buf(byte[] b) {
+		return PooledByteBufAllocator.DEFAULT.directBuffer(b.length).writeBytes(b);
+	}
+
+	/** presences that come out as frames of under 126 bytes, so each one
+	 * gets a two byte websocket header */
+	static byte[] flood(int n) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i<n; i++) {
+			sb.append("<presence from='contact").append(i%1000)
+				.append("@example.com/web'><show>away</show></presence>");
+		}
+		return sb.toString().getBytes(UTF_8);
+	}
+}
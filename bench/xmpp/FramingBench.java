@@ -0,0 +1,194 @@
+package xmpp;
+
+import static io.netty.util.CharsetUtil.UTF_8;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.ReferenceCountUtil;
+
+/** The RFC 7395 framing translation done by {@link StreamHeaderCodec} and
+ * {@link StreamNamespaceCodec}, against the String surgery they replaced.
+ * The string versions are copied from the old XMPPClient, and end with a
+ * ByteBuf the same as the codecs do, because that's what gets written.
+ *
+ * `ant bench -Dbench.args="FramingBench -prof gc"` */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FramingBench {
+	static final String HEADER = "<?xml version='1.0'?>"
+		+ "<stream:stream xmlns='jabber:client' "
+		+ "xmlns:stream='http://etherx.jabber.org/streams' id='4512351234' "
+		+ "from='example.com' version='1.0' xml:lang='en'>";
+	static final String OPEN = "<open xmlns='urn:ietf:params:xml:ns:xmpp-framing'"
+		+ " to='example.com' version='1.0'/>";
+	static final String FEATURES = "<stream:features><bind "
+		+ "xmlns='urn:ietf:params:xml:ns:xmpp-bind'/><session "
+		+ "xmlns='urn:ietf:params:xml:ns:xmpp-session'/></stream:features>";
+	static final String MESSAGE = "<message from='juliet@example.com/balcony' "
+		+ "to='romeo@example.net' type='chat' id='ktx72v49'><body>Art thou "
+		+ "not Romeo, and a Montague?</body></message>";
+
+	private XmlStreamHeadDecoder decoder;
+	private StreamHeaderCodec header;
+	private StreamNamespaceCodec ns;
+	private ChannelHandlerContext headerCtx, nsCtx;
+	private EmbeddedChannel ch;
+	private ByteBuf headerBuf, openBuf, featuresBuf, messageBuf;
+	private final List<Object> out = new ArrayList<>();
+
+	@Setup
+	public void setup() {
+		decoder = new XmlStreamHeadDecoder();
+		header = new StreamHeaderCodec(decoder);
+		ns = StreamNamespaceCodec.INSTANCE;
+		ch = new EmbeddedChannel(header, ns);
+		headerCtx = ch.pipeline().context(header);
+		nsCtx = ch.pipeline().context(ns);
+		headerBuf = buf(HEADER);
+		openBuf = buf(OPEN);
+		featuresBuf = buf(FEATURES);
+		messageBuf = buf(MESSAGE);
+	}
+
+	@TearDown
+	public void tearDown() {
+		ch.finishAndReleaseAll();
+		headerBuf.release();
+		openBuf.release();
+		featuresBuf.release();
+		messageBuf.release();
+	}
+
+	static ByteBuf buf(String s) {
+		byte[] b = s.getBytes(UTF_8);
+		return PooledByteBufAllocator.DEFAULT.directBuffer(b.length).writeBytes(b);
+	}
+
+	/** Drains the output, reading it the way the frame encoder would */
+	private int drain() {
+		int n = 0;
+		for (Object o: out) {
+			n += ((ByteBuf)o).readableBytes();
+			ReferenceCountUtil.release(o);
+		}
+		out.clear();
+		return n;
+	}
+
+	@Benchmark
+	public int headerCodec() throws Exception {
+		decoder.started = false;
+		ByteBuf in = headerBuf.retainedDuplicate();
+		header.decode(headerCtx, in, out);
+		in.release();
+		return drain();
+	}
+
+	@Benchmark
+	public int headerString() {
+		String header = headerBuf.toString(UTF_8);
+		header = header.replace("<?xml version='1.0'?>", "")
+			.replace("<stream:stream", "<open");
+		header = header.substring(0, header.length()-"jabber:client'>".length())
+			+ "urn:ietf:params:xml:ns:xmpp-framing'/>";
+		return release(Unpooled.copiedBuffer(header, UTF_8));
+	}
+
+	@Benchmark
+	public int openCodec() throws Exception {
+		ByteBuf in = openBuf.retainedDuplicate();
+		header.encode(headerCtx, in, out);
+		in.release();
+		return drain();
+	}
+
+	private static final String STREAM_TAG_PART =
+		"<?xml version='1.0'?>\n"
+		+ "<stream:stream xmlns='jabber:client'"
+		+ " xmlns:stream='http://etherx.jabber.org/streams' ";
+	private static final int OPEN_TAG_PART_LEN =
+		"<open xmlns='urn:ietf:params:xml:ns:xmpp-framing'".length();
+
+	@Benchmark
+	public int openString() {
+		String xml = openBuf.toString(UTF_8);
+		if (xml.startsWith("<open")) {
+			xml = STREAM_TAG_PART + xml.substring(OPEN_TAG_PART_LEN);
+			xml = xml.replace("/>", ">");
+		}
+		return release(Unpooled.copiedBuffer(xml.getBytes()));
+	}
+
+	@Benchmark
+	public int featuresCodec() throws Exception {
+		ByteBuf in = featuresBuf.retainedDuplicate();
+		ns.decode(nsCtx, in, out);
+		in.release();
+		return drain();
+	}
+
+	@Benchmark
+	public int featuresString() {
+		return release(Unpooled.copiedBuffer(onStanza(featuresBuf.toString(UTF_8)), UTF_8));
+	}
+
+	/** A plain stanza through both codecs, which should leave it alone */
+	@Benchmark
+	public int messageCodec() throws Exception {
+		decoder.started = true;
+		ByteBuf in = messageBuf.retainedDuplicate();
+		header.decode(headerCtx, in, out);
+		in.release();
+		ByteBuf mid = (ByteBuf)out.remove(0);
+		ns.decode(nsCtx, mid, out);
+		mid.release();
+		return drain();
+	}
+
+	@Benchmark
+	public int messageString() {
+		String s = messageBuf.toString(UTF_8);
+		if ("</stream:stream>".equals(s)) return 0;
+		return release(Unpooled.copiedBuffer(onStanza(s), UTF_8));
+	}
+
+	static String onStanza(String s) {
+		if (s.startsWith("<stream:")) {
+			int pos = s.indexOf(" ");
+			int pos2 = s.indexOf(">");
+			if (pos2>=0 && (pos<0 || pos2<pos)) pos = pos2;
+			s = s.substring(0, pos)
+				+ " xmlns:stream=\"http://etherx.jabber.org/streams\"" + s.substring(pos);
+		}
+		return s;
+	}
+
+	static int release(ByteBuf b) {
+		int n = b.readableBytes();
+		b.release();
+		return n;
+	}
+}
@@ -0,0 +1,126 @@
+package xmpp;
+
+import static io.netty.util.CharsetUtil.UTF_8;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.DefaultEventLoop;
+import io.netty.channel.local.LocalChannel;
+import io.netty.util.concurrent.DefaultEventExecutorGroup;
+
+/** What {@link Interceptors} add to each message, from it being handed to
+ * the chain on the event loop to it coming out the other end back on the
+ * loop. none is the hop onto the loop and back to the benchmark thread
+ * without a chain, as a bridge without interceptors has it, so the others
+ * less none is what they cost. inline runs one quick interceptor on the
+ * loop, offload the same one on the pool, which is two more thread hops.
+ * The interceptor only looks at the first tag, so it's the plumbing that's
+ * measured, not it.
+ *
+ * `ant bench -Dbench.args="InterceptorBench"` */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InterceptorBench {
+	@Param({"none", "inline", "offload"})
+	public String mode;
+
+	private DefaultEventLoop loop;
+	private DefaultEventExecutorGroup offload;
+	private Channel ws;
+	private Interceptors.Flow flow;
+	private ByteBuf presence;
+
+	/** Counts the presences, about the least an interceptor could do */
+	static class Audit implements Interceptor {
+		private static final byte[] PRESENCE = StartTag.bytes("presence");
+		final boolean inline;
+		volatile long seen;
+
+		Audit(boolean inline) {
+			this.inline = inline;
+		}
+
+		@Override
+		public ByteBuf toServer(Channel ws, ByteBuf msg) {
+			return toClient(ws, msg);
+		}
+
+		@Override
+		public ByteBuf toClient(Channel ws, ByteBuf msg) {
+			StartTag tag = StartTag.get();
+			if (tag.parse(msg) && tag.nameIs(PRESENCE)) seen++;
+			return msg;
+		}
+
+		@Override
+		public boolean inline() {
+			return inline;
+		}
+	}
+
+	@Setup
+	public void setup() throws Exception {
+		loop = new DefaultEventLoop();
+		offload = new DefaultEventExecutorGroup(1);
+		ws = new LocalChannel();
+		loop.register(ws).sync();
+		if (!"none".equals(mode)) {
+			flow = new Interceptors(List.of(new Audit("inline".equals(mode))), offload).flow();
+		}
+		presence = Unpooled.directBuffer().writeBytes(("<presence from='juliet@example.com/balcony'"
+			+ " to='romeo@example.net'><show>away</show></presence>").getBytes(UTF_8));
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		ws.close().sync();
+		loop.shutdownGracefully(0, 1, TimeUnit.SECONDS).sync();
+		offload.shutdownGracefully(0, 1, TimeUnit.SECONDS).sync();
+		presence.release();
+	}
+
+	@Benchmark
+	public ByteBuf toServer() throws Exception {
+		return through(true);
+	}
+
+	@Benchmark
+	public ByteBuf toClient() throws Exception {
+		return through(false);
+	}
+
+	private ByteBuf through(boolean toServer) throws Exception {
+		CompletableFuture<ByteBuf> done = new CompletableFuture<>();
+		ByteBuf msg = presence.retainedDuplicate();
+		loop.execute(()->{
+			if (flow==null) done.complete(msg);
+			else if (toServer) flow.toServer(ws, msg, null, (out, later)->done.complete(out));
+			else flow.toClient(ws, msg, null, (out, later)->done.complete(out));
+		});
+		ByteBuf out = done.get();
+		out.release();
+		return out;
+	}
+}
@@ -0,0 +1,137 @@
+package xmpp;
+
+import static io.netty.util.CharsetUtil.UTF_8;
+
+import java.lang.management.ManagementFactory;
+import java.util.function.Supplier;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.util.ReferenceCountUtil;
+
+/** Heap allocated per stanza on the XMPP to websocket path, comparing what
+ * the bridge does now against the old copy/toString/replace/new String way.
+ *
+ * Everything runs on EmbeddedChannels on the calling thread, so the
+ * thread's allocation counter sees all of it. Stanzas are fed in as pooled
+ * direct buffers, the way they'd come off a socket.
+ *
+ * `ant bench-main -Dbench=StanzaAllocBench` or
+ * `java -cp ... xmpp.StanzaAllocBench [stanzas]` */
+public class StanzaAllocBench {
+	static final String HEADER = "<?xml version='1.0'?>"
+		+ "<stream:stream xmlns='jabber:client' "
+		+ "xmlns:stream='http://etherx.jabber.org/streams' id='1' from='x' "
+		+ "version='1.0' xml:lang='en'>";
+
+	static final String[] STANZAS = {
+		"<presence from='juliet@example.com/balcony' to='romeo@example.net'>"
+			+ "<show>away</show><status>be right back</status>"
+			+ "<c xmlns='http://jabber.org/protocol/caps' hash='sha-1' "
+			+ "node='http://example.com' ver='QgayPKawpkPSDYmwT/WM94uAlu0='/>"
+			+ "</presence>",
+		"<message from='juliet@example.com/balcony' to='romeo@example.net' "
+			+ "type='chat' id='ktx72v49'><body>Art thou not Romeo, and a "
+			+ "Montague?</body></message>",
+		"<iq type='result' id='b2' to='romeo@example.net/orchard'>"
+			+ "<bind xmlns='urn:ietf:params:xml:ns:xmpp-bind'>"
+			+ "<jid>romeo@example.net/orchard</jid></bind></iq>",
+		"<stream:features><bind xmlns='urn:ietf:params:xml:ns:xmpp-bind'/>"
+			+ "</stream:features>",
+	};
+
+	public static void main(String[] args) {
+		int n = args.length>0 ? Integer.parseInt(args[0]) : 200000;
+		//twice each, the first time is warm up
+		for (int i = 0; i<2; i++) {
+			report("current", n, StanzaAllocBench::current);
+			report("string", n, StanzaAllocBench::legacy);
+		}
+	}
+
+	/** The real upstream pipeline from XMPPClient */
+	static EmbeddedChannel[] current() {
+		EmbeddedChannel ws = new EmbeddedChannel();
+		EmbeddedChannel upstream = new EmbeddedChannel();
+		new Bridge.XMPPClient(ws, "localhost").initChannel(upstream);
+		return new EmbeddedChannel[] {ws, upstream};
+	}
+
+	/** What the bridge used to do with each stanza the decoder gave it */
+	static EmbeddedChannel[] legacy() {
+		EmbeddedChannel ws = new EmbeddedChannel();
+		XmlStreamHeadDecoder decoder = new XmlStreamHeadDecoder();
+		EmbeddedChannel upstream = new EmbeddedChannel(decoder,
+			new ChannelInboundHandlerAdapter() {
+				@Override
+				public void channelRead(ChannelHandlerContext ctx, Object msg) {
+					ByteBuf copy = ((ByteBuf)msg).copy();
+					((ByteBuf)msg).release();
+					String s = copy.toString(UTF_8);
+					copy.release();
+					if (!decoder.started) {
+						decoder.started = true;
+						s = s.replace("<stream:stream", "<open");
+					} else if (s.startsWith("<stream:")) {
+						int pos = s.indexOf(" ");
+						int pos2 = s.indexOf(">");
+						if (pos2>=0 && (pos<0 || pos2<pos)) pos = pos2;
+						s = s.substring(0, pos)
+							+ " xmlns:stream=\"http://etherx.jabber.org/streams\""
+							+ s.substring(pos);
+					}
+					write(ws, s);
+				}
+			});
+		return new EmbeddedChannel[] {ws, upstream};
+	}
+
+	static void write(Channel ch, String data) {
+		if (data.length()>0) ch.writeAndFlush(
+			new TextWebSocketFrame(data.replace("<?xml version='1.0'?>", "")));
+	}
+
+	static void report(String name, int n, Supplier<EmbeddedChannel[]> setup) {
+		EmbeddedChannel[] chs = setup.get();
+		EmbeddedChannel ws = chs[0], upstream = chs[1];
+		byte[][] stanzas = new byte[STANZAS.length][];
+		for (int i = 0; i<stanzas.length; i++) stanzas[i] = STANZAS[i].getBytes(UTF_8);
+		upstream.writeInbound(Unpooled.copiedBuffer(HEADER, UTF_8));
+		drain(ws);
+
+		long before = allocated();
+		long start = System.nanoTime();
+		for (int i = 0; i<n; i++) {
+			byte[] s = stanzas[i%stanzas.length];
+			upstream.writeInbound(
+				PooledByteBufAllocator.DEFAULT.directBuffer(s.length).writeBytes(s));
+			drain(ws);
+		}
+		long nanos = System.nanoTime()-start;
+		long bytes = allocated()-before;
+		System.out.printf("%-8s %7.1f bytes/stanza %8.0f stanzas/s%n",
+			name, (double)bytes/n, n/(nanos/1e9));
+		upstream.finishAndReleaseAll();
+		ws.finishAndReleaseAll();
+	}
+
+	static void drain(EmbeddedChannel ch) {
+		Object o;
+		while ((o = ch.readOutbound())!=null) {
+			//make sure the composite gets read, as it would be by the encoder
+			((TextWebSocketFrame)o).content().forEachByte(b->true);
+			ReferenceCountUtil.release(o);
+		}
+	}
+
+	static long allocated() {
+		return ((com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean())
+			.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+}
@@ -0,0 +1,157 @@
+package xmpp;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.Key;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.ssl.OpenSsl;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.ssl.SslProvider;
+
+/** What a TLS handshake costs the bridge, with each engine, and how much a
+ * resumed session saves. Each op is a whole handshake between a client
+ * and the server side of {@link Tls}, over EmbeddedChannels so it's only
+ * the crypto and the engines, no sockets. resume=true has the client
+ * reconnect to the same place each op, so they're all resumptions
+ * (tickets for TLS 1.3). How many really were, going by whether the server
+ * sent its certificate, is printed at the end of each run.
+ *
+ * The certificate's a throwaway RSA 2048 one made with keytool, which has
+ * to be on the path. provider=OPENSSL needs netty-tcnative in libs, and
+ * is skipped without it.
+ *
+ * `ant bench -Dbench.args="TlsBench"` */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TlsBench {
+	@Param({"JDK", "OPENSSL"})
+	public SslProvider provider;
+
+	@Param({"true", "false"})
+	public boolean resume;
+
+	private File dir;
+	private SslContext server, client;
+	/** bytes from the server in a full handshake, and in the last one */
+	private int full, fromServer;
+	private int certSize, handshakes, resumed;
+
+	@Setup
+	public void setup() throws Exception {
+		if (provider==SslProvider.OPENSSL && !OpenSsl.isAvailable()) {
+			throw new IllegalStateException("no OpenSSL here, skipping: " + OpenSsl.unavailabilityCause());
+		}
+		dir = Files.createTempDirectory("tlsbench").toFile();
+		File cert = new File(dir, "cert.pem"), key = new File(dir, "key.pem");
+		certSize = selfSigned(dir, cert, key);
+		server = Tls.server(provider, cert, key, null);
+		client = Tls.client(provider, true, null);
+		handshake(client, 1);
+		full = fromServer;
+	}
+
+	@TearDown
+	public void tearDown() {
+		System.out.printf("%n%s: %d of %d handshakes resumed%n", provider, resumed, handshakes);
+		for (File f: dir.listFiles()) f.delete();
+		dir.delete();
+	}
+
+	@Benchmark
+	public SslHandler handshake() {
+		//the client's sessions are kept by host and port, so a new port each
+		//time means there's never one to resume
+		SslHandler c = handshake(client, resume ? 443 : 1024 + handshakes%60000);
+		handshakes++;
+		//a resumed one doesn't send the certificate
+		if (fromServer<full - certSize/2) resumed++;
+		return c;
+	}
+
+	/** One handshake, leaving how much the server said in fromServer */
+	private SslHandler handshake(SslContext client, int port) {
+		SslHandler c = client.newHandler(ByteBufAllocator.DEFAULT, "bridge", port);
+		SslHandler s = server.newHandler(ByteBufAllocator.DEFAULT);
+		EmbeddedChannel cc = new EmbeddedChannel(c), sc = new EmbeddedChannel(s);
+		//until nothing more's said, so the client gets its ticket
+		fromServer = 0;
+		for (int n = 1; n>0; ) {
+			n = pump(sc, cc);
+			fromServer += n;
+			n += pump(cc, sc);
+		}
+		if (!c.handshakeFuture().isSuccess()) {
+			throw new IllegalStateException("handshake failed", c.handshakeFuture().cause());
+		}
+		cc.finishAndReleaseAll();
+		sc.finishAndReleaseAll();
+		return c;
+	}
+
+	/** Everything one's written, to the other. How many bytes that was */
+	private static int pump(EmbeddedChannel from, EmbeddedChannel to) {
+		int n = 0;
+		for (ByteBuf b; (b = from.readOutbound())!=null; ) {
+			n += b.readableBytes();
+			to.writeInbound(b);
+		}
+		return n;
+	}
+
+	/** A new key and certificate, as the PEM files {@link Tls} wants.
+	 * Returns the certificate's size */
+	static int selfSigned(File dir, File cert, File key) throws Exception {
+		File p12 = new File(dir, "bench.p12");
+		Process p = new ProcessBuilder("keytool", "-genkeypair", "-alias", "bridge",
+			"-keyalg", "RSA", "-keysize", "2048", "-validity", "2", "-dname", "CN=bridge",
+			"-storetype", "PKCS12", "-keystore", p12.getPath(), "-storepass", "changeit")
+			.inheritIO().start();
+		if (p.waitFor()!=0) throw new IllegalStateException("keytool failed");
+		KeyStore ks = KeyStore.getInstance("PKCS12");
+		try (InputStream in = new FileInputStream(p12)) {
+			ks.load(in, "changeit".toCharArray());
+		}
+		Key k = ks.getKey("bridge", "changeit".toCharArray());
+		Certificate c = ks.getCertificate("bridge");
+		pem(cert, "CERTIFICATE", c.getEncoded());
+		pem(key, "PRIVATE KEY", k.getEncoded());
+		return c.getEncoded().length;
+	}
+
+	private static void pem(File f, String type, byte[] der) throws Exception {
+		try (Writer w = Files.newBufferedWriter(f.toPath(), StandardCharsets.US_ASCII)) {
+			w.write("-----BEGIN " + type + "-----\n");
+			w.write(Base64.getMimeEncoder(64, new byte[] {'\n'}).encodeToString(der));
+			w.write("\n-----END " + type + "-----\n");
+		}
+	}
+}
@@ -0,0 +1,154 @@
+package xmpp;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+
+/** Rough comparison of the transports on this box. For each one that's
+ * available it starts an echo server on localhost, then measures
+ * - how quickly it can accept (and close) a burst of connections
+ * - round trip time for a small message echoed over a single connection
+ *
+ * Run with `ant bench-main -Dbench=TransportBench` or
+ * `java -cp ... xmpp.TransportBench [connections] [echoes]`.
+ * Nothing clever, the numbers are for comparing transports against each
+ * other on one machine, not for quoting */
+public class TransportBench {
+	static final int PORT = Integer.getInteger("bench.port", 15222);
+
+	public static void main(String[] args) throws Exception {
+		int conns = args.length>0 ? Integer.parseInt(args[0]) : 5000;
+		int echoes = args.length>1 ? Integer.parseInt(args[1]) : 50000;
+		for (Transport t: Transport.values()) {
+			if (Transport.pick(t.name())!=t) {
+				System.out.printf("%-8s not available%n", t);
+				continue;
+			}
+			run(t, conns, echoes);
+		}
+	}
+
+	static void run(Transport t, int conns, int echoes) throws Exception {
+		EventLoopGroup group = t.newGroup(0);
+		try {
+			Channel server = t.configure(new ServerBootstrap())
+				.group(group).channel(t.serverChannel())
+				.option(ChannelOption.SO_BACKLOG, 1024)
+				.childOption(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+				.childHandler(new ChannelInboundHandlerAdapter() {
+					@Override
+					public void channelRead(ChannelHandlerContext ctx, Object msg) {
+						ctx.write(msg);
+					}
+
+					@Override
+					public void channelReadComplete(ChannelHandlerContext ctx) {
+						ctx.flush();
+					}
+
+					@Override
+					public boolean isSharable() {
+						return true;
+					}
+				})
+				.bind("127.0.0.1", PORT).sync().channel();
+
+			Bootstrap b = t.configure(new Bootstrap())
+				.group(group).channel(t.socketChannel())
+				.option(ChannelOption.TCP_NODELAY, true)
+				.handler(new ChannelInboundHandlerAdapter());
+
+			//warm up, then measure
+			accept(b, conns/10);
+			long start = System.nanoTime();
+			accept(b, conns);
+			double secs = (System.nanoTime()-start)/1e9;
+
+			long[] rtt = echo(t, group, echoes);
+			System.out.printf(
+				"%-8s accepts/s %8.0f  echo rtt us p50 %6.1f p99 %6.1f p999 %6.1f%n",
+				t, conns/secs, pct(rtt, 0.5), pct(rtt, 0.99), pct(rtt, 0.999));
+			server.close().sync();
+		} finally {
+			group.shutdownGracefully(0, 1, TimeUnit.SECONDS).sync();
+		}
+	}
+
+	/** Connects and closes in batches, so we don't run into the backlog */
+	static void accept(Bootstrap b, int n) throws InterruptedException {
+		int batch = 200;
+		for (int done = 0; done<n; done += batch) {
+			int count = Math.min(batch, n-done);
+			CountDownLatch latch = new CountDownLatch(count);
+			for (int i = 0; i<count; i++) {
+				b.connect("127.0.0.1", PORT).addListener(
+					new FutureLambda<ChannelFuture>(f->{
+						if (f.isSuccess()) f.channel().close();
+						latch.countDown();
+					}));
+			}
+			latch.await();
+		}
+	}
+
+	static long[] echo(Transport t, EventLoopGroup group, int n) throws Exception {
+		long[] rtt = new long[n];
+		CountDownLatch done = new CountDownLatch(1);
+		Channel ch = t.configure(new Bootstrap())
+			.group(group).channel(t.socketChannel())
+			.option(ChannelOption.TCP_NODELAY, true)
+			.handler(new ChannelInitializer<Channel>() {
+				@Override
+				protected void initChannel(Channel ch) {
+					ch.pipeline().addLast(new ChannelInboundHandlerAdapter() {
+						int i = 0, got = 0;
+						long sent;
+
+						@Override
+						public void channelActive(ChannelHandlerContext ctx) {
+							send(ctx);
+						}
+
+						//messages are 8 bytes, so they may come back split
+						@Override
+						public void channelRead(ChannelHandlerContext ctx, Object msg) {
+							got += ((ByteBuf)msg).readableBytes();
+							((ByteBuf)msg).release();
+							if (got<8) return;
+							got = 0;
+							rtt[i++] = System.nanoTime()-sent;
+							if (i<n) send(ctx);
+							else done.countDown();
+						}
+
+						void send(ChannelHandlerContext ctx) {
+							sent = System.nanoTime();
+							ctx.writeAndFlush(ctx.alloc().buffer(8).writeLong(sent));
+						}
+					});
+				}
+			})
+			.connect("127.0.0.1", PORT).sync().channel();
+		done.await();
+		ch.close().sync();
+		return rtt;
+	}
+
+	static double pct(long[] nanos, double p) {
+		long[] sorted = nanos.clone();
+		Arrays.sort(sorted);
+		return sorted[(int)Math.min(sorted.length-1, sorted.length*p)]/1000.0;
+	}
+}
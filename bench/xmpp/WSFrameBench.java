@@ -0,0 +1,115 @@
+package xmpp;
+
+import static io.netty.util.CharsetUtil.UTF_8;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocket13FrameEncoder;
+import io.netty.util.ReferenceCountUtil;
+
+/** Client frames coming into the {@link WSServer} pipeline, upgraded for
+ * real on an EmbeddedChannel, as far as the payload handler. Each read is
+ * a batch of masked text frames of the given size, like a client sending a
+ * burst. The handler is either the buffer one, which the bridge uses, or
+ * the old byte[] one.
+ *
+ * Score is per read, so divide by the batch for per frame.
+ *
+ * `ant bench -Dbench.args="WSFrameBench -prof gc"` */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WSFrameBench {
+	static final String UPGRADE = "GET /xmpp HTTP/1.1\r\n"
+		+ "Host: localhost\r\n"
+		+ "Upgrade: websocket\r\n"
+		+ "Connection: Upgrade\r\n"
+		+ "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n"
+		+ "Sec-WebSocket-Protocol: xmpp\r\n"
+		+ "Sec-WebSocket-Version: 13\r\n\r\n";
+
+	@Param({"128", "1024", "16384"})
+	public int size;
+
+	@Param({"16"})
+	public int batch;
+
+	@Param({"buf", "bytes"})
+	public String handler;
+
+	private EmbeddedChannel ch;
+	private ChannelPipeline pipeline;
+	private ByteBuf read;
+	private long received;
+
+	@Setup
+	public void setup() {
+		WSServer server = new WSServer(0);
+		if ("buf".equals(handler)) {
+			server.wsBufHandler((c, b)->{
+				received += b.readableBytes();
+				b.release();
+			});
+		} else {
+			server.wsHandler((c, b)->received += b.length);
+		}
+		ch = new EmbeddedChannel();
+		server.initChannel(ch);
+		ch.writeInbound(FramingBench.buf(UPGRADE));
+		Object res = ch.readOutbound();
+		if (res==null || !((ByteBuf)res).toString(UTF_8).startsWith("HTTP/1.1 101")) {
+			throw new IllegalStateException("upgrade failed: " + res);
+		}
+		ReferenceCountUtil.release(res);
+		pipeline = ch.pipeline();
+
+		//the client side of it, masking as clients have to
+		EmbeddedChannel client = new EmbeddedChannel(new WebSocket13FrameEncoder(true));
+		String text = FramingBench.MESSAGE;
+		StringBuilder sb = new StringBuilder(size);
+		while (sb.length()<size) sb.append(text);
+		sb.setLength(size);
+		read = PooledByteBufAllocator.DEFAULT.directBuffer();
+		for (int i = 0; i<batch; i++) {
+			client.writeOutbound(new TextWebSocketFrame(sb.toString()));
+			for (ByteBuf b; (b = client.readOutbound())!=null; b.release()) read.writeBytes(b);
+		}
+		client.finishAndReleaseAll();
+	}
+
+	@TearDown
+	public void tearDown() {
+		ch.finishAndReleaseAll();
+		read.release();
+	}
+
+	@Benchmark
+	public long frames() {
+		received = 0;
+		pipeline.fireChannelRead(read.retainedDuplicate());
+		pipeline.fireChannelReadComplete();
+		if (received!=(long)size*batch) throw new IllegalStateException("got " + received);
+		return received;
+	}
+}
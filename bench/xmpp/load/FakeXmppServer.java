@@ -0,0 +1,319 @@
+package xmpp.load;
+
+import static io.netty.util.CharsetUtil.UTF_8;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.concurrent.ScheduledFuture;
+import xmpp.Transport;
+import xmpp.XmlStreamHeadDecoder;
+
+/** Just enough of an XMPP server (RFC 6120) to put the bridge under load
+ * without a real one. It answers the stream header with its own and some
+ * empty features, echoes every stanza straight back, and sends presences:
+ * - loginFlood of them as soon as the stream is open, like a roster
+ * - floodSize of them every floodEvery ms after that, like a busy MUC
+ * Closing the stream closes the connection, and a <drop/> hangs up without
+ * closing it, like a server that's fallen over. There's no auth, no routing
+ * and no checking of anything.
+ *
+ * It behaves itself when the bridge pushes back: timed floods are skipped
+ * while the connection isn't writable, and it stops reading (so stops
+ * echoing) until it is again.
+ *
+ * Stanzas are framed with the bridge's own decoder, which is fine for
+ * something that's only ever going to talk to the bridge.
+ *
+ * With mux it's the other end of the bridge's shared links instead (see
+ * xmpp.Mux), and does all the above for each session on a link. Any
+ * secret will do. A <drop/> ends the session without closing its stream.
+ *
+ * `java -cp ... xmpp.load.FakeXmppServer [port] [loginFlood] [floodEvery] [floodSize] [mux]` */
+public class FakeXmppServer {
+	static final byte[] HEADER = ("<?xml version='1.0'?>"
+		+ "<stream:stream xmlns='jabber:client' "
+		+ "xmlns:stream='http://etherx.jabber.org/streams' id='fake' "
+		+ "from='localhost' version='1.0' xml:lang='en'>"
+		+ "<stream:features/>").getBytes(UTF_8);
+	static final byte[] FOOTER = "</stream:stream>".getBytes(UTF_8);
+	static final byte[] DROP = "<drop".getBytes(UTF_8);
+	static final byte[] MUX_HEADER = ("<?xml version='1.0'?>"
+		+ "<stream:stream xmlns='urn:xmpp:bridge:mux:0' "
+		+ "xmlns:stream='http://etherx.jabber.org/streams' id='fake' from='localhost'>")
+		.getBytes(UTF_8);
+
+	final int port;
+	final int loginFlood;
+	final int floodEvery;
+	final int floodSize;
+	final boolean mux;
+	private EventLoopGroup group;
+	private Channel server;
+
+	public FakeXmppServer(int port, int loginFlood, int floodEvery, int floodSize) {
+		this(port, loginFlood, floodEvery, floodSize, false);
+	}
+
+	public FakeXmppServer(int port, int loginFlood, int floodEvery, int floodSize, boolean mux) {
+		this.port = port;
+		this.loginFlood = loginFlood;
+		this.floodEvery = floodEvery;
+		this.floodSize = floodSize;
+		this.mux = mux;
+	}
+
+	public FakeXmppServer start() throws InterruptedException {
+		Transport t = Transport.best();
+		group = t.newGroup(0);
+		server = t.configure(new ServerBootstrap())
+			.group(group).channel(t.serverChannel())
+			.option(ChannelOption.SO_BACKLOG, 4096)
+			.childHandler(new ChannelInitializer<Channel>() {
+				@Override
+				protected void initChannel(Channel ch) {
+					XmlStreamHeadDecoder decoder = new XmlStreamHeadDecoder();
+					ch.pipeline().addLast(decoder,
+						mux ? new MuxLink(decoder) : new Session(decoder));
+				}
+			})
+			.bind(port).sync().channel();
+		return this;
+	}
+
+	public void stop() throws InterruptedException {
+		server.close().sync();
+		group.shutdownGracefully(0, 1, TimeUnit.SECONDS).sync();
+	}
+
+	private class Session extends ChannelInboundHandlerAdapter {
+		private final XmlStreamHeadDecoder decoder;
+		private ScheduledFuture<?> flooding;
+		private int sent;
+
+		Session(XmlStreamHeadDecoder decoder) {
+			this.decoder = decoder;
+		}
+
+		@Override
+		public void channelRead(ChannelHandlerContext ctx, Object msg) {
+			ByteBuf stanza = (ByteBuf)msg;
+			if (!decoder.started) {
+				//the header, which doesn't need looking at
+				stanza.release();
+				decoder.started = true;
+				ctx.write(ctx.alloc().buffer(HEADER.length).writeBytes(HEADER));
+				flood(ctx, loginFlood);
+				if (floodEvery>0 && flooding==null) {
+					flooding = ctx.executor().scheduleAtFixedRate(
+						()->flood(ctx, floodSize).flush(),
+						floodEvery, floodEvery, TimeUnit.MILLISECONDS);
+				}
+			} else if (ByteBufUtil.indexOf(stanza, stanza.readerIndex(),
+				Math.min(stanza.writerIndex(), stanza.readerIndex()+2), (byte)'/')>=0)
+			{
+				stanza.release();
+				ctx.writeAndFlush(ctx.alloc().buffer(FOOTER.length).writeBytes(FOOTER))
+					.addListener(f->ctx.close());
+			} else if (startsWith(stanza, DROP)) {
+				stanza.release();
+				ctx.close();
+			} else {
+				ctx.write(stanza);
+			}
+		}
+
+		@Override
+		public void channelReadComplete(ChannelHandlerContext ctx) {
+			ctx.flush();
+		}
+
+		@Override
+		public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+			ctx.channel().config().setAutoRead(ctx.channel().isWritable());
+		}
+
+		private boolean startsWith(ByteBuf b, byte[] prefix) {
+			if (b.readableBytes()<prefix.length) return false;
+			for (int i = 0; i<prefix.length; i++) {
+				if (b.getByte(b.readerIndex()+i)!=prefix[i]) return false;
+			}
+			return true;
+		}
+
+		private ChannelHandlerContext flood(ChannelHandlerContext ctx, int n) {
+			for (int i = 0; i<n && ctx.channel().isWritable(); i++) {
+				byte[] p = PRESENCES[sent];
+				sent = (sent+1)%PRESENCES.length;
+				ctx.write(ctx.alloc().buffer(p.length).writeBytes(p));
+			}
+			return ctx;
+		}
+
+		@Override
+		public void channelInactive(ChannelHandlerContext ctx) {
+			if (flooding!=null) flooding.cancel(false);
+		}
+
+		@Override
+		public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+			ctx.close();
+		}
+	}
+
+	/** A link from the bridge with any number of sessions on it, each
+	 * treated like a {@link Session} */
+	private class MuxLink extends ChannelInboundHandlerAdapter {
+		private final XmlStreamHeadDecoder decoder;
+		/** how many presences each session's had, by id */
+		private final Map<String, int[]> sessions = new HashMap<>();
+		private ScheduledFuture<?> flooding;
+
+		MuxLink(XmlStreamHeadDecoder decoder) {
+			this.decoder = decoder;
+		}
+
+		@Override
+		public void channelRead(ChannelHandlerContext ctx, Object msg) {
+			ByteBuf buf = (ByteBuf)msg;
+			String s = buf.toString(UTF_8);
+			buf.release();
+			if (!decoder.started) {
+				decoder.started = true;
+				ctx.write(ctx.alloc().buffer(MUX_HEADER.length).writeBytes(MUX_HEADER));
+			} else if (s.startsWith("<handshake")) {
+				write(ctx, "<handshake/>");
+				if (floodEvery>0 && flooding==null) {
+					flooding = ctx.executor().scheduleAtFixedRate(()->{
+						for (String id: sessions.keySet()) flood(ctx, id, floodSize);
+						ctx.flush();
+					}, floodEvery, floodEvery, TimeUnit.MILLISECONDS);
+				}
+			} else if (s.startsWith("<end")) {
+				sessions.remove(attr(s, "id"));
+			} else if (s.startsWith("<s ") && s.endsWith("</s>")) {
+				String id = attr(s, "id");
+				String stanza = unescape(s.substring(s.indexOf('>')+1, s.length()-4));
+				if (stanza.startsWith("<open")) {
+					sessions.put(id, new int[1]);
+					write(ctx, in(id, "<open xmlns='urn:ietf:params:xml:ns:xmpp-framing' "
+						+ "id='fake' from='localhost' version='1.0' xml:lang='en'/>"));
+					write(ctx, in(id, "<stream:features "
+						+ "xmlns:stream='http://etherx.jabber.org/streams'/>"));
+					flood(ctx, id, loginFlood);
+				} else if (stanza.startsWith("<close")) {
+					sessions.remove(id);
+					write(ctx, in(id, "<close xmlns='urn:ietf:params:xml:ns:xmpp-framing'/>")
+						+ "<end id='" + id + "'/>");
+				} else if (stanza.startsWith("<drop")) {
+					sessions.remove(id);
+					write(ctx, "<end id='" + id + "'/>");
+				} else {
+					write(ctx, in(id, stanza));
+				}
+			} else if (s.startsWith("</")) {
+				ctx.writeAndFlush(ctx.alloc().buffer(FOOTER.length).writeBytes(FOOTER))
+					.addListener(f->ctx.close());
+			}
+		}
+
+		private void flood(ChannelHandlerContext ctx, String id, int n) {
+			int[] sent = sessions.get(id);
+			for (int i = 0; i<n && ctx.channel().isWritable(); i++) {
+				write(ctx, in(id, new String(PRESENCES[sent[0]], UTF_8)));
+				sent[0] = (sent[0]+1)%PRESENCES.length;
+			}
+		}
+
+		private void write(ChannelHandlerContext ctx, String s) {
+			ctx.write(ctx.alloc().buffer(s.length()).writeBytes(s.getBytes(UTF_8)));
+		}
+
+		private String in(String id, String stanza) {
+			return "<s id='" + id + "'>" + stanza + "</s>";
+		}
+
+		@Override
+		public void channelReadComplete(ChannelHandlerContext ctx) {
+			ctx.flush();
+		}
+
+		@Override
+		public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+			ctx.channel().config().setAutoRead(ctx.channel().isWritable());
+		}
+
+		@Override
+		public void channelInactive(ChannelHandlerContext ctx) {
+			if (flooding!=null) flooding.cancel(false);
+		}
+
+		@Override
+		public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+			ctx.close();
+		}
+	}
+
+	/** An attribute's value, assuming it's there and in single quotes */
+	static String attr(String tag, String name) {
+		int at = tag.indexOf(" " + name + "='") + name.length() + 3;
+		return tag.substring(at, tag.indexOf('\'', at));
+	}
+
+	/** Character data back to what it stood for */
+	static String unescape(String s) {
+		if (s.indexOf('&')<0) return s;
+		StringBuilder sb = new StringBuilder(s.length());
+		for (int i = 0; i<s.length(); ) {
+			char c = s.charAt(i);
+			int semi = c=='&' ? s.indexOf(';', i) : -1;
+			if (semi<0) {
+				sb.append(c);
+				i++;
+				continue;
+			}
+			String e = s.substring(i+1, semi);
+			switch (e) {
+			case "lt": sb.append('<'); break;
+			case "gt": sb.append('>'); break;
+			case "amp": sb.append('&'); break;
+			case "quot": sb.append('"'); break;
+			case "apos": sb.append('\''); break;
+			default:
+				sb.appendCodePoint(e.startsWith("#x") ? Integer.parseInt(e.substring(2), 16)
+					: Integer.parseInt(e.substring(1)));
+			}
+			i = semi+1;
+		}
+		return sb.toString();
+	}
+
+	static final byte[][] PRESENCES = new byte[1000][];
+	static {
+		for (int i = 0; i<PRESENCES.length; i++) {
+			PRESENCES[i] = ("<presence from='room@conference.localhost/user" + i
+				+ "' to='bridge@localhost'><show>away</show></presence>").getBytes(UTF_8);
+		}
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		int port = args.length>0 ? Integer.parseInt(args[0]) : 5222;
+		new FakeXmppServer(port,
+			args.length>1 ? Integer.parseInt(args[1]) : 0,
+			args.length>2 ? Integer.parseInt(args[2]) : 0,
+			args.length>3 ? Integer.parseInt(args[3]) : 0,
+			args.length>4 && "mux".equals(args[4])).start();
+		System.out.println("fake XMPP server on " + port);
+		while (true) Thread.sleep(1000);
+	}
+}
@@ -0,0 +1,191 @@
+package xmpp.load;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketClientProtocolHandler;
+import io.netty.handler.codec.http.websocketx.WebSocketClientProtocolHandler.ClientHandshakeStateEvent;
+import io.netty.handler.codec.http.websocketx.WebSocketVersion;
+import xmpp.Transport;
+
+/** What an idle session costs the bridge: sessions that open their stream,
+ * get the features and then say nothing, which is most of them most of the
+ * time. It spawns the bridge like {@link LoadTest} does, warms it up with a
+ * few sessions, then opens the rest and reports per session:
+ * - retained heap, from `jcmd GC.class_histogram` (which does a full GC
+ *   first, so it's only what's live), with the classes that grew most
+ * - direct memory in buffers, from the allocator's pinned bytes in /metrics
+ * - RSS, which has all that and the kernel's socket buffers besides
+ *
+ * Arguments are name=value: sessions (10000), top (20) classes to list.
+ * xmpp.* system properties go on to the bridge.
+ * `ant bench-main -Dbench=load.IdleFootprint -Dbench.args="sessions=10000"` */
+public class IdleFootprint {
+	static final String OPEN = "<open xmlns='urn:ietf:params:xml:ns:xmpp-framing'"
+		+ " to='localhost' version='1.0'/>";
+	static final int WARMUP = 200;
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> opt = new HashMap<>();
+		for (String a: args) {
+			int eq = a.indexOf('=');
+			if (eq<0) throw new IllegalArgumentException("expected name=value, got " + a);
+			opt.put(a.substring(0, eq), a.substring(eq+1));
+		}
+		int sessions = LoadTest.num(opt, "sessions", 10000);
+		int top = LoadTest.num(opt, "top", 20);
+
+		FakeXmppServer fake = new FakeXmppServer(5222, 0, 0, 0).start();
+		Process bridge = LoadTest.spawnBridge("127.0.0.1:5222", false);
+		Transport t = Transport.best();
+		EventLoopGroup group = t.newGroup(0);
+		try {
+			InetSocketAddress addr = new InetSocketAddress("127.0.0.1", 5280);
+			LoadTest.waitForPort(addr);
+			Bootstrap b = t.configure(new Bootstrap()).group(group).channel(t.socketChannel());
+			List<Channel> channels = new ArrayList<>();
+			open(b, addr, WARMUP, channels);
+			Snapshot before = Snapshot.take(bridge.pid(), addr);
+			open(b, addr, sessions, channels);
+			Snapshot after = Snapshot.take(bridge.pid(), addr);
+			int n = channels.size() - WARMUP;
+
+			System.out.printf("%s, %d idle sessions%n", t, n);
+			System.out.printf("heap      %.0f bytes per session%n",
+				(after.heap-before.heap)/(double)n);
+			System.out.printf("direct    %.0f bytes per session%n",
+				(after.direct-before.direct)/(double)n);
+			System.out.printf("rss       %.0f bytes per session%n",
+				(after.rss-before.rss)/(double)n);
+			System.out.println("biggest growth, bytes per session:");
+			after.classes.entrySet().stream()
+				.map(e->new Object[] {e.getKey(),
+					(e.getValue() - before.classes.getOrDefault(e.getKey(), 0L))/(double)n})
+				.filter(e->(double)e[1]>=1)
+				.sorted((x, y)->Double.compare((double)y[1], (double)x[1]))
+				.limit(top)
+				.forEach(e->System.out.printf("  %8.1f  %s%n", e[1], e[0]));
+			for (Channel ch: channels) ch.close();
+		} finally {
+			group.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+			bridge.destroy();
+			fake.stop();
+		}
+	}
+
+	/** Opens n sessions and waits for them all to have their features */
+	static void open(Bootstrap b, InetSocketAddress addr, int n, List<Channel> channels)
+		throws Exception
+	{
+		URI uri = new URI("ws://" + addr.getHostString() + ":" + addr.getPort() + "/");
+		int ramp = 200;
+		Semaphore inFlight = new Semaphore(ramp);
+		for (int i = 0; i<n; i++) {
+			inFlight.acquire();
+			Channel ch = b.clone().handler(new ChannelInitializer<Channel>() {
+				@Override
+				protected void initChannel(Channel ch) {
+					ch.pipeline().addLast(new HttpClientCodec(),
+						new HttpObjectAggregator(65536),
+						new WebSocketClientProtocolHandler(uri, WebSocketVersion.V13,
+							"xmpp", false, new DefaultHttpHeaders(), 65536),
+						new Client(inFlight));
+				}
+			}).connect(addr).addListener(f->{
+				if (!f.isSuccess()) inFlight.release();
+			}).channel();
+			channels.add(ch);
+		}
+		if (!inFlight.tryAcquire(ramp, 60, TimeUnit.SECONDS)) {
+			System.out.println("some sessions never got their features");
+		}
+	}
+
+	static class Client extends SimpleChannelInboundHandler<TextWebSocketFrame> {
+		private Semaphore ready;
+
+		Client(Semaphore ready) {
+			this.ready = ready;
+		}
+
+		@Override
+		public void userEventTriggered(ChannelHandlerContext ctx, Object evt) {
+			if (evt==ClientHandshakeStateEvent.HANDSHAKE_COMPLETE) {
+				ctx.writeAndFlush(new TextWebSocketFrame(OPEN));
+			}
+			ctx.fireUserEventTriggered(evt);
+		}
+
+		@Override
+		protected void channelRead0(ChannelHandlerContext ctx, TextWebSocketFrame f) {
+			if (ready!=null && f.text().startsWith("<stream:features")) {
+				ready.release();
+				ready = null;
+			}
+		}
+
+		@Override
+		public void channelInactive(ChannelHandlerContext ctx) {
+			if (ready!=null) ready.release();
+			ready = null;
+		}
+	}
+
+	static class Snapshot {
+		long heap, direct, rss;
+		final Map<String, Long> classes = new HashMap<>();
+
+		static Snapshot take(long pid, InetSocketAddress addr) throws Exception {
+			//let anything that's still settling settle
+			Thread.sleep(2000);
+			Snapshot s = new Snapshot();
+			s.histogram(pid);
+			for (String line: LoadTest.metrics(addr)) {
+				if (line.startsWith("xmpp_allocator_pinned_bytes{type=\"direct\"}")) {
+					s.direct = Long.parseLong(line.substring(line.lastIndexOf(' ')+1));
+				}
+			}
+			s.rss = LoadTest.rss(pid);
+			return s;
+		}
+
+		/** Lines like "   1:   12345   678900  [B (java.base@17)", then a
+		 * Total */
+		private void histogram(long pid) throws IOException, InterruptedException {
+			Process p = new ProcessBuilder(
+				Paths.get(System.getProperty("java.home"), "bin", "jcmd").toString(),
+				String.valueOf(pid), "GC.class_histogram").redirectErrorStream(true).start();
+			try (BufferedReader in = new BufferedReader(new InputStreamReader(p.getInputStream()))) {
+				for (String line; (line = in.readLine())!=null; ) {
+					String[] f = line.trim().split("\\s+");
+					if (f.length>=4 && f[0].endsWith(":")) {
+						classes.merge(f[3], Long.parseLong(f[2]), Long::sum);
+					} else if (f.length>=3 && f[0].equals("Total")) {
+						heap = Long.parseLong(f[2]);
+					}
+				}
+			}
+			p.waitFor();
+		}
+	}
+}
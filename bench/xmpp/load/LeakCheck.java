@@ -0,0 +1,258 @@
+package xmpp.load;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketClientProtocolHandler;
+import io.netty.handler.codec.http.websocketx.WebSocketClientProtocolHandler.ClientHandshakeStateEvent;
+import io.netty.handler.codec.http.websocketx.WebSocketVersion;
+import io.netty.util.ResourceLeakDetector;
+import io.netty.util.ResourceLeakDetectorFactory;
+import xmpp.Bridge;
+import xmpp.Metrics;
+import xmpp.Transport;
+import xmpp.UpstreamPool;
+import xmpp.WSServer;
+
+/** Puts sessions through the bridge over and over, ending them every way
+ * they can end, then checks nothing was left behind. That's threads, file
+ * descriptors, the session and upstream connection gauges, and buffers
+ * netty's leak detector (on paranoid, so every buffer's tracked) found
+ * were never released. The bridge, a {@link FakeXmppServer} and the
+ * clients all run in this process, on ports 15280 and 15222.
+ *
+ * Each session opens its stream, waits for the features and then, in
+ * turn:
+ * - the browser just goes, without a <close/> or a Close frame
+ * - the browser sends a Close frame
+ * - the browser sends <close/>, and the server ends its stream and hangs up
+ * - the server hangs up without ending its stream (a <drop/> to the fake)
+ * In the last two the bridge has to close the websocket itself, so any
+ * that are still open 10s later count as stuck.
+ *
+ * The numbers are taken after a warm up, so the event loops have all
+ * started, and again once it's done and settled. It exits with 1 if any of
+ * them went up. With -Dxmpp.upstream.mux the links stay up throughout, so
+ * it's the sessions on them that have to go back to nothing.
+ *
+ * Arguments are name=value: cycles (10000), concurrency (100), warmup (500)
+ * `ant bench-main -Dbench=load.LeakCheck -Dbench.args="cycles=10000"` */
+public class LeakCheck {
+	/** whether the bridge's sessions share links */
+	static final boolean MUX = Integer.getInteger("xmpp.upstream.mux", 0)>0;
+	static final String OPEN = "<open xmlns='urn:ietf:params:xml:ns:xmpp-framing'"
+		+ " to='localhost' version='1.0'/>";
+	static final String CLOSE = "<close xmlns='urn:ietf:params:xml:ns:xmpp-framing'/>";
+
+	static final LongAdder leaks = new LongAdder();
+	static final AtomicInteger stuck = new AtomicInteger();
+
+	/** Has to be in before anything makes a buffer, as the detectors are
+	 * made when the buffer classes load */
+	static void countLeaks() {
+		ResourceLeakDetector.setLevel(ResourceLeakDetector.Level.PARANOID);
+		ResourceLeakDetectorFactory.setResourceLeakDetectorFactory(new ResourceLeakDetectorFactory() {
+			@Override
+			@SuppressWarnings("deprecation")
+			public <T> ResourceLeakDetector<T> newResourceLeakDetector(
+				Class<T> resource, int samplingInterval, long maxActive)
+			{
+				return new ResourceLeakDetector<T>(resource, samplingInterval) {
+					//even with logging off
+					@Override
+					protected boolean needReport() {
+						return true;
+					}
+
+					@Override
+					protected void reportTracedLeak(String type, String records) {
+						leaks.increment();
+						super.reportTracedLeak(type, records);
+					}
+
+					@Override
+					protected void reportUntracedLeak(String type) {
+						leaks.increment();
+						super.reportUntracedLeak(type);
+					}
+				};
+			}
+		});
+	}
+
+	public static void main(String[] args) throws Exception {
+		countLeaks();
+		Map<String, String> opt = new HashMap<>();
+		for (String a: args) {
+			int eq = a.indexOf('=');
+			if (eq<0) throw new IllegalArgumentException("expected name=value, got " + a);
+			opt.put(a.substring(0, eq), a.substring(eq+1));
+		}
+		int cycles = LoadTest.num(opt, "cycles", 10000);
+		int concurrency = LoadTest.num(opt, "concurrency", 100);
+		int warmup = LoadTest.num(opt, "warmup", 500);
+
+		FakeXmppServer fake = new FakeXmppServer(15222, 0, 0, 0, MUX).start();
+		WSServer bridge = Bridge.server(15280, UpstreamPool.parse("127.0.0.1:15222"), null);
+		bridge.run();
+		InetSocketAddress addr = new InetSocketAddress("127.0.0.1", 15280);
+		LoadTest.waitForPort(addr);
+		Transport t = Transport.best();
+		EventLoopGroup group = t.newGroup(0);
+		Bootstrap b = t.configure(new Bootstrap()).group(group).channel(t.socketChannel());
+		try {
+			run(b, addr, warmup, concurrency);
+			Counts before = Counts.now();
+			long start = System.nanoTime();
+			run(b, addr, cycles, concurrency);
+			System.out.printf("%d sessions in %.1fs, %d stuck%n",
+				cycles, (System.nanoTime()-start)/1e9, stuck.get());
+			Counts after = Counts.now();
+			System.out.println("before " + before);
+			System.out.println("after  " + after);
+			boolean ok = stuck.get()==0 && leaks.sum()==0 && after.sessions==0
+				&& after.upstreams<=(MUX ? before.upstreams : 0) && after.threads<=before.threads
+				&& after.fds<=before.fds;
+			System.out.println(ok ? "nothing left behind" : "LEAKED");
+			if (!ok) System.exit(1);
+		} finally {
+			group.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+			bridge.stop();
+			fake.stop();
+		}
+	}
+
+	static void run(Bootstrap b, InetSocketAddress addr, int n, int concurrency)
+		throws Exception
+	{
+		URI uri = new URI("ws://" + addr.getHostString() + ":" + addr.getPort() + "/");
+		Semaphore inFlight = new Semaphore(concurrency);
+		for (int i = 0; i<n; i++) {
+			inFlight.acquire();
+			int how = i%4;
+			Channel ch = b.clone().handler(new ChannelInitializer<Channel>() {
+				@Override
+				protected void initChannel(Channel ch) {
+					ch.pipeline().addLast(new HttpClientCodec(),
+						new HttpObjectAggregator(65536),
+						new WebSocketClientProtocolHandler(uri, WebSocketVersion.V13,
+							"xmpp", false, new DefaultHttpHeaders(), 65536),
+						new Client(how));
+				}
+			}).connect(addr).channel();
+			ch.closeFuture().addListener(f->inFlight.release());
+			ch.eventLoop().schedule(()->{
+				if (ch.isOpen()) {
+					stuck.incrementAndGet();
+					ch.close();
+				}
+			}, 10, TimeUnit.SECONDS);
+		}
+		inFlight.acquire(concurrency);
+	}
+
+	static class Client extends SimpleChannelInboundHandler<TextWebSocketFrame> {
+		private final int how;
+		private boolean done;
+
+		Client(int how) {
+			this.how = how;
+		}
+
+		@Override
+		public void userEventTriggered(ChannelHandlerContext ctx, Object evt) {
+			if (evt==ClientHandshakeStateEvent.HANDSHAKE_COMPLETE) {
+				ctx.writeAndFlush(new TextWebSocketFrame(OPEN));
+			}
+			ctx.fireUserEventTriggered(evt);
+		}
+
+		@Override
+		protected void channelRead0(ChannelHandlerContext ctx, TextWebSocketFrame f) {
+			if (done || !f.text().startsWith("<stream:features")) return;
+			done = true;
+			switch (how) {
+			case 0:
+				ctx.close();
+				break;
+			case 1:
+				ctx.writeAndFlush(new CloseWebSocketFrame());
+				break;
+			case 2:
+				ctx.writeAndFlush(new TextWebSocketFrame(CLOSE));
+				break;
+			default:
+				ctx.writeAndFlush(new TextWebSocketFrame("<drop/>"));
+			}
+		}
+
+		@Override
+		public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+			ctx.close();
+		}
+	}
+
+	/** What there is of everything, once the bridge has had a few seconds
+	 * to finish closing whatever it's closing and the detector's had a GC */
+	static class Counts {
+		int threads;
+		long fds, sessions, upstreams, leaked;
+
+		static Counts now() throws InterruptedException {
+			for (int i = 0; i<100 && (Metrics.wsSessions.sum()>0 || Metrics.muxSessions.sum()>0
+				|| !MUX && Metrics.upstreamConnections.sum()>0); i++)
+			{
+				Thread.sleep(100);
+			}
+			Thread.sleep(2000);
+			System.gc();
+			Thread.sleep(500);
+			//the detector only looks for leaks when it's tracking a new buffer
+			for (int i = 0; i<1000; i++) ByteBufAllocator.DEFAULT.buffer(16).release();
+			Counts c = new Counts();
+			c.threads = ManagementFactory.getThreadMXBean().getThreadCount();
+			c.fds = fds();
+			c.sessions = Metrics.wsSessions.sum() + Metrics.muxSessions.sum();
+			c.upstreams = Metrics.upstreamConnections.sum();
+			c.leaked = leaks.sum();
+			return c;
+		}
+
+		static long fds() {
+			try (Stream<?> s = Files.list(Paths.get("/proc/self/fd"))) {
+				return s.count();
+			} catch (IOException e) {
+				return -1;
+			}
+		}
+
+		@Override
+		public String toString() {
+			return String.format("threads %d, fds %d, sessions %d, upstream %d, leaked buffers %d",
+				threads, fds, sessions, upstreams, leaked);
+		}
+	}
+}
@@ -0,0 +1,520 @@
+package xmpp.load;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Deflater;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketClientProtocolHandler;
+import io.netty.handler.codec.http.websocketx.WebSocketClientProtocolHandler.ClientHandshakeStateEvent;
+import io.netty.handler.codec.http.websocketx.WebSocketVersion;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtension;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketClientExtensionHandler;
+import io.netty.handler.codec.http.websocketx.extensions.compression.PerMessageDeflateClientExtensionHandshaker;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import io.netty.util.concurrent.ScheduledFuture;
+import xmpp.Histogram;
+import xmpp.Transport;
+
+/** Puts the bridge under load on one box, with nothing on the network.
+ * By default it starts a {@link FakeXmppServer} on 5222 in this process and
+ * the bridge itself (xmpp.Bridge 127.0.0.1:5222,...) as a child process, so that
+ * the bridge's memory can be measured on its own, then opens a swarm of
+ * websocket sessions against it. Each session does the RFC 7395 open, then
+ * sends messages which the fake server echoes back, and reports:
+ * - setup time, from connecting to having the stream features
+ * - round trip time of the messages, p50/p99/p99.9
+ * - throughput, messages echoed and presences received per second
+ * - the bridge's RSS, and how much of it each session costs
+ *
+ * Arguments are name=value, all optional:
+ * - sessions (1000), duration in seconds (30)
+ * - rate, messages per second per session (10). 0 sends the next as soon
+ *   as the last comes back
+ * - size, bytes per message (200)
+ * - loginFlood, floodEvery (ms), floodSize: presences from the fake server,
+ *   see there (0)
+ * - servers, how many fake servers, on 5222 up (1). The bridge gets all of
+ *   them, with down of them (0) not actually started, to see it route
+ *   round them. How the sessions got spread is printed once they're set
+ *   up, along with how many got a spare socket with -Dxmpp.upstream.warm
+ * - domains, how many different to='' domains the sessions ask for (1),
+ *   for -Dxmpp.upstream.balance=hash
+ * - deflate, true to have the sessions offer permessage-deflate, for a
+ *   bridge with -Dxmpp.deflate=true
+ * - bombs, how many of the sessions (0), with deflate, send a frame of
+ *   about 16KB that inflates to 16MB once they're set up. They should all be
+ *   closed with 1009 without the bridge's memory going anywhere, and then
+ *   count as closed in the throughput line
+ * - bridge: spawn (the default) or host:port of one that's already running,
+ *   with fake=false if it isn't talking to a fake server of ours, and pid=
+ *   to get its RSS
+ * - bridges, how many bridges to spawn (1). More than one get
+ *   -Dxmpp.reusePort=true and share the port. Only the first one's RSS is
+ *   measured
+ * - ramp, connects in flight at once (200). ramp=sessions is a reconnect
+ *   storm, everyone at once, and the upgrades per second it gets through
+ *   is printed with the setup times. Compare -Dxmpp.reusePort=true, which
+ *   accepts on every event loop, with the default single listener
+ * - slow, how many of the sessions stop reading once they're set up (0).
+ *   With a flood going this shows whether the bridge's memory stays put
+ *   when clients don't keep up. The bridge's RSS and the buffers from its
+ *   /metrics are printed every few seconds while it runs
+ * xmpp.* system properties are passed on to a spawned bridge. With
+ * -Dxmpp.tls.cert and -Dxmpp.tls.key the sessions use wss://, trusting
+ * whatever certificate the bridge has, so with ramp=sessions the upgrades
+ * per second are what a reconnect storm gets with TLS. TlsBench has what
+ * each handshake costs. With -Dxmpp.upstream.mux the fake servers take the
+ * bridge's shared links rather than a socket per session.
+ *
+ * `ant bench-main -Dbench=load.LoadTest -Dbench.args="sessions=5000 rate=1"`
+ * For more than a few thousand sessions the open file limit needs raising,
+ * and past about 28000 the local port range. */
+public class LoadTest {
+	final int sessions, duration, rate, size, ramp, slow, domains, bombs;
+	final boolean deflate;
+	final String message;
+	/** compressed already, for bombs */
+	final byte[] bomb;
+	/** the bridge's own histograms, so these line up with its /metrics */
+	final Histogram setup = new Histogram(), rtt = new Histogram();
+	/** whether the bridge is doing TLS */
+	static final boolean TLS = System.getProperty("xmpp.tls.cert")!=null;
+	final LongAdder echoes = new LongAdder(), presences = new LongAdder();
+	final AtomicInteger failed = new AtomicInteger(), closed = new AtomicInteger();
+	/** sessions the bridge closed with 1009 */
+	final AtomicInteger tooBig = new AtomicInteger();
+	volatile boolean sending;
+
+	LoadTest(Map<String, String> opt) {
+		sessions = num(opt, "sessions", 1000);
+		duration = num(opt, "duration", 30);
+		rate = num(opt, "rate", 10);
+		size = num(opt, "size", 200);
+		ramp = num(opt, "ramp", 200);
+		slow = num(opt, "slow", 0);
+		domains = Math.max(1, num(opt, "domains", 1));
+		deflate = "true".equals(opt.get("deflate"));
+		bombs = deflate ? num(opt, "bombs", 0) : 0;
+		bomb = bombs>0 ? bomb(16<<20) : null;
+		StringBuilder body = new StringBuilder();
+		while (body.length()<size-80) body.append('x');
+		message = "'><body>" + body + "</body></message>";
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> opt = new HashMap<>();
+		for (String a: args) {
+			int eq = a.indexOf('=');
+			if (eq<0) throw new IllegalArgumentException("expected name=value, got " + a);
+			opt.put(a.substring(0, eq), a.substring(eq+1));
+		}
+		LoadTest test = new LoadTest(opt);
+		List<FakeXmppServer> fakes = new ArrayList<>();
+		StringBuilder upstreams = new StringBuilder();
+		int servers = num(opt, "servers", 1), down = num(opt, "down", 0);
+		for (int i = 0; i<servers; i++) {
+			upstreams.append(i>0 ? "," : "").append("127.0.0.1:").append(5222+i);
+			if (i<down || "false".equals(opt.get("fake"))) continue;
+			fakes.add(new FakeXmppServer(5222+i, num(opt, "loginFlood", 0),
+				num(opt, "floodEvery", 0), num(opt, "floodSize", 0),
+				Integer.getInteger("xmpp.upstream.mux", 0)>0).start());
+		}
+		String bridge = opt.getOrDefault("bridge", "spawn");
+		List<Process> children = new ArrayList<>();
+		long pid = num(opt, "pid", -1);
+		if ("spawn".equals(bridge)) {
+			int bridges = num(opt, "bridges", 1);
+			for (int i = 0; i<bridges; i++) {
+				children.add(spawnBridge(upstreams.toString(), bridges>1));
+			}
+			pid = children.get(0).pid();
+			bridge = "127.0.0.1:5280";
+		}
+		try {
+			String[] hp = bridge.split(":");
+			InetSocketAddress addr = new InetSocketAddress(hp[0], Integer.parseInt(hp[1]));
+			waitForPort(addr);
+			test.run(addr, pid);
+		} finally {
+			for (Process child: children) child.destroy();
+			for (FakeXmppServer fake: fakes) fake.stop();
+		}
+	}
+
+	void run(InetSocketAddress addr, long pid) throws Exception {
+		Transport t = Transport.best();
+		EventLoopGroup group = t.newGroup(0);
+		URI uri = new URI((TLS ? "wss://" : "ws://") + addr.getHostString() + ":"
+			+ addr.getPort() + "/");
+		SslContext tls = TLS ? SslContextBuilder.forClient()
+			.trustManager(InsecureTrustManagerFactory.INSTANCE).build() : null;
+		Bootstrap b = t.configure(new Bootstrap())
+			.group(group).channel(t.socketChannel())
+			.option(ChannelOption.TCP_NODELAY, true)
+			.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 30000);
+		List<Channel> channels = new ArrayList<>(sessions);
+		try {
+			long rssIdle = rss(pid);
+			System.out.printf("%s, %d sessions against %s, bridge RSS %s%n",
+				t, sessions, uri, mb(rssIdle));
+
+			//connect them all, a few at a time
+			Semaphore inFlight = new Semaphore(ramp);
+			long start = System.nanoTime();
+			for (int i = 0; i<sessions; i++) {
+				inFlight.acquire();
+				Session s = new Session(inFlight, domains>1 ? "d" + i%domains + ".localhost" : "localhost");
+				channels.add(b.clone().handler(new ChannelInitializer<Channel>() {
+					@Override
+					protected void initChannel(Channel ch) {
+						if (tls!=null) ch.pipeline().addLast(tls.newHandler(ch.alloc(),
+							addr.getHostString(), addr.getPort()));
+						ch.pipeline().addLast(new HttpClientCodec(),
+							new HttpObjectAggregator(65536));
+						//like a browser, which (unlike netty's default) lets the
+						//server say client_no_context_takeover
+						if (deflate) ch.pipeline().addLast(new WebSocketClientExtensionHandler(
+							new PerMessageDeflateClientExtensionHandshaker(6, false, 15, true, false)));
+						//ahead of the protocol handler, which closes without passing it on
+						if (bombs>0) ch.pipeline().addLast(new ChannelInboundHandlerAdapter() {
+							@Override
+							public void channelRead(ChannelHandlerContext ctx, Object msg) {
+								if (msg instanceof CloseWebSocketFrame
+									&& ((CloseWebSocketFrame)msg).statusCode()==1009) tooBig.incrementAndGet();
+								ctx.fireChannelRead(msg);
+							}
+						});
+						ch.pipeline().addLast(
+							new WebSocketClientProtocolHandler(uri, WebSocketVersion.V13,
+								"xmpp", deflate, new DefaultHttpHeaders(), 1<<20),
+							s);
+					}
+				}).connect(addr).addListener(f->{
+					if (!f.isSuccess()) s.fail();
+				}).channel());
+			}
+			if (!inFlight.tryAcquire(ramp, 60, TimeUnit.SECONDS)) {
+				System.out.println("some sessions never got their features");
+			}
+			double rampSecs = (System.nanoTime()-start)/1e9;
+			long rssUp = rss(pid);
+			System.out.printf("setup     %s, %d failed, %.1fs for all, %.0f upgrades/s%n",
+				setup.summary(), failed.get(), rampSecs, (sessions-failed.get())/rampSecs);
+			int up = sessions - failed.get();
+			if (pid>0 && up>0) {
+				System.out.printf("memory    bridge RSS %s, %.1fKB per session%n",
+					mb(rssUp), (rssUp-rssIdle)/1024.0/up);
+			}
+			StringBuilder spread = new StringBuilder();
+			for (String line: metrics(addr)) {
+				if (line.startsWith("xmpp_upstream_node_connections{")) {
+					spread.append(' ').append(line, line.indexOf('"')+1, line.lastIndexOf('"'))
+						.append('=').append(line.substring(line.lastIndexOf(' ')+1));
+				}
+			}
+			for (String line: metrics(addr)) {
+				if (line.startsWith("xmpp_upstream_warm_total{")) {
+					spread.append(line.contains("hit") ? " warm hits=" : " misses=")
+						.append(line.substring(line.lastIndexOf(' ')+1));
+				}
+			}
+			if (spread.length()>0) System.out.printf("upstreams%s%n", spread);
+
+			if (bombs>0) {
+				//from the end, so they're not the slow ones
+				for (int i = channels.size()-1, n = 0; i>=0 && n<bombs; i--) {
+					Session s = channels.get(i).pipeline().get(Session.class);
+					if (s!=null && s.ctx!=null) {
+						s.ctx.writeAndFlush(new TextWebSocketFrame(true, WebSocketExtension.RSV1,
+							Unpooled.wrappedBuffer(bomb)));
+						n++;
+					}
+				}
+				for (int i = 0; i<100 && tooBig.get()<bombs; i++) Thread.sleep(100);
+				System.out.printf("bombs     %d of %dKB for 16MB, %d closed with 1009, bridge RSS %s%n",
+					bombs, bomb.length/1024, tooBig.get(), mb(rss(pid)));
+			}
+
+			//then the actual test
+			echoes.reset();
+			presences.reset();
+			sending = true;
+			int stalled = 0;
+			for (Channel ch: channels) {
+				Session s = ch.pipeline().get(Session.class);
+				if (s==null) continue;
+				ch.eventLoop().execute(s::start);
+				if (stalled++<slow) ch.config().setAutoRead(false);
+			}
+			start = System.nanoTime();
+			for (int i = 0; i<duration; i += 5) {
+				Thread.sleep(Math.min(5, duration-i)*1000L);
+				if (i+5<duration) {
+					System.out.printf("          %3ds bridge RSS %s, buffers %s%n",
+						i+5, mb(rss(pid)), mb(directMemory(addr)));
+				}
+			}
+			sending = false;
+			double secs = (System.nanoTime()-start)/1e9;
+			System.out.printf("rtt       %s%n", rtt.summary());
+			System.out.printf("through   %.0f messages/s, %.0f presences/s, %d closed%n",
+				echoes.sum()/secs, presences.sum()/secs, closed.get());
+			if (pid>0) System.out.printf("memory    bridge RSS %s after%n", mb(rss(pid)));
+		} finally {
+			for (Channel ch: channels) ch.close();
+			group.shutdownGracefully(0, 1, TimeUnit.SECONDS).sync();
+		}
+	}
+
+	/** One websocket, one XMPP stream. Everything here happens on the
+	 * channel's event loop */
+	class Session extends SimpleChannelInboundHandler<TextWebSocketFrame> {
+		private final Semaphore inFlight;
+		private final long created = System.nanoTime();
+		//send times by id, enough for a second or so of backlog at any rate
+		private final long[] sent = new long[1024];
+		private int next;
+		private boolean ready;
+		private ChannelHandlerContext ctx;
+		private ScheduledFuture<?> ticker;
+		private final String domain;
+
+		Session(Semaphore inFlight, String domain) {
+			this.inFlight = inFlight;
+			this.domain = domain;
+		}
+
+		@Override
+		public void userEventTriggered(ChannelHandlerContext ctx, Object evt) {
+			if (evt==ClientHandshakeStateEvent.HANDSHAKE_COMPLETE) {
+				this.ctx = ctx;
+				ctx.writeAndFlush(new TextWebSocketFrame("<open xmlns="
+					+ "'urn:ietf:params:xml:ns:xmpp-framing' to='" + domain + "' version='1.0'/>"));
+			} else if (evt==ClientHandshakeStateEvent.HANDSHAKE_TIMEOUT) {
+				fail();
+			}
+			ctx.fireUserEventTriggered(evt);
+		}
+
+		@Override
+		protected void channelRead0(ChannelHandlerContext ctx, TextWebSocketFrame f) {
+			String text = f.text();
+			if (text.startsWith("<message")) {
+				int id = id(text);
+				if (id>=0) {
+					rtt.recordNanos(System.nanoTime() - sent[id%sent.length]);
+					echoes.increment();
+					if (rate==0 && sending) send();
+				}
+			} else if (text.startsWith("<presence")) {
+				presences.increment();
+			} else if (text.startsWith("<stream:features") && !ready) {
+				ready = true;
+				setup.recordNanos(System.nanoTime() - created);
+				inFlight.release();
+			} else if (text.startsWith("<close")) {
+				ctx.close();
+			}
+		}
+
+		void start() {
+			if (!ready || ctx==null) return;
+			if (rate==0) {
+				send();
+			} else {
+				long every = TimeUnit.SECONDS.toNanos(1)/rate;
+				ticker = ctx.executor().scheduleAtFixedRate(()->{
+					if (sending) send();
+					else ticker.cancel(false);
+				}, ThreadLocalRandom.current().nextLong(every), every, TimeUnit.NANOSECONDS);
+			}
+		}
+
+		void send() {
+			int id = next++ & Integer.MAX_VALUE;
+			sent[id%sent.length] = System.nanoTime();
+			ctx.writeAndFlush(new TextWebSocketFrame(
+				"<message to='echo@localhost' type='chat' id='" + id + message));
+		}
+
+		void fail() {
+			if (!ready) {
+				ready = true;
+				failed.incrementAndGet();
+				inFlight.release();
+			}
+		}
+
+		@Override
+		public void channelInactive(ChannelHandlerContext ctx) {
+			if (ticker!=null) ticker.cancel(false);
+			if (ready) closed.incrementAndGet();
+			fail();
+		}
+
+		@Override
+		public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+			fail();
+			ctx.close();
+		}
+	}
+
+	/** That many spaces deflated, as a client would send them, with the
+	 * 00 00 ff ff every message ends in left off */
+	static byte[] bomb(int size) {
+		byte[] spaces = new byte[size];
+		Arrays.fill(spaces, (byte)' ');
+		Deflater d = new Deflater(9, true);
+		d.setInput(spaces);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[8192];
+		int n;
+		do {
+			n = d.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH);
+			out.write(buf, 0, n);
+		} while (n==buf.length);
+		d.end();
+		return Arrays.copyOf(out.toByteArray(), out.size()-4);
+	}
+
+	static int id(String text) {
+		int at = text.indexOf(" id='");
+		if (at<0) return -1;
+		int end = text.indexOf('\'', at+5);
+		try {
+			return Integer.parseInt(text, at+5, end, 10);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/** The bridge in its own JVM, with the same classpath as this one */
+	static Process spawnBridge(String upstreams, boolean reusePort) throws IOException {
+		List<String> cmd = new ArrayList<>();
+		cmd.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+		cmd.add("-cp");
+		cmd.add(System.getProperty("java.class.path"));
+		if (new File("bench/log4j2-bench.xml").exists()) {
+			cmd.add("-Dlog4j.configurationFile=bench/log4j2-bench.xml");
+		}
+		for (String name: System.getProperties().stringPropertyNames()) {
+			if (name.startsWith("xmpp.")) cmd.add("-D" + name + "=" + System.getProperty(name));
+		}
+		if (reusePort) cmd.add("-Dxmpp.reusePort=true");
+		cmd.add("xmpp.Bridge");
+		cmd.add(upstreams);
+		return new ProcessBuilder(cmd).inheritIO().start();
+	}
+
+	static void waitForPort(InetSocketAddress addr) throws InterruptedException {
+		for (int i = 0; i<300; i++) {
+			try (Socket s = new Socket()) {
+				s.connect(addr, 100);
+				return;
+			} catch (IOException e) {
+				Thread.sleep(100);
+			}
+		}
+		throw new IllegalStateException("nothing listening on " + addr);
+	}
+
+	/** How much the bridge has in pooled direct buffers, from its
+	 * /metrics, which is a better guide to what's piling up in it than RSS
+	 * as it doesn't wait for a GC */
+	static long directMemory(InetSocketAddress addr) {
+		for (String line: metrics(addr)) {
+			if (line.startsWith("xmpp_allocator_used_bytes{type=\"direct\"}")) {
+				return Long.parseLong(line.substring(line.lastIndexOf(' ')+1));
+			}
+		}
+		return -1;
+	}
+
+	/** The bridge's /metrics, a line each, or nothing if it hasn't got any.
+	 * From its admin port if it's been given one, which is plain HTTP on
+	 * loopback */
+	static String[] metrics(InetSocketAddress addr) {
+		try {
+			String admin = System.getProperty("xmpp.admin.port");
+			URLConnection c = new URL(admin!=null ? "http://127.0.0.1:" + admin + "/metrics"
+				: (TLS ? "https://" : "http://") + addr.getHostString() + ":"
+					+ addr.getPort() + "/metrics").openConnection();
+			if (c instanceof HttpsURLConnection) {
+				SSLContext ctx = SSLContext.getInstance("TLS");
+				ctx.init(null, InsecureTrustManagerFactory.INSTANCE.getTrustManagers(), null);
+				((HttpsURLConnection)c).setSSLSocketFactory(ctx.getSocketFactory());
+				((HttpsURLConnection)c).setHostnameVerifier((host, session)->true);
+			}
+			try (InputStream in = c.getInputStream()) {
+				return new String(in.readAllBytes(), UTF_8).split("\n");
+			}
+		} catch (IOException | GeneralSecurityException e) {
+			return new String[0];
+		}
+	}
+
+	/** Resident set size in bytes, from /proc, or -1 if that's not there */
+	static long rss(long pid) {
+		if (pid<=0) return -1;
+		try {
+			for (String line: Files.readAllLines(Paths.get("/proc/" + pid + "/status"))) {
+				if (line.startsWith("VmRSS:")) {
+					return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+				}
+			}
+		} catch (IOException | NumberFormatException e) {
+			// not linux, or it's gone
+		}
+		return -1;
+	}
+
+	static String mb(long bytes) {
+		return bytes<0 ? "unknown" : String.format("%.1fMB", bytes/1048576.0);
+	}
+
+	static int num(Map<String, String> opt, String name, int def) {
+		String v = opt.get(name);
+		return v==null ? def : Integer.parseInt(v);
+	}
+}
@@ -0,0 +1,91 @@
+package xmpp;
+
+import static io.netty.handler.codec.http.HttpResponseStatus.NOT_FOUND;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpRequestDecoder;
+import io.netty.handler.codec.http.HttpResponseEncoder;
+import io.netty.handler.codec.http.HttpUtil;
+
+/** A plain HTTP listener of its own for what browsers mustn't get at,
+ * turned on with xmpp.admin.port, on xmpp.admin.bind (127.0.0.1). It has
+ * /trace, which has JIDs in it, /cache, which can be emptied with a POST,
+ * and /metrics, which moves here from the browsers' port when there's an
+ * admin one.
+ *
+ * Being on another port is the whole of the protection. Checking that a
+ * request on the browsers' port came from this box isn't any, as a proxy
+ * on the same box in front of the bridge makes everything come from it. So
+ * it wants binding to loopback, or an interface only the ops network can
+ * reach, and never putting behind the proxy. There's no TLS on it and no
+ * websockets, and it gets a thread of its own, so it still answers when
+ * the bridge's loops are busy. */
+class Admin {
+	static final Logger log = LogManager.getLogger(Admin.class);
+
+	static final int PORT = Integer.getInteger("xmpp.admin.port", 0);
+	static final boolean ENABLED = PORT>0;
+	static final String BIND = System.getProperty("xmpp.admin.bind", "127.0.0.1");
+
+	/** Starts listening, if it's on */
+	static void start() {
+		if (!ENABLED) return;
+		Transport transport = Transport.best();
+		ServerBootstrap b = transport.configure(new ServerBootstrap())
+			.group(transport.newGroup(1))
+			.channel(transport.serverChannel())
+			.childHandler(new ChannelInitializer<SocketChannel>() {
+				@Override
+				protected void initChannel(SocketChannel ch) {
+					ch.pipeline()
+						.addLast("decoder", new HttpRequestDecoder())
+						.addLast("aggregator", new HttpObjectAggregator(WSServer.MAX_REQUEST))
+						.addLast("encoder", new HttpResponseEncoder())
+						.addLast("handler", new Handler());
+				}
+			});
+		b.bind(BIND, PORT).addListener(new FutureLambda<ChannelFuture>(f->{
+			if (f.isSuccess()) log.info("listening on {}:{}", BIND, PORT);
+			else log.error("couldn't bind admin to {}:{}", BIND, PORT, f.cause());
+		}));
+	}
+
+	static FullHttpResponse response(Channel ch, FullHttpRequest req) {
+		String uri = req.uri();
+		if ("/metrics".equals(uri)) return Metrics.response();
+		if (uri.equals("/trace") || uri.startsWith("/trace?")) return WireTrace.response(ch, req);
+		if (uri.equals("/cache") || uri.startsWith("/cache?")) return DiscoCache.response(ch, req);
+		return WireTrace.text(NOT_FOUND, "");
+	}
+
+	static class Handler extends SimpleChannelInboundHandler<FullHttpRequest> {
+		@Override
+		protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest req) {
+			if (!req.decoderResult().isSuccess()) {
+				ctx.close();
+				return;
+			}
+			ChannelFuture f = ctx.writeAndFlush(response(ctx.channel(), req));
+			if (!HttpUtil.isKeepAlive(req)) f.addListener(ChannelFutureListener.CLOSE);
+		}
+
+		@Override
+		public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+			log.debug("closing admin connection from {}", ctx.channel().remoteAddress(), cause);
+			ctx.close();
+		}
+	}
+}
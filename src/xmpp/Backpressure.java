@@ -0,0 +1,103 @@
+package xmpp;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.netty.bootstrap.AbstractBootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.AdaptiveRecvByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.RecvByteBufAllocator;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.util.AttributeKey;
+
+/** Flow control between the two halves of a session. Nothing stops the
+ * bridge reading from one side faster than the other side can take it, so
+ * a browser that stops reading (a phone going into a tunnel) during a busy
+ * MUC would have the server's stanzas piling up in its outbound buffer
+ * until the heap ran out. Same the other way with a slow server.
+ *
+ * So each channel's writability decides whether its peer gets read from:
+ * once more than the high water mark is waiting to go out on one side the
+ * other side stops reading, and once it's back under the low mark it
+ * starts again. TCP then pushes back on whoever's sending. What can still
+ * pile up is bounded by one read's worth on top of the high mark.
+ *
+ * The marks are xmpp.writeBuffer.low and xmpp.writeBuffer.high, in bytes.
+ * A high mark of 0 turns it off.
+ *
+ * Other things stop a channel being read too, {@link Interceptors} with too
+ * much queued or a full {@link Resumption} ring. They go through
+ * {@link #hold} and {@link #release} here rather than setting autoRead
+ * themselves, so that one of them, or the peer becoming writable, doesn't
+ * start a channel reading that another still wants stopped. */
+public class Backpressure {
+	static final int LOW = Integer.getInteger("xmpp.writeBuffer.low", 32 * 1024);
+	static final int HIGH = Integer.getInteger("xmpp.writeBuffer.high", 64 * 1024);
+	static final boolean ENABLED = HIGH>0;
+	static final WriteBufferWaterMark MARKS = new WriteBufferWaterMark(Math.min(LOW, HIGH), HIGH);
+	/** Sizes the buffers reads go into. Netty gives every channel its own,
+	 * but it's only settings, what it's learnt about a channel is in the
+	 * handle each channel gets from it, so they can all have this one */
+	static final RecvByteBufAllocator RECV = new AdaptiveRecvByteBufAllocator();
+
+	/** Why something's holding a channel's reads, as bits */
+	static final int FLOW = 1, RING = 2;
+	private static final AttributeKey<AtomicInteger> HOLDS = AttributeKey.newInstance("readHolds");
+
+	/** Sets the water marks on the channels a bootstrap makes, or on the
+	 * accepted ones for a server */
+	public static <B extends AbstractBootstrap<B, ?>> B configure(B b) {
+		if (!ENABLED) return b;
+		if (b instanceof ServerBootstrap) {
+			((ServerBootstrap)b).childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, MARKS);
+			return b;
+		}
+		return b.option(ChannelOption.WRITE_BUFFER_WATER_MARK, MARKS);
+	}
+
+	/** Reads from peer only while ch is writable. Call it when ch's
+	 * writability changes. Safe from either channel's event loop */
+	public static void follow(Channel ch, Channel peer) {
+		if (!ENABLED || peer==null) return;
+		boolean writable = ch.isWritable();
+		if (writable && holds(peer).get()!=0) return;
+		if (peer.config().isAutoRead()!=writable) {
+			peer.config().setAutoRead(writable);
+			if (!writable) Metrics.readPauses.increment();
+			//held from its own loop in the meantime
+			else if (holds(peer).get()!=0) peer.config().setAutoRead(false);
+		}
+	}
+
+	/** Stops reading from ch until it's released for the same reason */
+	static void hold(Channel ch, int reason) {
+		holds(ch).getAndUpdate(h->h | reason);
+		if (ch.config().isAutoRead()) {
+			ch.config().setAutoRead(false);
+			Metrics.readPauses.increment();
+		}
+	}
+
+	/** Reads from ch again, unless something else is holding it or peer's
+	 * backed up, in which case {@link #follow} starts it when it isn't.
+	 * peer can be null */
+	static void release(Channel ch, int reason, Channel peer) {
+		int h = holds(ch).updateAndGet(x->x & ~reason);
+		ch.config().setAutoRead(h==0 && (!ENABLED || peer==null || peer.isWritable()));
+	}
+
+	static boolean held(Channel ch, int reason) {
+		return (holds(ch).get() & reason)!=0;
+	}
+
+	private static AtomicInteger holds(Channel ch) {
+		AtomicInteger h = ch.attr(HOLDS).get();
+		if (h==null) {
+			h = new AtomicInteger();
+			AtomicInteger was = ch.attr(HOLDS).setIfAbsent(h);
+			if (was!=null) h = was;
+		}
+		return h;
+	}
+}
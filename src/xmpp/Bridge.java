@@ -1,5 +1,8 @@
 package xmpp;
 
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -8,172 +11,639 @@ import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
 import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketCloseStatus;
 import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+import io.netty.util.concurrent.ScheduledFuture;
 import static io.netty.util.CharsetUtil.UTF_8;;
+import static io.netty.handler.codec.http.HttpResponseStatus.NOT_FOUND;
+import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
 
 public class Bridge {
 	static final Logger log = LogManager.getLogger(Bridge.class);
 
-	public static class XMPPClient {
-	    private final Channel ws;
-		public final String xmppServer;
+	/** What the websocket side sees of a session, whether it has its own
+	 * socket upstream ({@link XMPPClient}) or shares one ({@link Mux}) */
+	public interface Session {
+		/** A whole message, or the start of one. Takes ownership */
+		void sendMessage(ByteBuf xml);
+		/** The rest of one. Takes ownership */
+		void sendFragment(ByteBuf part);
+		void flush();
+		void wsWritabilityChanged();
+		/** A message for the browser from the bridge itself. Takes
+		 * ownership. From any thread */
+		void reply(ByteBuf msg);
+	}
+
+	/** One browser's session. It's also the handler at the end of the
+	 * upstream socket's pipeline, so that everything a session has is in
+	 * the one object */
+	public static class XMPPClient extends ChannelInboundHandlerAdapter implements Session {
+		/** The browser's websocket. Only changes when a new one resumes the
+		 * session, see {@link Resumption} */
+	    private volatile Channel ws;
+		/** The XMPP server(s) to connect to */
+		public final UpstreamPool upstreams;
+		/** Where the upstream socket gets registered. Defaults to the
+		 * websocket's own event loop, so both halves of the session are
+		 * handled by the same thread and nothing has to hop between them */
+		private final EventLoopGroup group;
 		
 	    public XMPPClient(Channel ws, String xmppServer) {
+	    	this(ws, UpstreamPool.parse(xmppServer), null);
+	    }
+	    
+	    /** @param group shared group for the upstream sockets, or null to
+	     * use the websocket channel's event loop */
+	    public XMPPClient(Channel ws, UpstreamPool upstreams, EventLoopGroup group) {
+	    	this(ws, upstreams, group, null);
+	    }
+
+	    /** @param interceptors what the messages go through, or null */
+	    public XMPPClient(Channel ws, UpstreamPool upstreams, EventLoopGroup group,
+	    	Interceptors interceptors)
+	    {
 	    	this.ws = ws;
-			this.xmppServer = xmppServer;
+			this.upstreams = upstreams;
+			this.group = group!=null ? group : ws.eventLoop();
+			this.wsStamp = ws.pipeline().get(Metrics.ReadStamp.class);
+			this.trace = WireTrace.start(ws);
+			this.flow = interceptors!=null ? interceptors.flow() : null;
 	    }
 	    
-		public ChannelFuture f;
-		EventLoopGroup group = new NioEventLoopGroup();
+		/** The connect, started by run(), or by the first stanza if the pool
+		 * wants to know the domain first */
+		private Promise<Channel> connecting;
 		private XmlStreamHeadDecoder decoder;
+		/** The upstream socket once it's connected. Until then stanzas from
+		 * the browser wait in pending. Both only touched on the websocket's
+		 * event loop */
+		private Channel upstream;
+		private StreamHeaderCodec codec;
+		/** Where writes go in to skip the codecs, for the rest of a stanza
+		 * that's being streamed. Volatile for {@link #reply} */
+		private volatile ChannelHandlerContext raw;
+		/** Part of a stanza's gone up and maybe not the rest, so it's no
+		 * time for a keepalive */
+		private volatile boolean midStanza;
+		/** Whether anything's been read from or written to the server since
+		 * the last tick. Set on either thread, and near enough is fine */
+		private boolean read, wrote;
+		private ScheduledFuture<?> ticker;
+		private ArrayDeque<ByteBuf> pending = new ArrayDeque<>();
+		private boolean failed;
+		/** when the last reads on each side started, for the forwarding
+		 * latency */
+		private volatile Metrics.ReadStamp wsStamp;
+		private Metrics.ReadStamp upstreamStamp;
+		/** Null unless xmpp.trace is on */
+		private final WireTrace trace;
+		/** Null unless there are interceptors */
+		private final Interceptors.Flow flow;
+		/** Set once the browser's enabled resumption */
+		private volatile Resumption sm;
+		/** Ends the session if the browser doesn't come back. Set while
+		 * it's away, only touched on the upstream socket's loop */
+		private ScheduledFuture<?> expiry;
 		
-		/** The XMPP spec calls for an XML stream, which is a continuously-open
-		 * XML document which is wrapped in a <stream:stream> base element.
-		 * By the time they came to do the websockets version they'd sobered up
-		 * and realised that was ridiculous. As a result the websocket version
-		 * requires each XML stanza to be a complete discrete message. 
-		 * 
-		 * To support this, the opening <stream:stream> tag is replaced with an 
-		 * <open> element, which takes all the same attributes, except that the
-		 * namespace must be replaced with urn:ietf:params:xml:ns:xmpp-framing
-		 * 
-		 * TODO: the way this function does that is awful and probably only
-		 * works for ejabberd. For decency's sake an XML parser or at least a 
-		 * regex should be used to do the job properly */
-		private void onHeader(String header) {
-			decoder.started = true;
-			header = header.replace("<stream:stream", "<open");
-			writeToChannel(ws, 
-				header.substring(0, header.length()-"jabber:client'>".length()) 
-				+ "urn:ietf:params:xml:ns:xmpp-framing'/>");
+		/** Everything from the server goes straight across. The stream header
+		 * translation and the stream namespace fix-ups have already been done
+		 * by the codecs in the pipeline, and the buffer (a slice of the
+		 * decoder's cumulation, or a composite around one) goes into the
+		 * websocket frame as it is */
+		private void onMessage(ByteBuf buf) {
+			//lazy. assume whole stanza will be there
+			if (trace!=null) trace.message(WireTrace.TO_CLIENT, buf);
+			if (flow!=null) flow.toClient(ws, buf, raw.channel(), this::toClient);
+			else toClient(buf, false);
 		}
-		
-		/** As above. the closing </stream:stream> tag is replaced with a 
-		 * <close> element with namespace urn:ietf:params:xml:ns:xmpp-framing
-		 * */
-		private void onStreamEnd() {
-			decoder.started = false;
-			writeToChannel(ws, 
-				"<close xmlns=\"urn:ietf:params:xml:ns:xmpp-framing\"/>");
+
+		/** A message for the browser that didn't come from the server, an
+		 * answer from {@link DiscoCache} say. It's kept for resumption like
+		 * the server's, on the upstream socket's loop, but doesn't go
+		 * through the interceptors. Takes ownership, and flushes. From any
+		 * thread */
+		public void reply(ByteBuf msg) {
+			ChannelHandlerContext raw = this.raw;
+			if (raw!=null) {
+				raw.channel().eventLoop().execute(()->toClient(msg, true));
+			} else {
+				//not connected yet, so nothing to keep it for
+				Channel ws = this.ws;
+				writeToChannel(ws, msg);
+				ws.flush();
+			}
+		}
+
+		/** The rest of onMessage, once any interceptors are done with it */
+		private void toClient(ByteBuf buf, boolean later) {
+			Metrics.stanzasToClient.increment();
+			Metrics.bytesToClient.add(buf.readableBytes());
+			Resumption sm = this.sm;
+			if (sm!=null && buf.isReadable()) kept(sm, buf);
+			writeToChannel(ws, buf);
+			if (later) ws.flush();
+			Metrics.forwardToClient.recordNanos(Metrics.ReadStamp.since(upstreamStamp));
 		}
 		
-		/** Normal messages mostly just get copied straight across. The only
-		 * exception to this is messages which are in the stream namespace.
-		 * the XMPP spec has these in the overall stream document which defines
-		 * the stream namespace. For the separate documents in websockets you
-		 * need to add the namespace definition in.
-		 * 
-		 * TODO: again this should absolutely be done through something a
-		 * bit more robust */
-		private void onStanza(String s) {
-			if (s.startsWith("<stream:")) {
-				int pos = s.indexOf(" ");
-				int pos2 = s.indexOf(">");
-				if (pos2>=0 && pos2<pos) pos = pos2;
-				s = s.substring(0, pos) 
-					+ " xmlns:stream=\"http://etherx.jabber.org/streams\"" + s.substring(pos);
-			}
-			writeToChannel(ws, s);
+		public void sendMessage(String xml) {
+			sendMessage(Unpooled.copiedBuffer(xml, UTF_8));
 		}
 		
-		private void onMessage(String s) {
-			//lazy. assume whole stanza will be there
-			log.error("Proxying message");
-			if (!decoder.started) onHeader(s);
-			else if ("</stream:stream>".equals(s)) onStreamEnd();
-			else onStanza(s);
+		/** Sends a stanza from the websocket to the server, going through the
+		 * same codecs in the other direction to turn <open/> and <close/>
+		 * back into the stream header and footer. Takes ownership of the
+		 * buffer. Doesn't flush, see {@link #flush()}.
+		 *
+		 * Until the upstream socket is connected the stanzas are queued, up
+		 * to a limit, and they all go in order once it is. Calls from other
+		 * threads are moved onto the websocket's loop first, so they keep
+		 * their order too */
+		public void sendMessage(ByteBuf xml) {
+			if (!ws.eventLoop().inEventLoop()) {
+				ws.eventLoop().execute(()->sendMessage(xml));
+				return;
+			}
+			midStanza = false;
+			if (Resumption.ENABLED && Resumption.maybeControl(xml) && control(xml)) return;
+			if (trace!=null) trace.message(WireTrace.TO_SERVER, xml);
+			//counted as received even if an interceptor drops it, or the
+			//browser would send it again after a resume
+			Resumption sm = this.sm;
+			if (sm!=null && upstream!=null) sm.receivedOne();
+			if (flow!=null) flow.toServer(ws, xml, upstream, this::toServer);
+			else toServer(xml, false);
+		}
+
+		/** The rest of sendMessage, once any interceptors are done with it.
+		 * The first message picks the node, so an interceptor can change
+		 * where a session goes by changing the <open/>'s to='' */
+		private void toServer(ByteBuf xml, boolean later) {
+			if (!ws.eventLoop().inEventLoop()) {
+				//resumed on another loop while it was offloaded
+				ws.eventLoop().execute(()->toServer(xml, later));
+				return;
+			}
+			if (upstream!=null) {
+				wrote = true;
+				Metrics.stanzasToServer.increment();
+				Metrics.bytesToServer.add(xml.readableBytes());
+				upstream.write(xml, upstream.voidPromise());
+				if (later) upstream.flush();
+				Metrics.forwardToServer.recordNanos(Metrics.ReadStamp.since(wsStamp));
+			} else if (failed || pending==null) {
+				//or the browser went before the connect was done, and this
+				//was still with the interceptors
+				xml.release();
+			} else if (connecting==null) {
+				pending.add(xml);
+				connect(domain(xml));
+			} else if (pending.size()>=MAX_PENDING) {
+				xml.release();
+				log.warn("more than {} stanzas before the server connected", MAX_PENDING);
+				ws.close();
+			} else {
+				pending.add(xml);
+			}
 		}
 		
-		private static final String STREAM_TAG_PART = 
-			"<?xml version='1.0'?>\n"
-			+ "<stream:stream xmlns='jabber:client'"
-			+ " xmlns:stream='http://etherx.jabber.org/streams' ";
+		/** The rest of a stanza whose start went to sendMessage, as it comes
+		 * in from a browser sending it in several frames. It goes straight to
+		 * the socket behind the codecs, which would otherwise take a part
+		 * that happened to start with <close/> (an in-band bytestream's, say)
+		 * for the end of the stream. Until the connect's done it's tacked
+		 * on to the stanza it belongs to */
+		public void sendFragment(ByteBuf part) {
+			if (!ws.eventLoop().inEventLoop()) {
+				ws.eventLoop().execute(()->sendFragment(part));
+				return;
+			}
+			midStanza = true;
+			if (trace!=null) trace.part(WireTrace.TO_SERVER, part.readableBytes());
+			if (upstream!=null) {
+				wrote = true;
+				Metrics.bytesToServer.add(part.readableBytes());
+				raw.write(part, raw.voidPromise());
+			} else if (failed || pending==null || pending.isEmpty() || !ws.isActive()) {
+				part.release();
+			} else {
+				pending.add(Unpooled.wrappedBuffer(pending.pollLast(), part));
+			}
+		}
+
+		/** Pushes out whatever sendMessage has written. Called once the
+		 * websocket has finished a read, so a batch of frames from the
+		 * browser goes upstream in one go. Before the connect's done there's
+		 * nothing to do, the queue gets flushed when it's sent */
+		public void flush() {
+			if (!ws.eventLoop().inEventLoop()) {
+				ws.eventLoop().execute(this::flush);
+			} else if (upstream!=null) {
+				upstream.flush();
+			}
+		}
+
+		/** The connect's finished one way or the other. On the websocket's
+		 * loop, and only once. Either everything queued goes upstream, or the
+		 * browser gets told the stream's over. Not private so the benchmarks
+		 * can skip connecting */
+		void connected(Future<Channel> c) {
+			if (c.isCancelled()) {
+				//the browser's gone
+				for (ByteBuf xml; (xml = pending.poll())!=null; ) xml.release();
+			} else if (c.isSuccess()) {
+				Channel ch = c.getNow();
+				for (ByteBuf xml; (xml = pending.poll())!=null; ) {
+					Metrics.stanzasToServer.increment();
+					Metrics.bytesToServer.add(xml.readableBytes());
+					ch.write(xml, ch.voidPromise());
+				}
+				ch.flush();
+				upstream = ch;
+				if (KEEPALIVE>0) ticker = ch.eventLoop().scheduleAtFixedRate(
+					this::tick, KEEPALIVE, KEEPALIVE, TimeUnit.MILLISECONDS);
+			} else {
+				failed = true;
+				for (ByteBuf xml; (xml = pending.poll())!=null; ) xml.release();
+				ws.write(new TextWebSocketFrame(StreamHeaderCodec.CLOSE.duplicate()),
+					ws.voidPromise());
+				ws.writeAndFlush(new CloseWebSocketFrame(WebSocketCloseStatus.TRY_AGAIN_LATER))
+					.addListener(ChannelFutureListener.CLOSE);
+			}
+			pending = null;
+		}
 		
-		private static final int OPEN_TAG_PART_LEN =
-			"<open xmlns='urn:ietf:params:xml:ns:xmpp-framing'".length();
+		/** The browser isn't keeping up (or has caught up), so stop (or
+		 * start) reading from the server */
+		public void wsWritabilityChanged() {
+			//not the one that's gone, if the browser's away
+			Channel ws = this.ws;
+			if (ws.isActive()) Backpressure.follow(ws, upstream);
+		}
+
+		private static final byte[] OPEN = StartTag.bytes("open");
+		private static final byte[] TO = StartTag.bytes("to");
+
+		/** The to='' of an <open/>, which is what the browser's first stanza
+		 * should be */
+		private String domain(ByteBuf xml) {
+			StartTag tag = StartTag.get();
+			if (!tag.parse(xml) || !tag.nameIs(OPEN)) return null;
+			int to = tag.attr(TO);
+			return to<0 ? null : tag.value(to);
+		}
 		
+		/** Sets up the upstream pipeline. Split out of run() so the benchmarks
+		 * can put it on an EmbeddedChannel */
+		void initChannel(Channel ch) {
+			decoder = new XmlStreamHeadDecoder();
+			codec = new StreamHeaderCodec(decoder);
+			upstreamStamp = new Metrics.ReadStamp();
+			ch.pipeline()
+				.addLast("stamp", upstreamStamp)
+				.addLast("decoder", decoder)
+				.addLast("framing", codec)
+				.addLast("streamns", StreamNamespaceCodec.INSTANCE)
+				.addLast("handler", this);
+			FlushBatchHandler.install(ch.pipeline());
+			raw = ch.pipeline().context(decoder);
+		}
 
-		/** This is the opposite of the above. All stanza messages remain the
-		 * same, but the stream:stream open and close tags are altered.
-		 * 
-		 * For open, again all the attributes are retained, but the tagname is
-		 * changed, it's changed to an open tag rather than an empty one, and
-		 * this namespace is changed from the xmpp-framing one to the standard 
-		 * stream and jabber client ones.
-		 *  
-		 * TODO: Use a real parser/regex. If the client doesn't include the
-		 * ns declaration first, or puts in some whitespace this will break.
-		 * Also both replacement namespaces are dodgy, but are the ones 
-		 * ejabberd seems to be using */
-		public void sendMessage(String xml) {
-			if (xml.startsWith("<open")) {
-				decoder.started = false;
-				xml =  STREAM_TAG_PART + xml.substring(OPEN_TAG_PART_LEN);
-				xml = xml.replace("/>", ">");
-			}
-			String xml2 = xml;
-			f.addListener(new FutureLambda<ChannelFuture>(c->{
-				c.channel().writeAndFlush(Unpooled.copiedBuffer(xml2.getBytes()));
-			}));
+		@Override
+		public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+			read = true;
+			try {
+				if (msg instanceof ByteBuf) {
+					onMessage((ByteBuf)msg);
+				} else log.error("not a bytebuf {}", msg);
+			} catch (Throwable e) {
+				log.error("Error processing request", e);
+				dumpTrace("after an error");
+			}
+		}
+
+		/** one flush on the websocket for everything that came out of
+		 * this read, rather than one per stanza */
+		@Override
+		public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+			ws.flush();
+		}
+
+		/** the server's got a backlog, so stop reading what the
+		 * browser's sending until it clears */
+		@Override
+		public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+			Backpressure.follow(ctx.channel(), ws);
+			ctx.fireChannelWritabilityChanged();
+		}
+
+		@Override
+		public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause)
+			throws Exception {
+			log.warn("closing the connection to {}", ctx.channel().remoteAddress(), cause);
+			dumpTrace("after an error");
+			ctx.close();
+		}
+
+		/** The session's trace to the log, if it has one */
+		private void dumpTrace(String why) {
+			if (trace!=null) log.warn("{}: {}", why, trace.dump());
+		}
+
+		/** Every xmpp.upstream.keepalive ms on the upstream socket's loop.
+		 * If nothing's gone to the server since last time it gets a space
+		 * between stanzas (RFC 6120 4.6.1), to keep it and anything in
+		 * between from deciding the connection's dead. And if nothing's
+		 * come from it either, a half read stanza sitting in the decoder
+		 * gets its buffer cut down to size */
+		private void tick() {
+			if (!raw.channel().isActive()) {
+				//closed before there was a ticker to cancel
+				ticker.cancel(false);
+				return;
+			}
+			if (!wrote && !midStanza) raw.writeAndFlush(SPACE.duplicate(), raw.voidPromise());
+			if (!read) decoder.trim();
+			read = wrote = false;
 		}
 		
+		/** Connects straight away, unless the pool wants to know the domain
+		 * first, in which case the first stanza does it */
 		public XMPPClient run() throws InterruptedException {
-			Bootstrap b = new Bootstrap();
+			//otherwise the first message starts it, which with resumption
+			//might be a <resume/> that doesn't want a connection of its own
+			if (!upstreams.needsDomain() && !Resumption.ENABLED) {
+				ws.eventLoop().execute(()->connect(null));
+			}
+			//used to be the group that leaked when the browser went away. Now
+			//it's only the socket, but that still needs closing
+			Channel ws = this.ws;
+			ws.closeFuture().addListener(new FutureLambda<ChannelFuture>(
+				i->wsClosed(ws)));
+			return this;
+		}
+
+		/** On the websocket's loop */
+		private void connect(String domain) {
+			if (connecting!=null) return;
+			if (!ws.isOpen()) {
+				//the browser went before we got round to it, and stop() has
+				//already been and found nothing to close
+				for (ByteBuf xml; (xml = pending.poll())!=null; ) xml.release();
+				return;
+			}
+			Transport transport = Transport.of(group);
+			Bootstrap b = Backpressure.configure(transport.configure(new Bootstrap()));
 			b.group(group);
 			
 			b.handler(new ChannelInitializer<SocketChannel>() { // (4)
 				@Override
 				public void initChannel(SocketChannel ch) throws Exception {
-					ch.pipeline()
-						.addLast("decoder", decoder = new XmlStreamHeadDecoder())
-						.addLast("handler", new ChannelInboundHandlerAdapter() {
-					    @Override
-						public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
-							try {
-								if (msg instanceof ByteBuf) {
-									onMessage(((ByteBuf)msg).toString(UTF_8));
-								} else log.error("not a bytebuf {}", msg);
-							} catch (Throwable e) {
-								log.error("Error processing request", e);
-							}
-						}
-
-						@Override
-						public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
-							ctx.flush();
-						}
-
-						@Override
-						public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause)
-							throws Exception {
-							cause.printStackTrace();
-							ctx.close();
-						}
-					});
+					XMPPClient.this.initChannel(ch);
 				}
 			});
-			b.channel(NioSocketChannel.class);
-			f = b.connect(xmppServer, 5222);
-			f.addListener(new FutureLambda<ChannelFuture>(i->{
+			b.channel(transport.socketChannel())
+				.option(ChannelOption.RCVBUF_ALLOCATOR, Backpressure.RECV);
+			connecting = ws.eventLoop().newPromise();
+			connecting.addListener(new FutureLambda<Future<Channel>>(i->{
 				if (i.isSuccess()) {
-					log.error("bound to {}:{}", xmppServer, 5222);
-				} else {
-					log.error("failed to bind to {}:{}", xmppServer, 5222);
+					log.debug("bound to {}", i.getNow().remoteAddress());
+					Metrics.upstreamConnections.increment();
+					i.getNow().closeFuture().addListener(c->{
+						Metrics.upstreamConnections.decrement();
+						upstreamClosed();
+					});
+				} else if (!i.isCancelled()) {
+					log.warn("failed to connect to any of {}", upstreams.nodes());
 				}
+				connected(i);
 			}));
-			return this;
+			upstreams.connect(b, domain, connecting);
 		}
 		
+		/** There's no per-session event loop group any more, so closing the
+		 * socket is all the cleanup needed. The group (shared or the websocket
+		 * loop) belongs to whoever created it. Called when the websocket
+		 * closes. The server gets a </stream:stream> first if the browser
+		 * didn't send its <close/>, so it can end the session there and then
+		 * rather than wait to notice the socket's gone */
 		public void stop() {
-			f.channel().disconnect();
+			if (connecting!=null && !connecting.cancel(false) && connecting.isSuccess()) {
+				Channel ch = connecting.getNow();
+				if (ch.isActive() && ch.isWritable() && !codec.clientClosed) {
+					ch.writeAndFlush(StreamHeaderCodec.CLOSE.duplicate())
+						.addListener(ChannelFutureListener.CLOSE);
+				} else {
+					ch.close();
+				}
+			} else if (trace!=null) {
+				//otherwise upstreamClosed() does it
+				trace.end();
+			}
+		}
+
+		/** The websocket's closed. The session ends with it, unless the
+		 * browser enabled resumption and didn't end the stream, in which case
+		 * it's kept for them to come back to. On that websocket's loop */
+		private void wsClosed(Channel closed) {
+			if (closed!=ws) return;
+			Channel ch = upstream;
+			if (sm!=null && ch!=null && !codec.clientClosed) {
+				ch.eventLoop().execute(()->away(closed));
+			} else {
+				stop();
+			}
+		}
+
+		/** The browser's gone without ending the stream. What the server
+		 * sends goes into the ring until they're back, or it's full. On the
+		 * upstream socket's loop */
+		private void away(Channel closed) {
+			Resumption sm = this.sm;
+			if (closed!=ws || !upstream.isActive()) return;
+			if (sm==null) {
+				stop();
+				return;
+			}
+			log.debug("{} away, keeping its session for {}ms", sm.id, Resumption.TIMEOUT);
+			Metrics.resumeAway.increment();
+			expiry = upstream.eventLoop().schedule(()->{
+				expiry = null;
+				Metrics.resumeAway.decrement();
+				Metrics.resumeExpired.increment();
+				stop();
+			}, Resumption.TIMEOUT, TimeUnit.MILLISECONDS);
+			//the old websocket's backlog doesn't count any more
+			if (sm.full()) Backpressure.hold(upstream, Backpressure.RING);
+			else Backpressure.release(upstream, Backpressure.RING, null);
+		}
+
+		/** A message going to the browser that's just been put in the ring */
+		private void kept(Resumption sm, ByteBuf buf) {
+			switch (sm.sent(buf)) {
+			case Resumption.ASK:
+				if (expiry==null) ws.write(new TextWebSocketFrame(Resumption.REQUEST.duplicate()),
+					ws.voidPromise());
+				break;
+			case Resumption.FULL:
+				if (expiry!=null) {
+					//they'll have it when they're back
+					Backpressure.hold(upstream, Backpressure.RING);
+				} else {
+					log.debug("{} not acking, can't be resumed", sm.id);
+					sm.release();
+					this.sm = null;
+					ws.write(new TextWebSocketFrame(Resumption.FAILED.duplicate()),
+						ws.voidPromise());
+				}
+				break;
+			}
+		}
+
+		private static final byte[] XMLNS = StartTag.bytes("xmlns");
+		private static final byte[] ENABLE = StartTag.bytes("enable");
+		private static final byte[] RESUME = StartTag.bytes("resume");
+		private static final byte[] PREVID = StartTag.bytes("previd");
+		private static final byte[] SECRET = StartTag.bytes("secret");
+		private static final byte[] R = StartTag.bytes("r");
+		private static final byte[] A = StartTag.bytes("a");
+		private static final byte[] H = StartTag.bytes("h");
+
+		/** Handles the browser's <enable/>, <resume/>, <r/> or <a/> if
+		 * that's what this is, none of which go to the server.
+		 * @return whether it was, and it's been released */
+		private boolean control(ByteBuf xml) {
+			StartTag tag = StartTag.get();
+			if (!tag.parse(xml) || tag.closing) return false;
+			int ns = tag.attr(XMLNS);
+			if (ns<0 || !tag.valueIs(ns, Resumption.NS_BYTES)) return false;
+			Resumption sm = this.sm;
+			if (tag.nameIs(ENABLE)) {
+				if (sm==null && upstream!=null && !failed) sm = this.sm = Resumption.enable(this);
+				ws.write(new TextWebSocketFrame(sm!=null ? sm.enabled()
+					: Resumption.FAILED.duplicate()), ws.voidPromise());
+			} else if (tag.nameIs(RESUME)) {
+				//only as the first thing on a websocket, before it's a session
+				XMPPClient old = connecting==null && sm==null && !failed
+					? Resumption.find(attr(tag, PREVID), attr(tag, SECRET)) : null;
+				if (old==null || old==this) {
+					Metrics.resumeFailed.increment();
+					ws.write(new TextWebSocketFrame(Resumption.FAILED.duplicate()), ws.voidPromise());
+				} else {
+					long h;
+					try {
+						h = Long.parseLong(attr(tag, H)) & 0xffffffffL;
+					} catch (NumberFormatException e) {
+						h = -1;
+					}
+					old.resume(ws, h);
+				}
+			} else if (tag.nameIs(R)) {
+				if (sm!=null) ws.write(new TextWebSocketFrame(sm.ack()), ws.voidPromise());
+			} else if (tag.nameIs(A)) {
+				int h = tag.attr(H);
+				if (sm!=null && h>=0) {
+					try {
+						sm.acked((int)Long.parseLong(tag.value(h)));
+					} catch (NumberFormatException e) {
+						log.debug("bad ack {}", tag.value(h));
+					}
+					//back from being away to a full ring, and now there's room
+					if (Backpressure.held(upstream, Backpressure.RING) && !sm.full()) {
+						Backpressure.release(upstream, Backpressure.RING, ws);
+					}
+				}
+			} else {
+				return false;
+			}
+			xml.release();
+			return true;
+		}
+
+		private static String attr(StartTag tag, byte[] name) {
+			int i = tag.attr(name);
+			return i<0 ? null : tag.value(i);
+		}
+
+		/** A new websocket's come for the session, with what it says the
+		 * browser had before. It's handed over on the upstream socket's loop,
+		 * so nothing from the server can go to the old one in between. The
+		 * new websocket's own session carries on if it can't be, as a fresh
+		 * one that hasn't connected yet */
+		void resume(Channel ch, long h) {
+			upstream.eventLoop().execute(()->reattach(ch, h));
+		}
+
+		private void reattach(Channel ch, long h) {
+			Resumption sm = this.sm;
+			//gone in the meantime, or the old websocket's still open, and
+			//whoever it is doesn't get to take it off them
+			if (sm==null || !upstream.isActive() || expiry==null) {
+				if (sm!=null && expiry==null) log.debug("{} still connected, not resumed", sm.id);
+				Metrics.resumeFailed.increment();
+				ch.writeAndFlush(new TextWebSocketFrame(Resumption.FAILED.duplicate()),
+					ch.voidPromise());
+				return;
+			}
+			ws = ch;
+			wsStamp = ch.pipeline().get(Metrics.ReadStamp.class);
+			expiry.cancel(false);
+			expiry = null;
+			Metrics.resumeAway.decrement();
+			//the session the websocket came with is left to go when it does,
+			//having never connected
+			ch.attr(ak).set(this);
+			ch.closeFuture().addListener(new FutureLambda<ChannelFuture>(i->wsClosed(ch)));
+			log.debug("{} resumed", sm.id);
+			Metrics.resumed.increment();
+			sm.replay(ch, h);
+			ch.flush();
+			//nothing more from the server until there's an ack if it's full
+			if (sm.full()) Backpressure.hold(upstream, Backpressure.RING);
+			else Backpressure.release(upstream, Backpressure.RING, ch);
+		}
+
+		/** The server's hung up, so the websocket goes too. The browser gets
+		 * a <close/> if the server didn't send its own first, as RFC 7395
+		 * says the stream has to be ended before the websocket is. On the
+		 * upstream socket's loop */
+		private void upstreamClosed() {
+			if (ticker!=null) ticker.cancel(false);
+			Resumption sm = this.sm;
+			if (sm!=null) {
+				sm.release();
+				if (expiry!=null) {
+					expiry.cancel(false);
+					expiry = null;
+					Metrics.resumeAway.decrement();
+				}
+			}
+			if (trace!=null) trace.end();
+			Channel ws = this.ws;
+			if (!ws.isActive()) return;
+			if (!codec.serverClosed) {
+				dumpTrace("the server hung up");
+				ws.write(new TextWebSocketFrame(StreamHeaderCodec.CLOSE.duplicate()),
+					ws.voidPromise());
+			}
+			ws.writeAndFlush(new CloseWebSocketFrame(codec.serverClosed
+					? WebSocketCloseStatus.NORMAL_CLOSURE
+					: WebSocketCloseStatus.ENDPOINT_UNAVAILABLE))
+				.addListener(ChannelFutureListener.CLOSE);
 		}
 
 		public static byte[] bufToBytes(ByteBuf buf) {
@@ -184,31 +654,99 @@ public class Bridge {
 	}	
 
 	public static void writeToChannel(Channel ch, String data) {
-		log.error("writing to WS {}", data);
-		if (data.length()>0) ch.writeAndFlush(
-			new TextWebSocketFrame(data.replace("<?xml version='1.0'?>", ""))
-		);
+		log.trace("writing to WS {}", data);
+		if (data.length()>0) ch.writeAndFlush(new TextWebSocketFrame(data));
 	}
 	
-	public static final AttributeKey<XMPPClient> ak = 
+	/** Takes ownership of the buffer, which goes out as the frame's content
+	 * without being copied. Doesn't flush, the upstream handler does that
+	 * at the end of each read */
+	public static void writeToChannel(Channel ch, ByteBuf data) {
+		if (data.isReadable()) ch.write(new TextWebSocketFrame(data), ch.voidPromise());
+		else data.release();
+	}
+	
+	public static final AttributeKey<Session> ak = 
 		AttributeKey.newInstance("xmpp");
 	
-    public static void main(String[] args) throws InterruptedException {
-		new WSServer(5280)
+	/** Number of threads in a group shared by all the upstream sockets. The
+	 * default of 0 puts each upstream socket on its websocket's event loop */
+	static final int UPSTREAM_THREADS = 
+		Integer.getInteger("xmpp.upstreamThreads", 0);
+
+	/** Most stanzas a browser can send before the upstream socket is
+	 * connected. There's only supposed to be the <open/> */
+	static final int MAX_PENDING = Integer.getInteger("xmpp.maxPending", 16);
+
+	/** ms without anything going to the server before it gets a space */
+	static final int KEEPALIVE = Integer.getInteger("xmpp.upstream.keepalive", 60000);
+	private static final ByteBuf SPACE = StartTag.constant(" ");
+	
+	/** The websocket server with everything wired up to sessions, not yet
+	 * running, with the interceptors in xmpp.interceptors if there are any */
+	public static WSServer server(int port, UpstreamPool upstreams, EventLoopGroup upstreamGroup) {
+		return server(port, upstreams, upstreamGroup, Interceptors.load());
+	}
+
+	/** @param interceptors what every session's messages go through, or null */
+	public static WSServer server(int port, UpstreamPool upstreams, EventLoopGroup upstreamGroup,
+		Interceptors interceptors)
+	{
+		Mux mux = Mux.ENABLED ? new Mux(upstreams, interceptors) : null;
+		return new WSServer(port)
+		/** Plain HTTP is only for scraping the metrics, and only if there's
+		 * no {@link Admin} port for them to be on */
+		.httpHandler((ch, req)->{
+			if (!Admin.ENABLED && "/metrics".equals(req.uri())) return Metrics.response();
+			HttpResponse res = new DefaultFullHttpResponse(HTTP_1_1, NOT_FOUND);
+			HttpUtil.setContentLength(res, 0);
+			return res;
+		})
 		/** Create an XMPP client connection to match, and store a link to it
 		 * on the inbound websocket channel */
 		.wsUpgrade((ch, req)->{
+			if (interceptors!=null) interceptors.upgraded(ch, req);
+			if (mux!=null) {
+				ch.attr(ak).set(mux.session(ch));
+				return;
+			}
 			try {
-				ch.attr(ak).set(new XMPPClient(ch, args[0]).run());
+				ch.attr(ak).set(new XMPPClient(ch, upstreams, upstreamGroup, interceptors).run());
 			} catch (InterruptedException e) {
 				log.error("Failed to create XMPPClient");
 			}
 		})
-		.wsHandler((channel, payload)->{
-			channel.attr(ak).get().sendMessage(new String(payload));
+		.wsBufHandler((channel, payload)->{
+			channel.attr(ak).get().sendMessage(payload);
 		})
-		
-		.run();
+		//a link or an interceptor can't take part of a message, so WSServer
+		//puts them together
+		.wsFragmentHandler(mux!=null || interceptors!=null ? null : (channel, part)->{
+			channel.attr(ak).get().sendFragment(part);
+		})
+		.wsReadComplete(channel->{
+			Session session = channel.attr(ak).get();
+			if (session!=null) session.flush();
+		})
+		.wsWritabilityChanged(channel->{
+			Session session = channel.attr(ak).get();
+			if (session!=null) session.wsWritabilityChanged();
+		});
+	}
+
+    public static void main(String[] args) throws InterruptedException {
+		EventLoopGroup upstreamGroup = UPSTREAM_THREADS>0 
+			? Transport.best().newGroup(UPSTREAM_THREADS) : null;
+		if (upstreamGroup!=null) Metrics.watch("upstream", upstreamGroup);
+		UpstreamPool upstreams = UpstreamPool.parse(args[0]).startProbes(
+			upstreamGroup!=null ? upstreamGroup : Transport.best().newGroup(1));
+		Metrics.watch(upstreams);
+		WSServer server = server(5280, upstreams, upstreamGroup);
+		//on a SIGTERM stop listening first, so that with xmpp.reusePort
+		//another bridge on the port gets the new connections
+		Runtime.getRuntime().addShutdownHook(new Thread(server::stop, "stop"));
+		server.run();
+		Admin.start();
 		//Don't let the app finish. This should be a thread join....
 		while (true) Thread.sleep(1000);
 	}
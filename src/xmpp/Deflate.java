@@ -0,0 +1,316 @@
+package xmpp;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.ContinuationWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketCloseStatus;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtension;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtensionData;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtensionDecoder;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtensionEncoder;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtensionFilter;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtensionFilterProvider;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketServerExtension;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketServerExtensionHandler;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketServerExtensionHandshaker;
+import io.netty.handler.codec.http.websocketx.extensions.compression.PerMessageDeflateServerExtensionHandshaker;
+
+/** RFC 7692 permessage-deflate on the websockets, turned on with
+ * xmpp.deflate=true. XMPP compresses well, presence floods and roster
+ * pushes by 5-10x, which matters to phones.
+ *
+ * The catch is memory. A deflater that keeps its context from one message
+ * to the next (which is where most of the win is, stanzas look a lot like
+ * the ones before them) holds about 256KB of zlib state for as long as the
+ * session's open. So only xmpp.deflate.maxContexts sessions (1024) get to
+ * keep one. The rest are told server_no_context_takeover, which the server
+ * can say whether the client asked or not, and get a fresh deflater for
+ * each message that's gone again afterwards. Likewise
+ * xmpp.deflate.clientNoContextTakeover=true stops clients keeping context,
+ * so the inflater here doesn't have to either. Browsers go along with that,
+ * but some libraries (netty's, by default) refuse the whole extension.
+ *
+ * The rest of the settings:
+ * - xmpp.deflate.level, 1-9 (6)
+ * - xmpp.deflate.windowBits, the server's window, 9-15 (15). Anything
+ *   under 15 needs jzlib in libs, as the JDK's zlib can't do it
+ * - xmpp.deflate.clientWindowBits, asked of clients that allow it (15)
+ * - xmpp.deflate.minSize, frames smaller than this many bytes go out as
+ *   they are (128)
+ *
+ * What comes in is inflated here rather than by netty, whose decoder
+ * inflates a whole frame however big it comes out. A 64KB frame of zeros is
+ * 60MB or so inflated, so one frame would do what xmpp.ws.maxMessageSize is
+ * there to stop. This one gives up as soon as a message gets past it, and
+ * closes with 1009 like WSServer does for one that came in too big.
+ *
+ * DeflateBench has what each costs, and LoadTest bombs=N sends some. */
+public class Deflate {
+	static final Logger log = LogManager.getLogger(Deflate.class);
+
+	public static final boolean ENABLED = Boolean.getBoolean("xmpp.deflate");
+	static final int LEVEL = Integer.getInteger("xmpp.deflate.level", 6);
+	static final int WINDOW_BITS = windowBits();
+	static final int CLIENT_WINDOW_BITS = Integer.getInteger("xmpp.deflate.clientWindowBits", 15);
+	static final boolean CLIENT_NO_CONTEXT = Boolean.getBoolean("xmpp.deflate.clientNoContextTakeover");
+	static final int MAX_CONTEXTS = Integer.getInteger("xmpp.deflate.maxContexts", 1024);
+	static final int MIN_SIZE = Integer.getInteger("xmpp.deflate.minSize", 128);
+
+	static final String NAME = "permessage-deflate";
+	static final String SERVER_NO_CONTEXT = "server_no_context_takeover";
+	static final String CLIENT_NO_CONTEXT_PARAM = "client_no_context_takeover";
+	static final String SERVER_MAX_WINDOW = "server_max_window_bits";
+
+	/** sessions holding on to a deflater between messages */
+	private static final AtomicInteger contexts = new AtomicInteger();
+
+	private static final WebSocketExtensionFilterProvider FILTER = new WebSocketExtensionFilterProvider() {
+		private final WebSocketExtensionFilter small =
+			f->f.content().readableBytes()<MIN_SIZE;
+
+		@Override
+		public WebSocketExtensionFilter encoderFilter() {
+			return small;
+		}
+
+		@Override
+		public WebSocketExtensionFilter decoderFilter() {
+			return WebSocketExtensionFilter.NEVER_SKIP;
+		}
+	};
+
+	/** Netty's, which does the negotiating and compressing once the offer's
+	 * been doctored. A smaller window than the client asks for is only allowed if there's
+	 * something that can do it */
+	private static final PerMessageDeflateServerExtensionHandshaker DEFLATE =
+		new PerMessageDeflateServerExtensionHandshaker(LEVEL, WINDOW_BITS<15,
+			CLIENT_WINDOW_BITS, true, CLIENT_NO_CONTEXT, FILTER);
+
+	/** The handler to go in a new HTTP connection's pipeline ahead of
+	 * WSServer's, or null if it's off */
+	static ChannelHandler handler(Channel ch) {
+		return ENABLED ? new WebSocketServerExtensionHandler(new Handshaker(ch)) : null;
+	}
+
+	public static int contexts() {
+		return contexts.get();
+	}
+
+	/** One per connection, so that a session that gets a context can give
+	 * it back when it closes */
+	static class Handshaker implements WebSocketServerExtensionHandshaker {
+		private final Channel ch;
+
+		Handshaker(Channel ch) {
+			this.ch = ch;
+		}
+
+		@Override
+		public WebSocketServerExtension handshakeExtension(WebSocketExtensionData offer) {
+			if (!NAME.equals(offer.name())) return null;
+			Map<String, String> params = new HashMap<>(offer.parameters());
+			boolean context = !params.containsKey(SERVER_NO_CONTEXT) && takeContext();
+			if (!context) params.put(SERVER_NO_CONTEXT, null);
+			if (CLIENT_NO_CONTEXT) params.put(CLIENT_NO_CONTEXT_PARAM, null);
+			WebSocketServerExtension ext;
+			try {
+				if (WINDOW_BITS<15) {
+					String asked = params.get(SERVER_MAX_WINDOW);
+					int bits = asked==null ? 15 : Integer.parseInt(asked);
+					params.put(SERVER_MAX_WINDOW, String.valueOf(Math.min(bits, WINDOW_BITS)));
+				}
+				ext = DEFLATE.handshakeExtension(new WebSocketExtensionData(NAME, params));
+				if (ext!=null) ext = new Bounded(ext);
+			} catch (NumberFormatException e) {
+				//a window size that isn't a number, so no deflate for them
+				ext = null;
+			}
+			if (context) {
+				if (ext==null) contexts.decrementAndGet();
+				else ch.closeFuture().addListener(f->contexts.decrementAndGet());
+			}
+			return ext;
+		}
+	}
+
+	/** What netty agreed to, with its decoder swapped for {@link Inflate} */
+	static class Bounded implements WebSocketServerExtension {
+		private final WebSocketServerExtension agreed;
+
+		Bounded(WebSocketServerExtension agreed) {
+			this.agreed = agreed;
+		}
+
+		@Override
+		public int rsv() {
+			return agreed.rsv();
+		}
+
+		@Override
+		public WebSocketExtensionEncoder newExtensionEncoder() {
+			return agreed.newExtensionEncoder();
+		}
+
+		@Override
+		public WebSocketExtensionDecoder newExtensionDecoder() {
+			return new Inflate(agreed.newReponseData().parameters()
+				.containsKey(CLIENT_NO_CONTEXT_PARAM));
+		}
+
+		@Override
+		public WebSocketExtensionData newReponseData() {
+			return agreed.newReponseData();
+		}
+	}
+
+	/** Inflates the compressed messages, a bit at a time, counting as it
+	 * goes. With client_no_context_takeover the inflater's dropped after
+	 * each message, otherwise it's kept for the session */
+	static class Inflate extends WebSocketExtensionDecoder {
+		/** the end of every message, which clients leave off */
+		private static final byte[] TAIL = {0, 0, (byte)0xff, (byte)0xff};
+		private static final int CHUNK = 8192;
+
+		private final boolean noContext;
+		private Inflater inflater;
+		/** in a compressed message, so its continuations are too */
+		private boolean compressing;
+		/** inflated so far of the message */
+		private int messageSize;
+		/** it's been closed, so anything else is dropped */
+		private boolean closing;
+
+		Inflate(boolean noContext) {
+			this.noContext = noContext;
+		}
+
+		@Override
+		public boolean acceptInboundMessage(Object msg) throws Exception {
+			if (!super.acceptInboundMessage(msg)) return false;
+			WebSocketFrame f = (WebSocketFrame) msg;
+			if (f instanceof ContinuationWebSocketFrame) return compressing || closing;
+			return (f instanceof TextWebSocketFrame || f instanceof BinaryWebSocketFrame)
+				&& (closing || (f.rsv() & WebSocketExtension.RSV1)!=0);
+		}
+
+		@Override
+		protected void decode(ChannelHandlerContext ctx, WebSocketFrame f, List<Object> out) {
+			if (closing) return;
+			if (!(f instanceof ContinuationWebSocketFrame)) messageSize = 0;
+			compressing = !f.isFinalFragment();
+			if (inflater==null) inflater = new Inflater(true);
+			CompositeByteBuf content = ctx.alloc().compositeBuffer();
+			boolean fits;
+			try {
+				fits = inflate(ctx, f.content().nioBuffer(), content)
+					&& (!f.isFinalFragment() || inflate(ctx, ByteBuffer.wrap(TAIL), content));
+			} catch (DataFormatException e) {
+				content.release();
+				log.warn("bad deflate data from {}: {}", ctx.channel().remoteAddress(), e.getMessage());
+				close(ctx, WebSocketCloseStatus.INVALID_PAYLOAD_DATA);
+				return;
+			}
+			if (!fits) {
+				content.release();
+				log.warn("message of more than {} bytes from {}", WSServer.MAX_MESSAGE,
+					ctx.channel().remoteAddress());
+				close(ctx, WebSocketCloseStatus.MESSAGE_TOO_BIG);
+				return;
+			}
+			if (f.isFinalFragment() && (noContext || inflater.finished())) {
+				if (noContext) end();
+				else inflater.reset();
+			}
+			int rsv = f.rsv() & ~WebSocketExtension.RSV1;
+			out.add(f instanceof TextWebSocketFrame ? new TextWebSocketFrame(f.isFinalFragment(), rsv, content)
+				: f instanceof BinaryWebSocketFrame ? new BinaryWebSocketFrame(f.isFinalFragment(), rsv, content)
+				: new ContinuationWebSocketFrame(f.isFinalFragment(), rsv, content));
+		}
+
+		/** All of in, onto out, or false as soon as the message is more than
+		 * MAX_MESSAGE. Never more than a byte past it gets inflated */
+		private boolean inflate(ChannelHandlerContext ctx, ByteBuffer in, CompositeByteBuf out)
+			throws DataFormatException
+		{
+			inflater.setInput(in);
+			for (;;) {
+				ByteBuf chunk = ctx.alloc().buffer(Math.min(CHUNK, WSServer.MAX_MESSAGE - messageSize + 1));
+				int n = inflater.inflate(chunk.nioBuffer(0, chunk.capacity()));
+				if (n==0) {
+					//it wants more input, or it's got to the end of the stream
+					chunk.release();
+					return true;
+				}
+				out.addComponent(true, chunk.writerIndex(n));
+				messageSize += n;
+				if (messageSize>WSServer.MAX_MESSAGE) return false;
+			}
+		}
+
+		/** What WSServer does */
+		private void close(ChannelHandlerContext ctx, WebSocketCloseStatus status) {
+			closing = true;
+			end();
+			Channel ch = ctx.channel();
+			if (ch.isActive()) {
+				ch.writeAndFlush(new CloseWebSocketFrame(status)).addListener(ChannelFutureListener.CLOSE);
+			}
+		}
+
+		private void end() {
+			if (inflater!=null) inflater.end();
+			inflater = null;
+		}
+
+		@Override
+		public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+			end();
+			super.channelInactive(ctx);
+		}
+
+		@Override
+		public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+			end();
+			super.handlerRemoved(ctx);
+		}
+	}
+
+	private static boolean takeContext() {
+		for (int n; (n = contexts.get())<MAX_CONTEXTS; ) {
+			if (contexts.compareAndSet(n, n+1)) return true;
+		}
+		return false;
+	}
+
+	/** What was asked for, if it can be had */
+	private static int windowBits() {
+		int bits = Integer.getInteger("xmpp.deflate.windowBits", 15);
+		if (bits>=15) return 15;
+		try {
+			Class.forName("com.jcraft.jzlib.Deflater");
+			return Math.max(bits, PerMessageDeflateServerExtensionHandshaker.MIN_WINDOW_SIZE);
+		} catch (ClassNotFoundException e) {
+			log.warn("xmpp.deflate.windowBits={} needs jzlib, using 15", bits);
+			return 15;
+		}
+	}
+}
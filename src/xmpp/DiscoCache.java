@@ -0,0 +1,545 @@
+package xmpp;
+
+import static io.netty.handler.codec.http.HttpResponseStatus.METHOD_NOT_ALLOWED;
+import static io.netty.handler.codec.http.HttpResponseStatus.OK;
+import static io.netty.util.CharsetUtil.UTF_8;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.ScheduledFuture;
+
+/** Answers the service discovery a web client does at every login itself,
+ * rather than asking the server every time. disco#info to the server and
+ * its components, and to contacts for their XEP-0115 caps, gets the same
+ * answer for everyone for hours at a time. An {@link Interceptor}, so it's
+ * on with xmpp.interceptors=xmpp.DiscoCache, first in the list.
+ *
+ * What's cached is <iq type='get'/>s with just an empty <query/> in, in
+ * one of the namespaces in xmpp.cache.namespaces (disco#info, comma
+ * separated), that are either:
+ * - to a domain, no @ or /, keyed on the namespace, domain and node. A
+ *   user's own account or a contact can answer differently for each asker
+ * - for a caps node, uri#ver with a SHA-1 ver, to anyone, keyed on just the
+ *   node. Only once the answer's been checked against the ver, XEP-0115's
+ *   way, as otherwise any contact could answer for a popular client's node
+ *   with whatever they liked, for everybody
+ * An answer only counts if it's from who was asked, not just the same id.
+ * A hit goes straight back to the browser with its own id, from the to=''
+ * it asked and to its JID if the bridge has seen it, and the server never
+ * hears about it. Only results are kept, errors go back to whoever asked
+ * each time. While a query's on its way to the server, the same query
+ * from anyone else waits for its answer rather than going too. Should that
+ * not come within 10s, or not check out, or the one who asked go, they get
+ * a wait error and try again.
+ *
+ * xmpp.cache.size answers (10000) are kept, least recently used out first,
+ * for up to xmpp.cache.ttl seconds (600). /metrics has hits, misses and
+ * how many waited on someone else's query. /cache on the {@link Admin}
+ * port lists what's there, and a POST to /cache?invalidate=<domain, node
+ * or *> drops those, for when a server's been upgraded say. */
+public class DiscoCache implements Interceptor {
+	static final Logger log = LogManager.getLogger(DiscoCache.class);
+
+	static final String DISCO_INFO = "http://jabber.org/protocol/disco#info";
+	static final int SIZE = Integer.getInteger("xmpp.cache.size", 10000);
+	static final long TTL = TimeUnit.SECONDS.toNanos(Integer.getInteger("xmpp.cache.ttl", 600));
+	static final long FLIGHT_TIMEOUT = TimeUnit.SECONDS.toNanos(10);
+	static final Set<String> NAMESPACES =
+		Set.of(System.getProperty("xmpp.cache.namespaces", DISCO_INFO).split("\\s*,\\s*"));
+
+	private static final byte[] IQ = StartTag.bytes("<iq");
+	private static final byte[] IQ_END = StartTag.bytes("</iq>");
+	private static final byte[] QUERY = StartTag.bytes("query");
+	private static final byte[] TYPE = StartTag.bytes("type");
+	private static final byte[] GET = StartTag.bytes("get");
+	private static final byte[] RESULT = StartTag.bytes("result");
+	private static final byte[] ERROR = StartTag.bytes("error");
+	private static final byte[] ID = StartTag.bytes("id");
+	private static final byte[] TO = StartTag.bytes("to");
+	private static final byte[] FROM = StartTag.bytes("from");
+	private static final byte[] XMLNS = StartTag.bytes("xmlns");
+	private static final byte[] NODE = StartTag.bytes("node");
+	private static final byte[] IDENTITY = StartTag.bytes("identity");
+	private static final byte[] CATEGORY = StartTag.bytes("category");
+	private static final byte[] LANG = StartTag.bytes("xml:lang");
+	private static final byte[] NAME = StartTag.bytes("name");
+	private static final byte[] FEATURE = StartTag.bytes("feature");
+	private static final byte[] VAR = StartTag.bytes("var");
+	private static final byte[] X = StartTag.bytes("x");
+	private static final byte[] DATA = StartTag.bytes("jabber:x:data");
+	private static final byte[] FIELD = StartTag.bytes("field");
+	private static final byte[] VALUE = StartTag.bytes("value");
+
+	/** For waiters whose query went unanswered */
+	private static final Answer FAILED = new Answer(StartTag.bytes("<iq type='error'"),
+		StartTag.bytes("><error type='wait'><resource-constraint"
+			+ " xmlns='urn:ietf:params:xml:ns:xmpp-stanzas'/></error></iq>"));
+
+	/** Least recently used first. Only disco queries get near it, so one
+	 * lock is plenty */
+	private static final Map<String, Answer> cache = new LinkedHashMap<String, Answer>(64, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Answer> eldest) {
+			return size()>SIZE;
+		}
+	};
+	/** Queries on their way to the server, by key */
+	private static final Map<String, Flight> flights = new ConcurrentHashMap<>();
+
+	private static final AttributeKey<State> STATE = AttributeKey.newInstance("discoCache");
+
+	/** An answer, less its id, from and to */
+	static final class Answer {
+		/** <iq and the rest of its attributes */
+		final byte[] head;
+		/** from the end of the start tag on */
+		final byte[] body;
+		final long expires = System.nanoTime() + TTL;
+
+		Answer(byte[] head, byte[] body) {
+			this.head = head;
+			this.body = body;
+		}
+	}
+
+	/** One query that can be answered from the cache. Once it's gone to
+	 * the server, who else wants its answer */
+	static final class Flight {
+		final String key;
+		/** who was asked, still escaped */
+		final String to;
+		/** what a caps answer has to hash to, or null if it isn't one */
+		final String ver;
+		final long started = System.nanoTime();
+		private List<Waiter> waiters = new ArrayList<>(2);
+		/** fails it if there's no answer */
+		ScheduledFuture<?> timeout;
+
+		Flight(String key, String to, String ver) {
+			this.key = key;
+			this.to = to;
+			this.ver = ver;
+		}
+
+		/** False if it's been answered, or given up on */
+		synchronized boolean join(Waiter w) {
+			if (waiters==null || System.nanoTime()-started>FLIGHT_TIMEOUT) return false;
+			waiters.add(w);
+			return true;
+		}
+
+		/** Everyone waiting, once */
+		synchronized List<Waiter> finish() {
+			List<Waiter> w = waiters;
+			waiters = null;
+			return w!=null ? w : List.of();
+		}
+	}
+
+	static final class Waiter {
+		final Channel ws;
+		/** as they were in the query, still escaped */
+		final String id, to;
+
+		Waiter(Channel ws, String id, String to) {
+			this.ws = ws;
+			this.id = id;
+			this.to = to;
+		}
+	}
+
+	/** Each websocket's */
+	static final class State {
+		/** the browser's full JID, once an answer to it's gone past */
+		volatile String jid;
+		/** queries it's asked that others are waiting on, by id */
+		final Map<String, Flight> asked = new ConcurrentHashMap<>();
+	}
+
+	@Override
+	public void upgraded(Channel ws, HttpRequest req) {
+		State st = new State();
+		ws.attr(STATE).set(st);
+		ws.closeFuture().addListener(x->{
+			for (Flight f: st.asked.values()) {
+				if (f.timeout!=null) f.timeout.cancel(false);
+				fail(f);
+			}
+			st.asked.clear();
+		});
+	}
+
+	@Override
+	public ByteBuf toServer(Channel ws, ByteBuf msg) {
+		if (!StartTag.startsWith(msg, IQ)) return msg;
+		State st = ws.attr(STATE).get();
+		if (st==null) return msg;
+		StartTag tag = StartTag.get();
+		if (!tag.parse(msg) || tag.empty || tag.closing) return msg;
+		int type = tag.attr(TYPE), id = tag.attr(ID), to = tag.attr(TO);
+		if (type<0 || !tag.valueIs(type, GET) || id<0 || to<0) return msg;
+		String idValue = tag.value(id), toValue = tag.value(to);
+		Flight q = query(msg, tag, toValue);
+		if (q==null) return msg;
+
+		Answer a = get(q.key);
+		if (a!=null) {
+			Metrics.cacheHits.increment();
+			msg.release();
+			reply(ws, a, idValue, toValue);
+			return null;
+		}
+		Flight f = flights.get(q.key);
+		if (f!=null && f.join(new Waiter(ws, idValue, toValue))) {
+			Metrics.cacheCoalesced.increment();
+			msg.release();
+			return null;
+		}
+		//nobody's asked, or they've been waiting too long
+		if (f!=null) fail(f);
+		q.timeout = ws.eventLoop().schedule(()->{
+			if (st.asked.remove(idValue, q)) fail(q);
+		}, FLIGHT_TIMEOUT, TimeUnit.NANOSECONDS);
+		flights.put(q.key, q);
+		st.asked.put(idValue, q);
+		Metrics.cacheMisses.increment();
+		return msg;
+	}
+
+	@Override
+	public ByteBuf toClient(Channel ws, ByteBuf msg) {
+		if (!StartTag.startsWith(msg, IQ)) return msg;
+		State st = ws.attr(STATE).get();
+		if (st==null || st.jid!=null && st.asked.isEmpty()) return msg;
+		StartTag tag = StartTag.get();
+		if (!tag.parse(msg) || tag.closing) return msg;
+		int type = tag.attr(TYPE);
+		boolean result = type>=0 && tag.valueIs(type, RESULT);
+		if (st.jid==null && result && tag.attr(TO)>=0) st.jid = tag.value(tag.attr(TO));
+		if (st.asked.isEmpty() || !result && (type<0 || !tag.valueIs(type, ERROR))) return msg;
+		int id = tag.attr(ID), from = tag.attr(FROM);
+		if (id<0 || from<0) return msg;
+		String idValue = tag.value(id);
+		Flight f = st.asked.get(idValue);
+		//anyone can send an iq with the right id, so it has to be from who
+		//was asked too
+		if (f==null || !sameJid(tag.value(from), f.to) || !st.asked.remove(idValue, f)) return msg;
+		f.timeout.cancel(false);
+		Answer a = answer(msg, tag);
+		//a caps answer goes to others asking other contacts, so it has to
+		//be what the node says it is, and an error's no use to them either
+		boolean shared = f.ver==null || result && verified(f.ver, msg, tag.empty ? -1 : tag.end);
+		if (result && shared) {
+			synchronized (cache) {
+				cache.put(f.key, a);
+			}
+		}
+		flights.remove(f.key, f);
+		for (Waiter w: f.finish()) reply(w.ws, shared ? a : FAILED, w.id, w.to);
+		return msg;
+	}
+
+	/** The flight a query would be if its answer can be kept, or null. Not
+	 * registered anywhere yet. tag's the iq's, and gets reused */
+	private static Flight query(ByteBuf msg, StartTag tag, String to) {
+		int end = tag.end;
+		ByteBuf rest = msg.slice(end, msg.writerIndex()-end);
+		if (!tag.parse(rest) || !tag.empty || !tag.nameIs(QUERY)) return null;
+		int xmlns = tag.attr(XMLNS);
+		if (xmlns<0) return null;
+		String ns = tag.value(xmlns);
+		if (!NAMESPACES.contains(ns)) return null;
+		int node = tag.attr(NODE);
+		String nodeValue = node<0 ? null : tag.value(node);
+		//nothing else in the iq
+		int i = tag.end;
+		while (i<rest.writerIndex() && StartTag.isWhitespace(rest.getByte(i))) i++;
+		if (!StartTag.startsWith(rest.slice(i, rest.writerIndex()-i), IQ_END)) return null;
+
+		int hash = nodeValue!=null ? nodeValue.lastIndexOf('#') : -1;
+		if (hash>0 && DISCO_INFO.equals(ns)) {
+			//only SHA-1, which is all anyone uses, as the query doesn't say
+			String ver = nodeValue.substring(hash+1);
+			if (ver.length()!=28) return null;
+			return new Flight(ns + ' ' + nodeValue, to, ver);
+		}
+		if (to.indexOf('@')>=0 || to.indexOf('/')>=0) return null;
+		return new Flight(ns + ' ' + to.toLowerCase() + (nodeValue!=null ? ' ' + nodeValue : ""), to, null);
+	}
+
+	/** Whether from is the JID that was asked. Only the resource is case
+	 * sensitive, near enough */
+	private static boolean sameJid(String from, String asked) {
+		int slash = asked.indexOf('/');
+		if (slash<0) return from.equalsIgnoreCase(asked);
+		return from.length()==asked.length() && from.regionMatches(true, 0, asked, 0, slash)
+			&& from.regionMatches(slash, asked, slash, asked.length()-slash);
+	}
+
+	/** Whether the <query/> starting at i hashes to ver, by XEP-0115 5.1.
+	 * Duplicates, which 5.4 says not to trust, or anything that won't parse
+	 * don't */
+	private static boolean verified(String ver, ByteBuf msg, int i) {
+		if (i<0) return false;
+		StartTag tag = StartTag.get();
+		ByteBuf d = msg.duplicate();
+		List<String> identities = new ArrayList<>(), features = new ArrayList<>();
+		List<List<String>> forms = new ArrayList<>();
+		//the form and field being read, FORM_TYPE's value first in a form
+		//and the var first in a field
+		List<String> form = null, field = null;
+		boolean query = false;
+		for (;;) {
+			d.readerIndex(i);
+			if (!tag.parse(d)) return false;
+			i = tag.end;
+			if (!query) {
+				if (!tag.nameIs(QUERY) || tag.empty || tag.closing) return false;
+				query = true;
+			} else if (tag.closing) {
+				if (tag.nameIs(QUERY)) break;
+				if (tag.nameIs(FIELD) && form!=null && field!=null) {
+					if (!formField(form, field)) return false;
+					field = null;
+				} else if (tag.nameIs(X) && form!=null) {
+					if (form.get(0)!=null) forms.add(form);
+					form = null;
+				}
+			} else if (tag.nameIs(IDENTITY) && form==null) {
+				identities.add(attr(tag, CATEGORY) + '/' + attr(tag, TYPE) + '/'
+					+ attr(tag, LANG) + '/' + attr(tag, NAME));
+			} else if (tag.nameIs(FEATURE) && form==null) {
+				features.add(attr(tag, VAR));
+			} else if (tag.nameIs(X) && !tag.empty && tag.attr(XMLNS)>=0
+				&& tag.valueIs(tag.attr(XMLNS), DATA))
+			{
+				form = new ArrayList<>();
+				form.add(null);
+			} else if (tag.nameIs(FIELD) && form!=null) {
+				field = new ArrayList<>();
+				field.add(attr(tag, VAR));
+				if (tag.empty && !formField(form, field)) return false;
+				if (tag.empty) field = null;
+			} else if (tag.nameIs(VALUE) && field!=null) {
+				if (tag.empty) {
+					field.add("");
+				} else {
+					int lt = msg.indexOf(i, msg.writerIndex(), (byte)'<');
+					if (lt<0) return false;
+					field.add(unescape(msg.toString(i, lt-i, UTF_8)));
+					i = lt;
+				}
+			}
+		}
+		StringBuilder sb = new StringBuilder();
+		if (!append(sb, identities) || !append(sb, features)) return false;
+		forms.sort((a, b)->OCTETS.compare(a.get(0), b.get(0)));
+		for (int f = 0; f<forms.size(); f++) {
+			if (f>0 && forms.get(f).get(0).equals(forms.get(f-1).get(0))) return false;
+			sb.append(forms.get(f).get(0)).append('<');
+			List<String> fields = forms.get(f).subList(1, forms.get(f).size());
+			fields.sort(OCTETS);
+			for (String s: fields) sb.append(s);
+		}
+		try {
+			byte[] sha1 = MessageDigest.getInstance("SHA-1").digest(sb.toString().getBytes(UTF_8));
+			return Base64.getEncoder().encodeToString(sha1).equals(ver);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/** Adds a field, var then values, to its form as the string it hashes
+	 * as, or FORM_TYPE's value as the form's first. False if there's more
+	 * than one FORM_TYPE */
+	private static boolean formField(List<String> form, List<String> field) {
+		if ("FORM_TYPE".equals(field.get(0))) {
+			if (form.get(0)!=null || field.size()!=2) return false;
+			form.set(0, field.get(1));
+			return true;
+		}
+		StringBuilder sb = new StringBuilder(field.get(0)).append('<');
+		List<String> values = field.subList(1, field.size());
+		values.sort(OCTETS);
+		for (String v: values) sb.append(v).append('<');
+		form.add(sb.toString());
+		return true;
+	}
+
+	/** Sorted, each followed by a <. False if there's one twice */
+	private static boolean append(StringBuilder sb, List<String> list) {
+		list.sort(OCTETS);
+		for (int i = 0; i<list.size(); i++) {
+			if (i>0 && list.get(i).equals(list.get(i-1))) return false;
+			sb.append(list.get(i)).append('<');
+		}
+		return true;
+	}
+
+	/** i;octet, which is code point order rather than String's UTF-16 */
+	private static final Comparator<String> OCTETS = (a, b)->{
+		for (int i = 0, j = 0; i<a.length() && j<b.length(); ) {
+			int x = a.codePointAt(i), y = b.codePointAt(j);
+			if (x!=y) return Integer.compare(x, y);
+			i += Character.charCount(x);
+			j += Character.charCount(y);
+		}
+		return Integer.compare(a.codePointCount(0, a.length()), b.codePointCount(0, b.length()));
+	};
+
+	/** An attribute unescaped, or "" if it isn't there */
+	private static String attr(StartTag tag, byte[] name) {
+		int i = tag.attr(name);
+		return i<0 ? "" : unescape(tag.value(i));
+	}
+
+	/** XML's five entities and character references */
+	static String unescape(String s) {
+		int amp = s.indexOf('&');
+		if (amp<0) return s;
+		StringBuilder sb = new StringBuilder(s.length());
+		int from = 0;
+		for (; amp>=0; amp = s.indexOf('&', from)) {
+			int semi = s.indexOf(';', amp);
+			if (semi<0) break;
+			sb.append(s, from, amp);
+			String e = s.substring(amp+1, semi);
+			switch (e) {
+			case "lt": sb.append('<'); break;
+			case "gt": sb.append('>'); break;
+			case "amp": sb.append('&'); break;
+			case "quot": sb.append('"'); break;
+			case "apos": sb.append('\''); break;
+			default:
+				try {
+					sb.appendCodePoint(e.startsWith("#x") ? Integer.parseInt(e.substring(2), 16)
+						: e.startsWith("#") ? Integer.parseInt(e.substring(1)) : -1);
+				} catch (IllegalArgumentException x) {
+					sb.append(s, amp, semi+1);
+				}
+			}
+			from = semi+1;
+		}
+		return sb.append(s, from, s.length()).toString();
+	}
+
+	private static Answer get(String key) {
+		synchronized (cache) {
+			Answer a = cache.get(key);
+			if (a!=null && System.nanoTime()-a.expires>0) {
+				cache.remove(key);
+				return null;
+			}
+			return a;
+		}
+	}
+
+	/** A server's answer without its id, from or to */
+	private static Answer answer(ByteBuf msg, StartTag tag) {
+		ByteBuf head = msg.alloc().heapBuffer(64);
+		head.writeBytes(IQ);
+		for (int i = 0; i<tag.attrCount; i++) {
+			if (tag.attrNameIs(i, ID) || tag.attrNameIs(i, TO) || tag.attrNameIs(i, FROM)) continue;
+			int s = tag.attrNameStart[i];
+			head.writeByte(' ').writeBytes(msg, s, tag.valueEnd[i]+1-s);
+		}
+		int bodyStart = tag.empty ? tag.end-2 : tag.end-1;
+		byte[] body = new byte[msg.writerIndex()-bodyStart];
+		msg.getBytes(bodyStart, body);
+		byte[] h = new byte[head.readableBytes()];
+		head.readBytes(h).release();
+		return new Answer(h, body);
+	}
+
+	/** Sends an answer to a browser as the answer to its query */
+	private static void reply(Channel ws, Answer a, String id, String from) {
+		Bridge.Session session = ws.attr(Bridge.ak).get();
+		State st = ws.attr(STATE).get();
+		if (session==null || !ws.isActive()) return;
+		String jid = st!=null ? st.jid : null;
+		StringBuilder attrs = new StringBuilder(id.length() + from.length() + 64);
+		attr(attrs, "id", id);
+		attr(attrs, "from", from);
+		if (jid!=null) attr(attrs, "to", jid);
+		byte[] b = attrs.toString().getBytes(UTF_8);
+		ByteBuf msg = ws.alloc().buffer(a.head.length + b.length + a.body.length);
+		msg.writeBytes(a.head).writeBytes(b).writeBytes(a.body);
+		session.reply(msg);
+	}
+
+	/** Always in single quotes, which a value from double ones might have */
+	private static void attr(StringBuilder sb, String name, String value) {
+		sb.append(' ').append(name).append("='").append(value.replace("'", "&apos;")).append('\'');
+	}
+
+	/** Everyone waiting on f gets told to try again */
+	private static void fail(Flight f) {
+		flights.remove(f.key, f);
+		for (Waiter w: f.finish()) reply(w.ws, FAILED, w.id, w.to);
+	}
+
+	static int size() {
+		synchronized (cache) {
+			return cache.size();
+		}
+	}
+
+	/** Drops the answers from a domain, or for a node, or all of them
+	 * with *. How many went */
+	public static int invalidate(String what) {
+		int n = 0;
+		synchronized (cache) {
+			for (Iterator<String> i = cache.keySet().iterator(); i.hasNext(); ) {
+				String[] parts = i.next().split(" ");
+				boolean match = "*".equals(what);
+				for (int p = 1; p<parts.length && !match; p++) match = parts[p].equalsIgnoreCase(what);
+				if (match) {
+					i.remove();
+					n++;
+				}
+			}
+		}
+		log.info("invalidated {} cached answers for {}", n, what);
+		return n;
+	}
+
+	/** /cache, on the {@link Admin} port */
+	static FullHttpResponse response(Channel ch, FullHttpRequest req) {
+		List<String> what = new QueryStringDecoder(req.uri()).parameters().get("invalidate");
+		if (what!=null) {
+			if (!HttpMethod.POST.equals(req.method())) return WireTrace.text(METHOD_NOT_ALLOWED, "");
+			return WireTrace.text(OK, invalidate(what.get(0)) + " invalidated\n");
+		}
+		StringBuilder sb = new StringBuilder();
+		long now = System.nanoTime();
+		synchronized (cache) {
+			for (Map.Entry<String, Answer> e: cache.entrySet()) {
+				sb.append(e.getKey()).append(' ')
+					.append(TimeUnit.NANOSECONDS.toSeconds(e.getValue().expires-now)).append("s\n");
+			}
+		}
+		return WireTrace.text(OK, sb.toString());
+	}
+}
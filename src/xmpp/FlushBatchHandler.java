@@ -0,0 +1,61 @@
+package xmpp;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufHolder;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.ChannelPromise;
+
+/** Both directions of the bridge write each stanza without flushing, and
+ * flush once when the read that produced them is done. A big read (the
+ * roster and a few hundred presences straight after login) could then pile
+ * up a lot in the outbound buffer before anything goes out, so this puts a
+ * cap on it. Once there are more than maxWrites writes or maxBytes bytes
+ * waiting, it flushes early.
+ *
+ * Goes first in the pipeline, next to the socket, so it sees what's actually
+ * going out. It counts per channel, so each channel needs its own. Turned
+ * off by setting both limits to 0, see {@link #install}. */
+public class FlushBatchHandler extends ChannelOutboundHandlerAdapter {
+	static final int MAX_WRITES = Integer.getInteger("xmpp.flush.maxWrites", 64);
+	static final int MAX_BYTES = Integer.getInteger("xmpp.flush.maxBytes", 64 * 1024);
+
+	private final int maxWrites;
+	private final int maxBytes;
+	private int writes;
+	private long bytes;
+
+	public FlushBatchHandler(int maxWrites, int maxBytes) {
+		this.maxWrites = maxWrites>0 ? maxWrites : Integer.MAX_VALUE;
+		this.maxBytes = maxBytes>0 ? maxBytes : Integer.MAX_VALUE;
+	}
+
+	/** Puts one at the front of the pipeline, unless it's been configured
+	 * off */
+	public static void install(ChannelPipeline p) {
+		if (MAX_WRITES>0 || MAX_BYTES>0) {
+			p.addFirst("flushbatch", new FlushBatchHandler(MAX_WRITES, MAX_BYTES));
+		}
+	}
+
+	@Override
+	public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+		bytes += size(msg);
+		ctx.write(msg, promise);
+		if (++writes>=maxWrites || bytes>=maxBytes) flush(ctx);
+	}
+
+	@Override
+	public void flush(ChannelHandlerContext ctx) {
+		writes = 0;
+		bytes = 0;
+		ctx.flush();
+	}
+
+	private static int size(Object msg) {
+		if (msg instanceof ByteBuf) return ((ByteBuf)msg).readableBytes();
+		if (msg instanceof ByteBufHolder) return ((ByteBufHolder)msg).content().readableBytes();
+		return 0;
+	}
+}
@@ -0,0 +1,106 @@
+package xmpp;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/** A latency histogram in microseconds, good to about 1.5%. Values under
+ * 64us get a bucket each, after that each power of two is split into 64,
+ * up to 2^38us, which is a lot longer than anything here takes. Recording
+ * is an index calculation and bumping a LongAdder, so it's safe from any
+ * thread and doesn't allocate once the adders it uses have been made.
+ * They're only made for buckets something lands in, which is a few dozen.
+ *
+ * {@link Metrics} exports them as powers of two, which is what Prometheus
+ * wants anyway, as cumulative buckets it can estimate quantiles from.
+ * LoadTest reports its percentiles from the fine ones. */
+public class Histogram {
+	static final int SUB = 64;
+	static final int SHIFT = 6;
+	static final int BUCKETS = (38-SHIFT+2)*SUB;
+	/** exported, as le=2^i us for i below this, and +Inf */
+	static final int EXPORTED = 36;
+
+	private final AtomicReferenceArray<LongAdder> counts = new AtomicReferenceArray<>(BUCKETS);
+	private final LongAdder sumNanos = new LongAdder();
+	private final LongAccumulator maxMicros = new LongAccumulator(Math::max, 0);
+
+	public void recordNanos(long nanos) {
+		if (nanos<0) nanos = 0;
+		long micros = nanos/1000;
+		int i = index(micros);
+		LongAdder c = counts.get(i);
+		if (c==null) {
+			counts.compareAndSet(i, null, new LongAdder());
+			c = counts.get(i);
+		}
+		c.increment();
+		sumNanos.add(nanos);
+		maxMicros.accumulate(micros);
+	}
+
+	static int index(long v) {
+		if (v<SUB) return (int)v;
+		int exp = 63 - Long.numberOfLeadingZeros(v) - SHIFT;
+		return Math.min(exp*SUB + (int)(v>>>exp), BUCKETS-1);
+	}
+
+	/** Smallest value that'd land in the bucket */
+	static long value(int index) {
+		if (index<SUB) return index;
+		int exp = index/SUB - 1;
+		return (long)(index%SUB + SUB) << exp;
+	}
+
+	private long count(int index) {
+		LongAdder c = counts.get(index);
+		return c==null ? 0 : c.sum();
+	}
+
+	public long count() {
+		long n = 0;
+		for (int i = 0; i<BUCKETS; i++) n += count(i);
+		return n;
+	}
+
+	public long max() {
+		return maxMicros.get();
+	}
+
+	/** q from 0 to 1, in us */
+	public long percentile(double q) {
+		long want = Math.max(1, (long)Math.ceil(q*count())), seen = 0;
+		for (int i = 0; i<BUCKETS; i++) {
+			seen += count(i);
+			if (seen>=want) return Math.min(value(i), max());
+		}
+		return max();
+	}
+
+	public String summary() {
+		return String.format("n=%d p50=%dus p99=%dus p99.9=%dus max=%dus",
+			count(), percentile(0.5), percentile(0.99), percentile(0.999), max());
+	}
+
+	/** Appends it in the Prometheus text format, in seconds. Labels go in
+	 * as they are, eg to="client", or null for none */
+	void write(StringBuilder sb, String name, String labels) {
+		String sep = labels==null ? "" : labels + ",";
+		long seen = 0;
+		int i = 0;
+		for (int e = 0; e<EXPORTED; e++) {
+			//everything in a bucket starting at or below 2^e
+			for (int last = index(1L<<e); i<=last; i++) seen += count(i);
+			sb.append(name).append("_bucket{").append(sep).append("le=\"")
+				.append((1L<<e)/1e6).append("\"} ").append(seen).append('\n');
+		}
+		for (; i<BUCKETS; i++) seen += count(i);
+		sb.append(name).append("_bucket{").append(sep).append("le=\"+Inf\"} ")
+			.append(seen).append('\n');
+		String plain = labels==null ? "" : "{" + labels + "}";
+		sb.append(name).append("_sum").append(plain).append(' ')
+			.append(sumNanos.sum()/1e9).append('\n');
+		sb.append(name).append("_count").append(plain).append(' ')
+			.append(seen).append('\n');
+	}
+}
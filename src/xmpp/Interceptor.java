@@ -0,0 +1,51 @@
+package xmpp;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.handler.codec.http.HttpRequest;
+
+/** Something that gets to look at every message of every session on its
+ * way through the bridge, and pass it on, change it or drop it. Auth
+ * checks on the <open/>, spam filters, audit logs, rewriting the to='' on
+ * the <open/> so the session goes to another node, and so on.
+ *
+ * Messages are as the browser sees them, RFC 7395 framing both ways, so
+ * it's <open/> and <close/> rather than stream headers, and a stanza
+ * coming in several websocket frames is put together first. Each one's in
+ * a buffer of UTF-8 that belongs to the interceptor until it's passed on:
+ * return it, or something else in its place (releasing it), or null to
+ * drop it (releasing it). Don't release it and then throw. Throwing drops
+ * the message and closes the session.
+ *
+ * An interceptor that's quick, a few microseconds and never blocking, can
+ * say so with {@link #inline()} and it's run right there on the event
+ * loop. Anything else, a database, a remote call, a regex over every
+ * message, runs on a separate pool so the thousands of other sessions on
+ * the loop don't wait for it. See {@link Interceptors} for how, and what
+ * it costs.
+ *
+ * One instance does every session, from several threads, so keep what
+ * belongs to a session in the websocket's attributes. Closing the
+ * websocket ends the session. */
+public interface Interceptor {
+	/** A message from the browser, for the server */
+	default ByteBuf toServer(Channel ws, ByteBuf msg) {
+		return msg;
+	}
+
+	/** A message from the server, for the browser */
+	default ByteBuf toClient(Channel ws, ByteBuf msg) {
+		return msg;
+	}
+
+	/** A browser's just opened its websocket with this request, before
+	 * any messages. Always on the event loop, so only for noting what's
+	 * needed later (a token from the URL, a cookie) in the attributes */
+	default void upgraded(Channel ws, HttpRequest req) {
+	}
+
+	/** Whether it's fine to run on the event loop */
+	default boolean inline() {
+		return true;
+	}
+}
@@ -0,0 +1,204 @@
+package xmpp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoop;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.util.concurrent.DefaultEventExecutorGroup;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.EventExecutorGroup;
+
+/** The {@link Interceptor}s every session's messages go through, in
+ * order. xmpp.interceptors is a comma separated list of classes with
+ * no-argument constructors, or embed the bridge and hand
+ * {@link Bridge#server} one of these.
+ *
+ * The ones at the start that are inline run on the event loop, as the
+ * message comes in. From the first one that isn't, the rest of the chain
+ * runs on the offload pool, xmpp.interceptors.threads threads (2 per core),
+ * and then the message hops back to the loop to be sent. So put the quick
+ * ones first. Each session sticks to one of the pool's threads, which runs
+ * its tasks in order, so a session's messages come out in the order they
+ * went in, each way. A session with xmpp.interceptors.maxQueued messages
+ * (64) waiting on the pool in one direction stops being read from that
+ * side until it's down to half, so a slow interceptor backs up into TCP
+ * rather than memory. Except for a shared link ({@link Mux}), which can't
+ * stop for one session.
+ *
+ * InterceptorBench has what each way adds to a message. Inline is nearly
+ * free, offloading is two thread hops. With none configured nothing's
+ * different from before, not even an object per session.
+ *
+ * Stanzas that come in several frames are put together before they go
+ * through, as an interceptor can't do much with half of one. */
+public class Interceptors {
+	static final Logger log = LogManager.getLogger(Interceptors.class);
+
+	static final String CLASSES = System.getProperty("xmpp.interceptors");
+	static final int THREADS = Integer.getInteger("xmpp.interceptors.threads",
+		Runtime.getRuntime().availableProcessors()*2);
+	static final int MAX_QUEUED = Integer.getInteger("xmpp.interceptors.maxQueued", 64);
+
+	private final Interceptor[] chain;
+	/** where the first that isn't inline is, or chain.length */
+	private final int offloadFrom;
+	private final EventExecutorGroup offload;
+
+	/** @param offload where the ones that aren't inline run, or null for
+	 * a group of xmpp.interceptors.threads if any need it. Its executors
+	 * have to run their tasks one at a time in order, as a
+	 * {@link DefaultEventExecutorGroup}'s do */
+	public Interceptors(List<? extends Interceptor> chain, EventExecutorGroup offload) {
+		this.chain = chain.toArray(new Interceptor[0]);
+		int i = 0;
+		while (i<this.chain.length && this.chain[i].inline()) i++;
+		offloadFrom = i;
+		if (offloadFrom<this.chain.length && offload==null) {
+			//daemons, as nothing's lost if they stop with the bridge
+			offload = new DefaultEventExecutorGroup(THREADS,
+				new DefaultThreadFactory("interceptors", true));
+			Metrics.watch("interceptors", offload);
+		}
+		this.offload = offload;
+	}
+
+	/** The ones in xmpp.interceptors, or null if there aren't any. Throws
+	 * if one won't load, as a bridge that's meant to be checking something
+	 * shouldn't start without it */
+	static Interceptors load() {
+		if (CLASSES==null || CLASSES.isBlank()) return null;
+		List<Interceptor> list = new ArrayList<>();
+		for (String name: CLASSES.split(",")) {
+			try {
+				list.add((Interceptor)Class.forName(name.trim()).getDeclaredConstructor().newInstance());
+			} catch (ReflectiveOperationException | ClassCastException e) {
+				throw new IllegalStateException("can't load interceptor " + name.trim(), e);
+			}
+		}
+		Interceptors i = new Interceptors(list, null);
+		log.info("interceptors {}, offloading from {}", list, i.offloadFrom<list.size()
+			? list.get(i.offloadFrom) : "none");
+		return i;
+	}
+
+	/** Tells them all about a new websocket */
+	void upgraded(Channel ws, HttpRequest req) {
+		for (Interceptor i: chain) {
+			try {
+				i.upgraded(ws, req);
+			} catch (RuntimeException e) {
+				log.warn("{} failed, closing {}", i, ws.remoteAddress(), e);
+				ws.close();
+				return;
+			}
+		}
+	}
+
+	/** For a new session */
+	Flow flow() {
+		return new Flow(offloadFrom<chain.length ? offload.next() : null);
+	}
+
+	/** Where a message goes once it's through, on the loop it came in on.
+	 * later is whether it's been offloaded, in which case whatever flush
+	 * the read was going to end with has been and gone */
+	interface Then {
+		void accept(ByteBuf msg, boolean later);
+	}
+
+	@Override
+	public String toString() {
+		return Arrays.toString(chain);
+	}
+
+	/** One session's way through. The counts are each only touched on
+	 * the loop their side's read on */
+	final class Flow {
+		private final EventExecutor executor;
+		private int queuedUp, queuedDown;
+		private boolean pausedUp, pausedDown;
+
+		private Flow(EventExecutor executor) {
+			this.executor = executor;
+		}
+
+		/** On the websocket's loop. upstream is only for following its
+		 * writability after a pause, and can be null */
+		void toServer(Channel ws, ByteBuf msg, Channel upstream, Then then) {
+			msg = apply(true, ws, msg, 0, offloadFrom);
+			if (msg==null) return;
+			if (executor==null) {
+				then.accept(msg, false);
+				return;
+			}
+			if (++queuedUp>=MAX_QUEUED && !pausedUp) pausedUp = pause(ws);
+			EventLoop loop = ws.eventLoop();
+			ByteBuf in = msg;
+			executor.execute(()->{
+				ByteBuf out = apply(true, ws, in, offloadFrom, chain.length);
+				loop.execute(()->{
+					if (--queuedUp<=MAX_QUEUED/2 && pausedUp) pausedUp = resume(ws, upstream);
+					if (out!=null) then.accept(out, true);
+				});
+			});
+		}
+
+		/** On the upstream socket's loop, or with upstream null on the
+		 * websocket's for a shared link, which is never paused */
+		void toClient(Channel ws, ByteBuf msg, Channel upstream, Then then) {
+			msg = apply(false, ws, msg, 0, offloadFrom);
+			if (msg==null) return;
+			if (executor==null) {
+				then.accept(msg, false);
+				return;
+			}
+			if (++queuedDown>=MAX_QUEUED && !pausedDown && upstream!=null) {
+				pausedDown = pause(upstream);
+			}
+			EventLoop loop = upstream!=null ? upstream.eventLoop() : ws.eventLoop();
+			ByteBuf in = msg;
+			executor.execute(()->{
+				ByteBuf out = apply(false, ws, in, offloadFrom, chain.length);
+				loop.execute(()->{
+					if (--queuedDown<=MAX_QUEUED/2 && pausedDown) pausedDown = resume(upstream, ws);
+					if (out!=null) then.accept(out, true);
+				});
+			});
+		}
+	}
+
+	private ByteBuf apply(boolean toServer, Channel ws, ByteBuf msg, int from, int to) {
+		for (int i = from; i<to && msg!=null; i++) {
+			try {
+				msg = toServer ? chain[i].toServer(ws, msg) : chain[i].toClient(ws, msg);
+			} catch (RuntimeException e) {
+				log.warn("{} failed, closing {}", chain[i], ws.remoteAddress(), e);
+				msg.release();
+				ws.close();
+				return null;
+			}
+		}
+		return msg;
+	}
+
+	/** Stops reading from ch. Always true, for the paused flag */
+	private static boolean pause(Channel ch) {
+		Backpressure.hold(ch, Backpressure.FLOW);
+		return true;
+	}
+
+	/** Reads from ch again, unless peer's backed up or something else is
+	 * holding it. Always false */
+	private static boolean resume(Channel ch, Channel peer) {
+		Backpressure.release(ch, Backpressure.FLOW, peer);
+		return false;
+	}
+}
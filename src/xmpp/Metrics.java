@@ -0,0 +1,224 @@
+package xmpp;
+
+import static io.netty.util.CharsetUtil.UTF_8;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocatorMetric;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.EventExecutorGroup;
+import io.netty.util.concurrent.SingleThreadEventExecutor;
+
+/** Counters and histograms for the whole bridge, served up in the
+ * Prometheus text format by {@link #response()}, which Bridge puts on
+ * /metrics, on the {@link Admin} port if there is one. Everything is static, there's only ever one bridge per JVM.
+ *
+ * Recording is LongAdders all the way down, so it's cheap from any thread
+ * and doesn't allocate. The gauges are adders too, incremented and
+ * decremented as things come and go. The only things worked out at scrape
+ * time are the event loop queue lengths. "to" is the direction, client
+ * being the websocket and server the XMPP server. */
+public class Metrics {
+	public static final LongAdder wsSessions = new LongAdder();
+	public static final LongAdder upstreamConnections = new LongAdder();
+	public static final LongAdder upstreamConnectFailures = new LongAdder();
+	/** Sessions that did and didn't get a socket from a {@link WarmPool} */
+	public static final LongAdder warmHits = new LongAdder();
+	public static final LongAdder warmMisses = new LongAdder();
+	public static final LongAdder upstreamSpares = new LongAdder();
+	public static final LongAdder stanzasToClient = new LongAdder();
+	public static final LongAdder stanzasToServer = new LongAdder();
+	public static final LongAdder bytesToClient = new LongAdder();
+	public static final LongAdder bytesToServer = new LongAdder();
+	/** Bytes sitting in the XmlStreamHeadDecoders waiting for the rest of
+	 * a stanza, across all sessions */
+	public static final LongAdder decoderBuffered = new LongAdder();
+	/** Times one side stopped being read because the other was backed up */
+	public static final LongAdder readPauses = new LongAdder();
+	/** Connections closed for going quiet, see WSServer */
+	public static final LongAdder idleClosed = new LongAdder();
+	/** Sessions waiting for their browser to come back, and how those
+	 * went, see {@link Resumption} */
+	public static final LongAdder resumeAway = new LongAdder();
+	public static final LongAdder resumed = new LongAdder();
+	public static final LongAdder resumeExpired = new LongAdder();
+	public static final LongAdder resumeFailed = new LongAdder();
+	/** Sessions going over shared links, and those dropped for falling
+	 * behind, see {@link Mux} */
+	public static final LongAdder muxSessions = new LongAdder();
+	public static final LongAdder muxDropped = new LongAdder();
+	/** Queries answered from {@link DiscoCache}, sent on, and left waiting
+	 * on one that was */
+	public static final LongAdder cacheHits = new LongAdder();
+	public static final LongAdder cacheMisses = new LongAdder();
+	public static final LongAdder cacheCoalesced = new LongAdder();
+
+	public static final Histogram upstreamConnect = new Histogram();
+	/** From the read that finished a stanza to it being written to the
+	 * other side */
+	public static final Histogram forwardToClient = new Histogram();
+	public static final Histogram forwardToServer = new Histogram();
+
+	private static final Map<String, EventExecutorGroup> groups = new ConcurrentHashMap<>();
+	private static volatile UpstreamPool upstreams;
+
+	/** Adds a group's loops to the pending task gauge */
+	public static void watch(String name, EventExecutorGroup group) {
+		groups.put(name, group);
+	}
+
+	/** Adds per node connections and health */
+	public static void watch(UpstreamPool pool) {
+		upstreams = pool;
+	}
+
+	/** Remembers when the last read on a channel started, so the stanzas
+	 * that come out of it can be timed. Goes at the front of the pipeline */
+	public static class ReadStamp extends ChannelInboundHandlerAdapter {
+		long at;
+
+		@Override
+		public void channelRead(ChannelHandlerContext ctx, Object msg) {
+			at = System.nanoTime();
+			ctx.fireChannelRead(msg);
+		}
+
+		/** Time since the read, for a stamp that might not be there */
+		static long since(ReadStamp stamp) {
+			return stamp==null ? 0 : System.nanoTime() - stamp.at;
+		}
+	}
+
+	public static String scrape() {
+		StringBuilder sb = new StringBuilder(8192);
+		gauge(sb, "xmpp_ws_sessions", "Open websocket sessions", wsSessions.sum());
+		gauge(sb, "xmpp_deflate_contexts",
+			"Websockets keeping a deflater between messages", Deflate.contexts());
+		gauge(sb, "xmpp_upstream_connections", "Open connections to the XMPP server",
+			upstreamConnections.sum());
+		counter(sb, "xmpp_upstream_connect_failures_total",
+			"Connections to the XMPP server that failed", upstreamConnectFailures.sum());
+		gauge(sb, "xmpp_upstream_spares", "Connected sockets waiting for a session",
+			upstreamSpares.sum());
+		help(sb, "xmpp_upstream_warm_total", "counter",
+			"Sessions that were and weren't handed a spare socket");
+		sb.append("xmpp_upstream_warm_total{result=\"hit\"} ").append(warmHits.sum()).append('\n');
+		sb.append("xmpp_upstream_warm_total{result=\"miss\"} ").append(warmMisses.sum()).append('\n');
+		help(sb, "xmpp_stanzas_total", "counter", "Stanzas forwarded");
+		sb.append("xmpp_stanzas_total{to=\"client\"} ").append(stanzasToClient.sum()).append('\n');
+		sb.append("xmpp_stanzas_total{to=\"server\"} ").append(stanzasToServer.sum()).append('\n');
+		help(sb, "xmpp_bytes_total", "counter", "Stanza bytes forwarded");
+		sb.append("xmpp_bytes_total{to=\"client\"} ").append(bytesToClient.sum()).append('\n');
+		sb.append("xmpp_bytes_total{to=\"server\"} ").append(bytesToServer.sum()).append('\n');
+		gauge(sb, "xmpp_decoder_buffered_bytes",
+			"Bytes of partial stanzas held by the decoders", decoderBuffered.sum());
+		counter(sb, "xmpp_read_pauses_total",
+			"Times reading was paused because the other side was backed up",
+			readPauses.sum());
+		counter(sb, "xmpp_ws_idle_closed_total",
+			"Connections closed for not answering a ping", idleClosed.sum());
+		gauge(sb, "xmpp_resume_sessions", "Sessions that can be resumed",
+			Resumption.resumable());
+		gauge(sb, "xmpp_resume_away", "Sessions waiting for their websocket to come back",
+			resumeAway.sum());
+		help(sb, "xmpp_resume_total", "counter",
+			"Sessions that were resumed, that nobody came back for, and resumes that failed");
+		sb.append("xmpp_resume_total{result=\"resumed\"} ").append(resumed.sum()).append('\n');
+		sb.append("xmpp_resume_total{result=\"expired\"} ").append(resumeExpired.sum()).append('\n');
+		sb.append("xmpp_resume_total{result=\"failed\"} ").append(resumeFailed.sum()).append('\n');
+		gauge(sb, "xmpp_mux_sessions", "Sessions sharing a link to the XMPP server",
+			muxSessions.sum());
+		counter(sb, "xmpp_mux_dropped_total",
+			"Sessions on a shared link dropped for falling too far behind", muxDropped.sum());
+		help(sb, "xmpp_cache_total", "counter",
+			"Disco queries answered by the bridge, sent to the server, and left waiting on the same one");
+		sb.append("xmpp_cache_total{result=\"hit\"} ").append(cacheHits.sum()).append('\n');
+		sb.append("xmpp_cache_total{result=\"miss\"} ").append(cacheMisses.sum()).append('\n');
+		sb.append("xmpp_cache_total{result=\"coalesced\"} ").append(cacheCoalesced.sum()).append('\n');
+		gauge(sb, "xmpp_cache_entries", "Disco answers the bridge is holding", DiscoCache.size());
+		PooledByteBufAllocatorMetric pool = PooledByteBufAllocator.DEFAULT.metric();
+		help(sb, "xmpp_allocator_used_bytes", "gauge",
+			"Memory taken from the pooled buffer allocator");
+		sb.append("xmpp_allocator_used_bytes{type=\"direct\"} ")
+			.append(pool.usedDirectMemory()).append('\n');
+		sb.append("xmpp_allocator_used_bytes{type=\"heap\"} ")
+			.append(pool.usedHeapMemory()).append('\n');
+		help(sb, "xmpp_allocator_pinned_bytes", "gauge",
+			"Memory in buffers that are actually in use, out of what's taken");
+		sb.append("xmpp_allocator_pinned_bytes{type=\"direct\"} ")
+			.append(PooledByteBufAllocator.DEFAULT.pinnedDirectMemory()).append('\n');
+		sb.append("xmpp_allocator_pinned_bytes{type=\"heap\"} ")
+			.append(PooledByteBufAllocator.DEFAULT.pinnedHeapMemory()).append('\n');
+
+		UpstreamPool nodes = upstreams;
+		if (nodes!=null) {
+			help(sb, "xmpp_upstream_node_connections", "gauge", "Connections to each XMPP server");
+			for (UpstreamPool.UpstreamNode n: nodes.nodes()) {
+				sb.append("xmpp_upstream_node_connections{node=\"").append(n).append("\"} ")
+					.append(n.connections()).append('\n');
+			}
+			help(sb, "xmpp_upstream_node_up", "gauge", "Whether each XMPP server is in use");
+			for (UpstreamPool.UpstreamNode n: nodes.nodes()) {
+				sb.append("xmpp_upstream_node_up{node=\"").append(n).append("\"} ")
+					.append(n.up() ? 1 : 0).append('\n');
+			}
+		}
+
+		help(sb, "xmpp_upstream_connect_seconds", "histogram",
+			"Time to connect to the XMPP server");
+		upstreamConnect.write(sb, "xmpp_upstream_connect_seconds", null);
+		help(sb, "xmpp_forward_seconds", "histogram",
+			"From the read that completed a stanza to writing it to the other side");
+		forwardToClient.write(sb, "xmpp_forward_seconds", "to=\"client\"");
+		forwardToServer.write(sb, "xmpp_forward_seconds", "to=\"server\"");
+
+		help(sb, "xmpp_eventloop_pending_tasks", "gauge", "Tasks queued on each event loop");
+		for (Map.Entry<String, EventExecutorGroup> g: groups.entrySet()) {
+			int i = 0;
+			for (EventExecutor e: g.getValue()) {
+				if (e instanceof SingleThreadEventExecutor) {
+					sb.append("xmpp_eventloop_pending_tasks{group=\"").append(g.getKey())
+						.append("\",loop=\"").append(i).append("\"} ")
+						.append(((SingleThreadEventExecutor)e).pendingTasks()).append('\n');
+				}
+				i++;
+			}
+		}
+		return sb.toString();
+	}
+
+	public static FullHttpResponse response() {
+		FullHttpResponse res = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1,
+			HttpResponseStatus.OK, Unpooled.copiedBuffer(scrape(), UTF_8));
+		res.headers()
+			.set(HttpHeaderNames.CONTENT_TYPE, "text/plain; version=0.0.4; charset=utf-8")
+			.setInt(HttpHeaderNames.CONTENT_LENGTH, res.content().readableBytes());
+		return res;
+	}
+
+	private static void help(StringBuilder sb, String name, String type, String help) {
+		sb.append("# HELP ").append(name).append(' ').append(help).append('\n')
+			.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	private static void gauge(StringBuilder sb, String name, String help, long value) {
+		help(sb, name, "gauge", help);
+		sb.append(name).append(' ').append(value).append('\n');
+	}
+
+	private static void counter(StringBuilder sb, String name, String help, long value) {
+		help(sb, name, "counter", help);
+		sb.append(name).append(' ').append(value).append('\n');
+	}
+}
@@ -0,0 +1,653 @@
+package xmpp;
+
+import static io.netty.util.CharsetUtil.UTF_8;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoop;
+import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketCloseStatus;
+import io.netty.util.ByteProcessor;
+import io.netty.util.collection.IntObjectHashMap;
+import io.netty.util.concurrent.ScheduledFuture;
+
+/** Connection manager mode, where the sessions share a few sockets to each
+ * XMPP server rather than having one each. With xmpp.upstream.mux=n each
+ * websocket event loop keeps n links to every node (so loops x nodes x n
+ * sockets in all), and a session goes over whichever of its loop's links
+ * to its node has the fewest on it. The links are on the same loops as
+ * the websockets, so nothing hops threads and nothing's locked. Off (0) by
+ * default, when it's a socket per session as ever.
+ *
+ * A link is an XEP-0114 style stream in the urn:xmpp:bridge:mux:0
+ * namespace. The bridge opens it with to='xmpp.upstream.mux.name'
+ * ("bridge"), the server answers with a stream header with an id, the
+ * bridge sends <handshake/> with the hex SHA-1 of the id and
+ * xmpp.upstream.mux.secret, and the server's <handshake/> means it's up.
+ * A link that isn't up xmpp.upstream.mux.handshakeTimeout ms (5000) after
+ * it connects is closed and its node backed off, same as a failed connect,
+ * as that's what a wrong secret or a server that doesn't talk this looks
+ * like.
+ * After that everything's one of:
+ * - <s id='n'>...</s>, an RFC 7395 message for or from session n, the
+ *   same <open/>, stanzas and <close/> a browser would send or get on its
+ *   websocket. The first one with an id the server hasn't seen starts a
+ *   session
+ * - <end id='n'/>, from either side, when session n's over, whether the
+ *   stream was closed or not. The bridge sends it when the websocket goes,
+ *   and closes the websocket when it gets one
+ * The server's messages go inside <s/> as XML and on to the browser as
+ * they are, slices of what was read like any other session's. The
+ * browser's go as character data, escaped, since the bridge doesn't parse
+ * them and one browser's bad XML mustn't break the stream everybody else
+ * is on. Anything that isn't UTF-8 or has characters XML doesn't allow
+ * closes the websocket instead of going up.
+ *
+ * A link can't stop reading for one slow browser, so backpressure only
+ * works the other way. A browser that gets more than
+ * xmpp.upstream.mux.maxBuffered bytes (1MB) behind is dropped, rather than
+ * have the bridge keep the lot for it. A link that goes down takes its
+ * sessions with it, and they reconnect like they would if their own
+ * socket had gone.
+ *
+ * It needs something on the server that talks this, and nothing that
+ * does ships with the bridge or, as far as I know, any XMPP server. The
+ * stand-in in bench/xmpp/load does. Resumption isn't there in this mode, nor
+ * xmpp.upstreamThreads, the links are always on the websockets' loops. */
+class Mux {
+	static final Logger log = LogManager.getLogger(Mux.class);
+
+	static final int LINKS = Integer.getInteger("xmpp.upstream.mux", 0);
+	static final boolean ENABLED = LINKS>0;
+	static final String NAME = System.getProperty("xmpp.upstream.mux.name", "bridge");
+	static final String SECRET = System.getProperty("xmpp.upstream.mux.secret", "");
+	static final int MAX_BUFFERED = Integer.getInteger("xmpp.upstream.mux.maxBuffered", 1024 * 1024);
+	static final int HANDSHAKE_TIMEOUT = Integer.getInteger("xmpp.upstream.mux.handshakeTimeout", 5000);
+
+	static final String NS = "urn:xmpp:bridge:mux:0";
+	private static final ByteBuf HEADER = StartTag.constant("<?xml version='1.0'?>"
+		+ "<stream:stream xmlns='" + NS + "' xmlns:stream='http://etherx.jabber.org/streams'"
+		+ " to='" + NAME + "'>");
+	private static final ByteBuf SPACE = StartTag.constant(" ");
+	private static final byte[] S = StartTag.bytes("s");
+	private static final byte[] S_END = StartTag.bytes("</s>");
+	private static final byte[] END = StartTag.bytes("end");
+	private static final byte[] HANDSHAKE = StartTag.bytes("handshake");
+	private static final byte[] ID = StartTag.bytes("id");
+	private static final byte[] CLOSE = StartTag.bytes("<close");
+
+	private final UpstreamPool upstreams;
+	/** null if there aren't any */
+	private final Interceptors interceptors;
+	/** Each loop's links, LINKS for each node in the pool's order. Only
+	 * touched on their own loop */
+	private final Map<EventLoop, Link[]> links = new ConcurrentHashMap<>();
+
+	Mux(UpstreamPool upstreams, Interceptors interceptors) {
+		this.upstreams = upstreams;
+		this.interceptors = interceptors;
+		if (Bridge.UPSTREAM_THREADS>0) log.warn("xmpp.upstreamThreads does nothing with xmpp.upstream.mux");
+		if (Resumption.ENABLED) log.warn("sessions can't be resumed with xmpp.upstream.mux");
+	}
+
+	/** For a websocket that's just been upgraded. It gets a link when its
+	 * first message comes, which says which domain it wants */
+	Session session(Channel ws) {
+		return new Session(ws);
+	}
+
+	/** The link to the node on this loop with the fewest sessions, or a
+	 * new one if there's room for one */
+	private Link link(EventLoop loop, UpstreamPool.UpstreamNode node) {
+		Link[] mine = links.computeIfAbsent(loop, l->new Link[upstreams.nodes().size()*LINKS]);
+		int base = upstreams.nodes().indexOf(node)*LINKS;
+		Link best = null;
+		for (int i = base; i<base+LINKS; i++) {
+			if (mine[i]==null || mine[i].closed) return mine[i] = new Link(loop, node);
+			if (best==null || mine[i].sessions.size()<best.sessions.size()) best = mine[i];
+		}
+		return best;
+	}
+
+	/** One socket to one node, and the sessions going over it. Everything
+	 * in here's on the loop it was made for */
+	private class Link extends ChannelInboundHandlerAdapter {
+		final UpstreamPool.UpstreamNode node;
+		final Channel ch;
+		final IntObjectHashMap<Session> sessions = new IntObjectHashMap<>();
+		private int lastId;
+		/** once the socket's connected, and once the server's accepted the
+		 * handshake */
+		private boolean connected;
+		boolean up;
+		boolean closed;
+		private XmlStreamHeadDecoder decoder;
+		private Metrics.ReadStamp stamp;
+		private final Escaper escaper = new Escaper();
+		/** sessions whose websockets have been written to in this read */
+		private final List<Session> dirty = new ArrayList<>();
+		/** whether anything's been read or written since the last tick */
+		private boolean read, wrote;
+		private ScheduledFuture<?> ticker, handshake;
+
+		Link(EventLoop loop, UpstreamPool.UpstreamNode node) {
+			this.node = node;
+			Transport t = Transport.of(loop);
+			Bootstrap b = Backpressure.configure(t.configure(new Bootstrap()))
+				.group(loop).channel(t.socketChannel())
+				.option(ChannelOption.RCVBUF_ALLOCATOR, Backpressure.RECV)
+				.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, UpstreamPool.CONNECT_TIMEOUT)
+				.handler(new ChannelInitializer<Channel>() {
+					@Override
+					protected void initChannel(Channel ch) {
+						decoder = new XmlStreamHeadDecoder();
+						stamp = new Metrics.ReadStamp();
+						ch.pipeline()
+							.addLast("stamp", stamp)
+							.addLast("decoder", decoder)
+							.addLast("handler", Link.this);
+						FlushBatchHandler.install(ch.pipeline());
+					}
+				});
+			long start = System.nanoTime();
+			ChannelFuture f = b.connect(node.host, node.port);
+			ch = f.channel();
+			f.addListener((ChannelFuture c)->{
+				if (!c.isSuccess()) {
+					log.warn("couldn't connect to {}: {}", node, c.cause().toString());
+					node.failed();
+					Metrics.upstreamConnectFailures.increment();
+					return;
+				}
+				connected = true;
+				Metrics.upstreamConnect.recordNanos(System.nanoTime() - start);
+				Metrics.upstreamConnections.increment();
+				if (upstreams.tls()!=null) Tls.connected(upstreams.tls(), ch, node.host, node.port);
+				ch.writeAndFlush(HEADER.duplicate(), ch.voidPromise());
+				handshake = ch.eventLoop().schedule(()->{
+					log.warn("no handshake from {} in {}ms, closing the link", node, HANDSHAKE_TIMEOUT);
+					node.failed();
+					ch.close();
+				}, HANDSHAKE_TIMEOUT, TimeUnit.MILLISECONDS);
+			});
+			//a failed connect closes it too
+			ch.closeFuture().addListener(x->closed());
+		}
+
+		void add(Session s) {
+			do s.id = ++lastId; while (s.id<=0 || sessions.containsKey(s.id));
+			sessions.put(s.id, s);
+			node.connections.incrementAndGet();
+			Metrics.muxSessions.increment();
+		}
+
+		private void remove(Session s) {
+			if (sessions.remove(s.id)==null) return;
+			node.connections.decrementAndGet();
+			Metrics.muxSessions.decrement();
+		}
+
+		/** A browser's message, escaped, in an <s/>. False if it can't be
+		 * XML character data, in which case nothing's written */
+		boolean write(Session s, ByteBuf xml) {
+			int n = xml.readableBytes();
+			ByteBuf out = ch.alloc().buffer(n + n/4 + 32);
+			out.writeCharSequence("<s id='", UTF_8);
+			out.writeCharSequence(Integer.toString(s.id), UTF_8);
+			out.writeByte('\'').writeByte('>');
+			boolean ok = escaper.escape(xml, out);
+			xml.release();
+			if (!ok) {
+				out.release();
+				return false;
+			}
+			out.writeBytes(S_END);
+			wrote = true;
+			ch.write(out, ch.voidPromise());
+			return true;
+		}
+
+		/** Tells the server a session's over, and forgets it */
+		void end(Session s) {
+			remove(s);
+			if (up && ch.isActive()) {
+				wrote = true;
+				ch.writeAndFlush(ch.alloc().buffer(24).writeBytes(
+					("<end id='" + s.id + "'/>").getBytes(UTF_8)), ch.voidPromise());
+			}
+		}
+
+		@Override
+		public void channelRead(ChannelHandlerContext ctx, Object msg) {
+			read = true;
+			ByteBuf buf = (ByteBuf)msg;
+			try {
+				if (!decoder.started) {
+					header(buf);
+					return;
+				}
+				StartTag tag = StartTag.get();
+				if (!tag.parse(buf)) {
+					log.warn("can't make sense of {} from {}", buf.toString(UTF_8), node);
+					ctx.close();
+				} else if (tag.nameIs(S)) {
+					Session s = session(tag);
+					if (s!=null && !tag.empty && endsWith(buf, S_END)) {
+						s.fromServer(buf.retainedSlice(tag.end,
+							buf.writerIndex()-S_END.length - tag.end));
+					}
+				} else if (tag.nameIs(END)) {
+					Session s = session(tag);
+					if (s!=null) {
+						remove(s);
+						s.ended();
+					}
+				} else if (tag.nameIs(HANDSHAKE)) {
+					up();
+				} else {
+					//</stream:stream>, or an error before it
+					log.warn("{} ended the link: {}", node, buf.toString(UTF_8));
+					ctx.close();
+				}
+			} finally {
+				buf.release();
+			}
+		}
+
+		/** The server's stream header, which the handshake's worked out from */
+		private void header(ByteBuf buf) {
+			decoder.started = true;
+			StartTag tag = StartTag.get();
+			int id = tag.parse(buf) ? tag.attr(ID) : -1;
+			if (id<0) {
+				log.warn("no stream id from {}", node);
+				ch.close();
+				return;
+			}
+			String digest;
+			try {
+				digest = ByteBufUtil.hexDump(MessageDigest.getInstance("SHA-1")
+					.digest((tag.value(id) + SECRET).getBytes(UTF_8)));
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+			ch.writeAndFlush(ch.alloc().buffer(64).writeBytes(
+				("<handshake>" + digest + "</handshake>").getBytes(UTF_8)), ch.voidPromise());
+		}
+
+		private Session session(StartTag tag) {
+			int id = tag.attr(ID);
+			if (id<0) return null;
+			try {
+				return sessions.get(Integer.parseInt(tag.value(id)));
+			} catch (NumberFormatException e) {
+				return null;
+			}
+		}
+
+		private void up() {
+			if (up) return;
+			up = true;
+			if (handshake!=null) handshake.cancel(false);
+			//only now, as a node that connects but won't take the handshake
+			//is no more use than one that won't connect
+			node.connected();
+			log.debug("link to {} up with {} sessions waiting", node, sessions.size());
+			for (Session s: new ArrayList<>(sessions.values())) s.linkUp();
+			ch.flush();
+			if (Bridge.KEEPALIVE>0) ticker = ch.eventLoop().scheduleAtFixedRate(
+				this::tick, Bridge.KEEPALIVE, Bridge.KEEPALIVE, TimeUnit.MILLISECONDS);
+		}
+
+		/** A space if nothing's gone up for a while, and the decoder's
+		 * buffer cut down if nothing's come, same as a session's own socket */
+		private void tick() {
+			if (!wrote) ch.writeAndFlush(SPACE.duplicate(), ch.voidPromise());
+			if (!read) decoder.trim();
+			read = wrote = false;
+		}
+
+		/** Everything a read's sent to the browsers goes out in a flush each */
+		@Override
+		public void channelReadComplete(ChannelHandlerContext ctx) {
+			for (int i = 0; i<dirty.size(); i++) {
+				Session s = dirty.get(i);
+				s.dirty = false;
+				s.ws.flush();
+			}
+			dirty.clear();
+		}
+
+		/** The server's backed up, so none of the browsers on here get read */
+		@Override
+		public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+			for (Session s: sessions.values()) Backpressure.follow(ch, s.ws);
+			ctx.fireChannelWritabilityChanged();
+		}
+
+		@Override
+		public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+			log.warn("closing the link to {}", node, cause);
+			ctx.close();
+		}
+
+		private void closed() {
+			if (closed) return;
+			closed = true;
+			if (connected) Metrics.upstreamConnections.decrement();
+			up = false;
+			if (ticker!=null) ticker.cancel(false);
+			if (handshake!=null) handshake.cancel(false);
+			List<Session> lost = new ArrayList<>(sessions.values());
+			for (Session s: lost) {
+				remove(s);
+				s.linkLost();
+			}
+			if (!lost.isEmpty()) log.warn("link to {} gone, dropping {} sessions", node, lost.size());
+		}
+
+		private boolean endsWith(ByteBuf buf, byte[] suffix) {
+			int at = buf.writerIndex() - suffix.length;
+			if (at<buf.readerIndex()) return false;
+			for (int i = 0; i<suffix.length; i++) {
+				if (buf.getByte(at+i)!=suffix[i]) return false;
+			}
+			return true;
+		}
+	}
+
+	/** A browser's session, going over a link. Everything's on the
+	 * websocket's loop, which is the link's too */
+	class Session implements Bridge.Session {
+		final Channel ws;
+		private Link link;
+		int id;
+		private ArrayDeque<ByteBuf> pending = new ArrayDeque<>();
+		/** waiting for a flush at the end of the link's read */
+		boolean dirty;
+		/** the server's sent <close/>, or the session's finished */
+		private boolean serverClosed, done;
+		private final WireTrace trace;
+		private final Metrics.ReadStamp wsStamp;
+		private final Interceptors.Flow flow;
+
+		Session(Channel ws) {
+			this.ws = ws;
+			this.trace = WireTrace.start(ws);
+			this.flow = interceptors!=null ? interceptors.flow() : null;
+			this.wsStamp = ws.pipeline().get(Metrics.ReadStamp.class);
+			ws.closeFuture().addListener(x->wsClosed());
+		}
+
+		/** Takes ownership of the buffer, doesn't flush. Always a whole
+		 * message, as {@link WSServer} puts them together in this mode */
+		@Override
+		public void sendMessage(ByteBuf xml) {
+			if (done) {
+				xml.release();
+				return;
+			}
+			if (trace!=null) trace.message(WireTrace.TO_SERVER, xml);
+			if (flow!=null) flow.toServer(ws, xml, link!=null ? link.ch : null, this::toServer);
+			else toServer(xml, false);
+		}
+
+		/** The rest of sendMessage, once any interceptors are done with it */
+		private void toServer(ByteBuf xml, boolean later) {
+			if (done) {
+				xml.release();
+				return;
+			}
+			if (link==null) {
+				link = link(ws.eventLoop(), upstreams.pick(domain(xml), Collections.emptySet()));
+				if (link.closed) {
+					//the connect failed there and then
+					xml.release();
+					linkLost();
+					return;
+				}
+				link.add(this);
+			}
+			if (link.up) {
+				//nothing's waiting if it's up, the queue's only for a new link
+				pending = null;
+				forward(xml);
+				if (later) link.ch.flush();
+			} else if (pending.size()>=Bridge.MAX_PENDING) {
+				xml.release();
+				log.warn("more than {} stanzas before the link was up", Bridge.MAX_PENDING);
+				ws.close();
+			} else {
+				pending.add(xml);
+			}
+		}
+
+		private void forward(ByteBuf xml) {
+			Metrics.stanzasToServer.increment();
+			Metrics.bytesToServer.add(xml.readableBytes());
+			if (!link.write(this, xml)) {
+				log.debug("not XML character data from {}", ws.remoteAddress());
+				ws.writeAndFlush(new CloseWebSocketFrame(WebSocketCloseStatus.INVALID_PAYLOAD_DATA))
+					.addListener(ChannelFutureListener.CLOSE);
+				return;
+			}
+			Metrics.forwardToServer.recordNanos(Metrics.ReadStamp.since(wsStamp));
+		}
+
+		/** Never called, there's no fragment handler in this mode */
+		@Override
+		public void sendFragment(ByteBuf part) {
+			part.release();
+		}
+
+		@Override
+		public void flush() {
+			if (link!=null && link.up) link.ch.flush();
+		}
+
+		/** Nothing to do, the link doesn't stop for one browser. See
+		 * {@link #fromServer} */
+		@Override
+		public void wsWritabilityChanged() {
+		}
+
+		void linkUp() {
+			for (ByteBuf xml; (xml = pending.poll())!=null; ) forward(xml);
+			pending = null;
+		}
+
+		void fromServer(ByteBuf msg) {
+			if (done) {
+				msg.release();
+				return;
+			}
+			if (trace!=null) trace.message(WireTrace.TO_CLIENT, msg);
+			if (ws.bytesBeforeWritable()>MAX_BUFFERED) {
+				msg.release();
+				log.debug("{} too far behind, dropping it", ws.remoteAddress());
+				Metrics.muxDropped.increment();
+				done = true;
+				link.end(this);
+				ws.close();
+				return;
+			}
+			if (flow!=null) flow.toClient(ws, msg, null, this::toClient);
+			else toClient(msg, false);
+		}
+
+		@Override
+		public void reply(ByteBuf msg) {
+			ws.eventLoop().execute(()->toClient(msg, true));
+		}
+
+		/** The rest of fromServer, once any interceptors are done with it */
+		private void toClient(ByteBuf msg, boolean later) {
+			if (done) {
+				msg.release();
+				return;
+			}
+			if (StartTag.startsWith(msg, CLOSE)) serverClosed = true;
+			Metrics.stanzasToClient.increment();
+			Metrics.bytesToClient.add(msg.readableBytes());
+			Bridge.writeToChannel(ws, msg);
+			if (later) {
+				ws.flush();
+			} else if (!dirty) {
+				dirty = true;
+				link.dirty.add(this);
+			}
+			Metrics.forwardToClient.recordNanos(
+				Metrics.ReadStamp.since(link!=null ? link.stamp : null));
+		}
+
+		/** The server's done with it */
+		void ended() {
+			done = true;
+			closeWs(serverClosed ? WebSocketCloseStatus.NORMAL_CLOSURE
+				: WebSocketCloseStatus.ENDPOINT_UNAVAILABLE);
+		}
+
+		/** Like a session's own socket going. Try again later if it never
+		 * got as far as the server */
+		void linkLost() {
+			done = true;
+			boolean started = pending==null;
+			if (!started) {
+				for (ByteBuf xml; (xml = pending.poll())!=null; ) xml.release();
+			}
+			if (trace!=null && ws.isActive()) log.warn("the link went: {}", trace.dump());
+			closeWs(started ? WebSocketCloseStatus.ENDPOINT_UNAVAILABLE
+				: WebSocketCloseStatus.TRY_AGAIN_LATER);
+		}
+
+		/** With a <close/> first if the server didn't send one, as RFC 7395
+		 * wants the stream ended before the websocket is */
+		private void closeWs(WebSocketCloseStatus status) {
+			if (!ws.isActive()) return;
+			if (!serverClosed) {
+				ws.write(new TextWebSocketFrame(StreamHeaderCodec.CLOSE.duplicate()),
+					ws.voidPromise());
+			}
+			ws.writeAndFlush(new CloseWebSocketFrame(status))
+				.addListener(ChannelFutureListener.CLOSE);
+		}
+
+		private void wsClosed() {
+			if (pending!=null) {
+				for (ByteBuf xml; (xml = pending.poll())!=null; ) xml.release();
+			}
+			if (trace!=null) trace.end();
+			if (done) return;
+			done = true;
+			if (link!=null) link.end(this);
+		}
+	}
+
+	private static final byte[] OPEN = StartTag.bytes("open");
+	private static final byte[] TO = StartTag.bytes("to");
+
+	/** The to='' of an <open/> */
+	private static String domain(ByteBuf xml) {
+		StartTag tag = StartTag.get();
+		if (!tag.parse(xml) || !tag.nameIs(OPEN)) return null;
+		int to = tag.attr(TO);
+		return to<0 ? null : tag.value(to);
+	}
+
+	/** Copies a browser's message as XML character data, checking on the
+	 * way that it's UTF-8 (no overlongs, surrogates or anything past
+	 * U+10FFFF) and has nothing in it XML 1.0 doesn't allow, which would
+	 * break the link whether escaped or not. <, > and & are escaped, and \r
+	 * too, which a parser would otherwise turn into \n. One per link, as it
+	 * keeps state between bytes */
+	static final class Escaper implements ByteProcessor {
+		private static final byte[] LT = StartTag.bytes("&lt;");
+		private static final byte[] GT = StartTag.bytes("&gt;");
+		private static final byte[] AMP = StartTag.bytes("&amp;");
+		private static final byte[] CR = StartTag.bytes("&#13;");
+
+		private ByteBuf out;
+		/** continuation bytes still to come, and the range the next has to
+		 * be in */
+		private int remaining, lo, hi;
+		/** how far into EF BF BE/BF, U+FFFE and U+FFFF, which XML doesn't have */
+		private int nonChar;
+
+		/** @return false if it isn't valid, in which case out has some of it */
+		boolean escape(ByteBuf in, ByteBuf out) {
+			this.out = out;
+			remaining = nonChar = 0;
+			boolean ok = in.forEachByte(this)<0 && remaining==0;
+			this.out = null;
+			return ok;
+		}
+
+		@Override
+		public boolean process(byte value) {
+			int b = value & 0xff;
+			if (remaining>0) {
+				if (b<lo || b>hi) return false;
+				if (nonChar==1 && b==0xbf) nonChar = 2;
+				else if (nonChar==2 && b>=0xbe) return false;
+				else nonChar = 0;
+				lo = 0x80;
+				hi = 0xbf;
+				remaining--;
+				out.writeByte(b);
+				return true;
+			}
+			if (b<0x80) {
+				switch (b) {
+				case '<': out.writeBytes(LT); return true;
+				case '>': out.writeBytes(GT); return true;
+				case '&': out.writeBytes(AMP); return true;
+				case '\r': out.writeBytes(CR); return true;
+				case '\t': case '\n': break;
+				default: if (b<0x20) return false;
+				}
+				out.writeByte(b);
+				return true;
+			}
+			lo = 0x80;
+			hi = 0xbf;
+			if (b>=0xc2 && b<=0xdf) {
+				remaining = 1;
+			} else if (b>=0xe0 && b<=0xef) {
+				remaining = 2;
+				if (b==0xe0) lo = 0xa0;
+				else if (b==0xed) hi = 0x9f;
+				else if (b==0xef) nonChar = 1;
+			} else if (b>=0xf0 && b<=0xf4) {
+				remaining = 3;
+				if (b==0xf0) lo = 0x90;
+				else if (b==0xf4) hi = 0x8f;
+			} else {
+				return false;
+			}
+			out.writeByte(b);
+			return true;
+		}
+	}
+}
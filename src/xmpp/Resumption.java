@@ -0,0 +1,211 @@
+package xmpp;
+
+import static io.netty.util.CharsetUtil.UTF_8;
+
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+
+/** Lets a browser whose websocket drops (a phone backgrounding the tab, or
+ * going from wifi to 4G) carry on with the session it had, rather than
+ * connect, authenticate, bind, fetch the roster and send presence all over
+ * again. The socket to the XMPP server stays open for xmpp.resume.timeout
+ * ms after the websocket goes, and a new websocket can take it over.
+ *
+ * It's XEP-0198 done between the browser and the bridge, in the bridge's
+ * own namespace, so it doesn't get mixed up with any stream management the
+ * browser's doing with the server itself. Nothing in the namespace goes on
+ * to the server:
+ * - the browser sends <enable xmlns='urn:xmpp:bridge:sm:0'/> once its
+ *   stream's up, and gets <enabled id='...' secret='...' max='...'/> back,
+ *   max being the timeout in seconds. The secret is what proves a resume
+ *   comes from the same browser, as the id turns up in the logs. It's
+ *   never logged or traced, and it's not in any URL
+ * - either side can send <r/>, and gets <a h='...'/>, h being how many
+ *   messages it's been sent since the enable, mod 2^32. On the bridge's
+ *   side that's every websocket message from the server, not only stanzas
+ * - to resume, the first thing the browser sends on a new websocket is
+ *   <resume previd='<id>' secret='<secret>' h='<n>'/>, and it waits for
+ *   the answer before sending anything else. That's <resumed previd='...'
+ *   h='...'/> then everything the browser hadn't acked, or <failed/>, and
+ *   it's a fresh connection that wants an <open/> like any other. A
+ *   session whose websocket is still open as far as the bridge knows
+ *   can't be taken over, so a browser that's switched networks gets
+ *   <failed/> until the old one's been found dead (by its pings going
+ *   unanswered, see WSServer) and is told to try again.
+ *
+ * What the server sends while the browser's away goes into the same ring
+ * as what's waiting for an ack, which holds xmpp.resume.maxUnacked
+ * messages or xmpp.resume.maxBytes, whichever comes first. The bridge asks
+ * for an ack when it's half full. If it fills while the browser's away,
+ * the server stops being read until they're back and have acked some of
+ * it, and if it fills with the browser there and not acking, the session
+ * stops being resumable and they're told with a <failed/>. A message
+ * that's a small part of the read buffer it came in is copied out before
+ * it's kept, so that maxBytes is what's actually held, not however many
+ * read buffers a few hundred small messages happen to pin.
+ *
+ * The sessions are only in this process, so with several bridges behind a
+ * load balancer a resume has to land on the same one to work.
+ *
+ * Everything in here is under the session's lock, which is only ever
+ * contended when there's a shared upstream group. */
+class Resumption {
+	static final int TIMEOUT = Integer.getInteger("xmpp.resume.timeout", 0);
+	static final boolean ENABLED = TIMEOUT>0;
+	static final int MAX_UNACKED = Integer.getInteger("xmpp.resume.maxUnacked", 500);
+	static final int MAX_BYTES = Integer.getInteger("xmpp.resume.maxBytes", 512 * 1024);
+
+	static final String NS = "urn:xmpp:bridge:sm:0";
+	static final byte[] NS_BYTES = StartTag.bytes(NS);
+	static final ByteBuf REQUEST = StartTag.constant("<r xmlns='" + NS + "'/>");
+	static final ByteBuf FAILED = StartTag.constant("<failed xmlns='" + NS + "'/>");
+
+	/** What {@link #sent} says about the ring afterwards */
+	static final int OK = 0, ASK = 1, FULL = 2;
+
+	/** Every session that's enabled it, away or not, by id */
+	private static final Map<String, Resumption> sessions = new ConcurrentHashMap<>();
+	private static final SecureRandom random = new SecureRandom();
+
+	final String id;
+	/** what the resume has to have, not to be logged */
+	private final byte[] secret;
+	private final Bridge.XMPPClient client;
+	/** Messages to the browser it hasn't acked, oldest first */
+	private final ArrayDeque<ByteBuf> unacked = new ArrayDeque<>();
+	private int bytes;
+	/** Messages sent to the browser and had from it since the enable */
+	private int sent, received;
+	private boolean asked, released;
+
+	private Resumption(Bridge.XMPPClient client) {
+		this.client = client;
+		this.id = random(16);
+		this.secret = random(16).getBytes(UTF_8);
+	}
+
+	/** A new id and secret for a session, which can be resumed with them
+	 * from now on */
+	static Resumption enable(Bridge.XMPPClient client) {
+		Resumption sm = new Resumption(client);
+		sessions.put(sm.id, sm);
+		return sm;
+	}
+
+	private static String random(int bytes) {
+		byte[] b = new byte[bytes];
+		random.nextBytes(b);
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(b);
+	}
+
+	/** The session a <resume/> is for, if there is one and the secret's
+	 * right, or null */
+	static Bridge.XMPPClient find(String previd, String secret) {
+		Resumption sm = previd==null || secret==null ? null : sessions.get(previd);
+		if (sm==null || !MessageDigest.isEqual(sm.secret, secret.getBytes(UTF_8))) return null;
+		return sm.client;
+	}
+
+	/** Keeps a message that's going to the browser until it's acked */
+	synchronized int sent(ByteBuf msg) {
+		if (released) return OK;
+		unacked.add(keep(msg));
+		bytes += msg.readableBytes();
+		sent++;
+		if (unacked.size()>=MAX_UNACKED || bytes>=MAX_BYTES) return FULL;
+		if (!asked && (unacked.size()>=MAX_UNACKED/2 || bytes>=MAX_BYTES/2)) {
+			asked = true;
+			return ASK;
+		}
+		return OK;
+	}
+
+	/** A copy of msg if it's a slice of something a lot bigger */
+	private static ByteBuf keep(ByteBuf msg) {
+		ByteBuf root = msg;
+		while (root.unwrap()!=null) root = root.unwrap();
+		return root.capacity()>msg.readableBytes()*2 ? msg.copy() : msg.retainedDuplicate();
+	}
+
+	synchronized boolean full() {
+		return unacked.size()>=MAX_UNACKED || bytes>=MAX_BYTES;
+	}
+
+	/** The browser's had h messages. One that's acking more than it's been
+	 * sent, or less than it's acked before, is ignored */
+	synchronized void acked(int h) {
+		int n = h - (sent - unacked.size());
+		if (released || n<0 || n>unacked.size()) return;
+		for (; n>0; n--) {
+			ByteBuf b = unacked.poll();
+			bytes -= b.readableBytes();
+			b.release();
+		}
+		asked = false;
+	}
+
+	synchronized void receivedOne() {
+		received++;
+	}
+
+	synchronized ByteBuf enabled() {
+		return text("<enabled xmlns='" + NS + "' id='" + id + "' secret='"
+			+ new String(secret, UTF_8) + "' max='" + TIMEOUT/1000 + "'/>");
+	}
+
+	synchronized ByteBuf ack() {
+		return text("<a xmlns='" + NS + "' h='" + Integer.toUnsignedString(received) + "'/>");
+	}
+
+	/** Drops what a resuming browser says it had, if it said, then sends it
+	 * <resumed/> and the rest. Doesn't flush */
+	synchronized void replay(Channel ws, long h) {
+		if (h>=0) acked((int)h);
+		ws.write(new TextWebSocketFrame(text("<resumed xmlns='" + NS + "' previd='" + id
+			+ "' h='" + Integer.toUnsignedString(received) + "'/>")), ws.voidPromise());
+		for (ByteBuf b: unacked) Bridge.writeToChannel(ws, b.retainedDuplicate());
+		if (unacked.size()>=MAX_UNACKED/2 || bytes>=MAX_BYTES/2) {
+			asked = true;
+			ws.write(new TextWebSocketFrame(REQUEST.duplicate()), ws.voidPromise());
+		}
+	}
+
+	/** The session's over, or can't be resumed any more */
+	synchronized void release() {
+		if (released) return;
+		released = true;
+		sessions.remove(id);
+		for (ByteBuf b; (b = unacked.poll())!=null; ) b.release();
+		bytes = 0;
+	}
+
+	/** Cheap check that rules most messages out before a proper look. Some
+	 * that go to the server start with an a, an e or an r too (<auth/>,
+	 * <enable/> in the XEP-0198 namespace, <response/>...), so it's the
+	 * namespace check after this that decides. <resume/> is an r */
+	static boolean maybeControl(ByteBuf msg) {
+		int i = msg.readerIndex(), end = msg.writerIndex();
+		while (i<end && StartTag.isWhitespace(msg.getByte(i))) i++;
+		if (i+1>=end || msg.getByte(i)!='<') return false;
+		byte b = msg.getByte(i+1);
+		return b=='a' || b=='e' || b=='r';
+	}
+
+	/** Sessions that could be resumed, whether they're away or not */
+	static int resumable() {
+		return sessions.size();
+	}
+
+	private static ByteBuf text(String s) {
+		return Unpooled.copiedBuffer(s, UTF_8);
+	}
+}
@@ -0,0 +1,243 @@
+package xmpp;
+
+import static io.netty.util.CharsetUtil.UTF_8;
+
+import java.util.Arrays;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.ByteProcessor;
+import io.netty.util.concurrent.FastThreadLocal;
+
+/** Just enough of an XML tokenizer to pick apart the first tag of a stanza,
+ * working on the bytes. It finds the element name and the name and value of
+ * each attribute, coping with either quote style, attributes in any order
+ * and any amount of whitespace. Whatever comes after the tag is never looked
+ * at.
+ *
+ * Offsets are absolute indexes into the buffer that was parsed. One of these
+ * can be reused for any number of parses, the arrays only grow when a tag
+ * has more attributes than anything before it. At a couple of hundred
+ * bytes they're not something to have one of per session, so everything
+ * that's done with a tag before it returns shares {@link #get()}. */
+final class StartTag {
+	private static final FastThreadLocal<StartTag> SHARED = new FastThreadLocal<StartTag>() {
+		@Override
+		protected StartTag initialValue() {
+			return new StartTag();
+		}
+	};
+
+	/** This thread's, to parse with and be finished with before anything
+	 * else on the thread gets it */
+	static StartTag get() {
+		return SHARED.get();
+	}
+
+	/** index of the < */
+	int start;
+	int nameStart, nameEnd;
+	/** index just after the closing > */
+	int end;
+	boolean closing, empty;
+
+	int attrCount;
+	int[] attrNameStart = new int[8];
+	int[] attrNameEnd = new int[8];
+	int[] valueStart = new int[8];
+	int[] valueEnd = new int[8];
+
+	private ByteBuf buf;
+
+	/** Parses the first tag in the buffer, skipping any leading whitespace,
+	 * xml declaration or comments first.
+	 * @return false if there isn't a whole, well-formed tag to be had */
+	boolean parse(ByteBuf buf) {
+		this.buf = buf;
+		attrCount = 0;
+		closing = empty = false;
+		final int limit = buf.writerIndex();
+		int i = buf.readerIndex();
+		for (;;) {
+			i = skipWhitespace(i, limit);
+			if (i+1>=limit || buf.getByte(i)!='<') return false;
+			byte b = buf.getByte(i+1);
+			if (b=='?') {
+				i = find(i+2, limit, '?', '>');
+			} else if (b=='!') {
+				i = find(i+2, limit, '-', '>');
+			} else break;
+			if (i<0) return false;
+		}
+
+		start = i++;
+		if (buf.getByte(i)=='/') {
+			closing = true;
+			i++;
+		}
+		nameStart = i;
+		i = skipName(i, limit);
+		nameEnd = i;
+		if (nameEnd==nameStart) return false;
+
+		for (;;) {
+			i = skipWhitespace(i, limit);
+			if (i>=limit) return false;
+			byte b = buf.getByte(i);
+			if (b=='>') {
+				end = i+1;
+				return true;
+			}
+			if (b=='/') {
+				if (i+1>=limit || buf.getByte(i+1)!='>') return false;
+				empty = true;
+				end = i+2;
+				return true;
+			}
+			if (closing) return false;
+
+			int ns = i;
+			i = skipName(i, limit);
+			if (i==ns) return false;
+			int ne = i;
+			i = skipWhitespace(i, limit);
+			if (i>=limit || buf.getByte(i)!='=') return false;
+			i = skipWhitespace(i+1, limit);
+			if (i>=limit) return false;
+			byte quote = buf.getByte(i);
+			if (quote!='\'' && quote!='"') return false;
+			int vs = ++i;
+			i = buf.indexOf(i, limit, quote);
+			if (i<0) return false;
+			addAttribute(ns, ne, vs, i++);
+		}
+	}
+
+	private void addAttribute(int ns, int ne, int vs, int ve) {
+		if (attrCount==attrNameStart.length) {
+			int len = attrCount*2;
+			attrNameStart = Arrays.copyOf(attrNameStart, len);
+			attrNameEnd = Arrays.copyOf(attrNameEnd, len);
+			valueStart = Arrays.copyOf(valueStart, len);
+			valueEnd = Arrays.copyOf(valueEnd, len);
+		}
+		attrNameStart[attrCount] = ns;
+		attrNameEnd[attrCount] = ne;
+		valueStart[attrCount] = vs;
+		valueEnd[attrCount] = ve;
+		attrCount++;
+	}
+
+	boolean nameIs(byte[] name) {
+		return matches(nameStart, nameEnd, name);
+	}
+
+	boolean attrNameIs(int attr, byte[] name) {
+		return matches(attrNameStart[attr], attrNameEnd[attr], name);
+	}
+
+	boolean valueIs(int attr, byte[] value) {
+		return matches(valueStart[attr], valueEnd[attr], value);
+	}
+
+	String value(int attr) {
+		return buf.toString(valueStart[attr], valueEnd[attr]-valueStart[attr], UTF_8);
+	}
+
+	/** @return the index of the named attribute, or -1 */
+	int attr(byte[] name) {
+		for (int i = 0; i<attrCount; i++) if (attrNameIs(i, name)) return i;
+		return -1;
+	}
+
+	/** xmlns or xmlns:anything */
+	boolean isNamespaceDeclaration(int attr) {
+		int s = attrNameStart[attr], e = attrNameEnd[attr];
+		return e-s>=XMLNS.length && matches(s, s+XMLNS.length, XMLNS)
+			&& (e-s==XMLNS.length || buf.getByte(s+XMLNS.length)==':');
+	}
+
+	/** Writes the attributes to out, each with a space in front, skipping
+	 * namespace declarations. Runs of attributes next to each other go in as
+	 * a single copy of the original, whitespace and all */
+	void writeAttributes(ByteBuf out) {
+		int run = -1;
+		for (int i = 0; i<=attrCount; i++) {
+			boolean keep = i<attrCount && !isNamespaceDeclaration(i);
+			if (keep && run<0) run = i;
+			if (!keep && run>=0) {
+				int s = attrNameStart[run], e = valueEnd[i-1]+1;
+				out.writeByte(' ').writeBytes(buf, s, e-s);
+				run = -1;
+			}
+		}
+	}
+
+	/** Space needed by {@link #writeAttributes} at most */
+	int attributesLength() {
+		return attrCount==0 ? 0 : valueEnd[attrCount-1]+1 - attrNameStart[0] + attrCount;
+	}
+
+	private boolean matches(int s, int e, byte[] expected) {
+		if (e-s!=expected.length) return false;
+		for (int i = 0; i<expected.length; i++) {
+			if (buf.getByte(s+i)!=expected[i]) return false;
+		}
+		return true;
+	}
+
+	private int skipWhitespace(int i, int limit) {
+		return scan(i, limit, WHITESPACE);
+	}
+
+	private int skipName(int i, int limit) {
+		return scan(i, limit, NAME);
+	}
+
+	/** forEachByte rather than getByte in a loop, as it skips the bounds and
+	 * refcount checks on every byte */
+	private int scan(int i, int limit, ByteProcessor while_) {
+		if (i>=limit) return limit;
+		int r = buf.forEachByte(i, limit-i, while_);
+		return r<0 ? limit : r;
+	}
+
+	/** @return the index just after the first a followed by b, or -1 */
+	private int find(int i, int limit, char a, char b) {
+		while ((i = buf.indexOf(i, limit-1, (byte)a))>=0) {
+			if (buf.getByte(++i)==b) return i+1;
+		}
+		return -1;
+	}
+
+	private static final ByteProcessor WHITESPACE = b->isWhitespace(b);
+	private static final ByteProcessor NAME = 
+		b->!isWhitespace(b) && b!='>' && b!='/' && b!='=';
+
+	/** A read-only buffer for a constant bit of markup. Use duplicate() to
+	 * get one to write, releasing those doesn't do anything */
+	static ByteBuf constant(String s) {
+		return Unpooled.unreleasableBuffer(
+			Unpooled.directBuffer(s.length()).writeBytes(s.getBytes(UTF_8))
+		).asReadOnly();
+	}
+
+	static byte[] bytes(String s) {
+		return s.getBytes(UTF_8);
+	}
+
+	static boolean startsWith(ByteBuf buf, byte[] prefix) {
+		if (buf.readableBytes()<prefix.length) return false;
+		int start = buf.readerIndex();
+		for (int i = 0; i<prefix.length; i++) {
+			if (buf.getByte(start+i)!=prefix[i]) return false;
+		}
+		return true;
+	}
+
+	static boolean isWhitespace(byte b) {
+		return b==' ' || b=='\t' || b=='\n' || b=='\r';
+	}
+
+	private static final byte[] XMLNS = {'x', 'm', 'l', 'n', 's'};
+}
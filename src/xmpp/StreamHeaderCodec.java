@@ -0,0 +1,119 @@
+package xmpp;
+
+import static xmpp.StartTag.bytes;
+import static xmpp.StartTag.constant;
+
+import java.util.List;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.MessageToMessageCodec;
+
+/** The XMPP spec calls for an XML stream, which is a continuously-open
+ * XML document which is wrapped in a <stream:stream> base element.
+ * By the time they came to do the websockets version
+ * (<a href="https://tools.ietf.org/html/rfc7395">RFC 7395</a>) they'd
+ * sobered up and realised that was ridiculous. As a result the websocket
+ * version requires each XML stanza to be a complete discrete message.
+ *
+ * To support this, the opening <stream:stream> tag is replaced with an
+ * <open/> element, which takes all the same attributes, except that the
+ * namespace must be replaced with urn:ietf:params:xml:ns:xmpp-framing, and
+ * the closing </stream:stream> becomes <close/>. This does that translation
+ * both ways, on the bytes, and passes everything else through untouched.
+ *
+ * Only the first tag of each stanza gets tokenized, and anything that isn't
+ * a stream header or footer goes on as the same buffer. The headers are
+ * written out fresh, from constants and the attributes that came in, which
+ * for a couple of hundred bytes once a stream is cheaper than stitching
+ * slices together. Namespace declarations are dropped and replaced by the
+ * right ones for the other side.
+ *
+ * Sits in the upstream pipeline behind the {@link XmlStreamHeadDecoder},
+ * whose started flag it keeps up to date. It also notes which sides have
+ * ended the stream, so whoever's tearing down the session knows whether
+ * there's still a footer to send. */
+public class StreamHeaderCodec extends MessageToMessageCodec<ByteBuf, ByteBuf> {
+	private static final byte[] OPEN_START = bytes(
+		"<open xmlns='urn:ietf:params:xml:ns:xmpp-framing'");
+	private static final byte[] EMPTY_END = bytes("/>");
+	static final ByteBuf CLOSE = constant(
+		"<close xmlns='urn:ietf:params:xml:ns:xmpp-framing'/>");
+	private static final byte[] STREAM_START = bytes(
+		"<?xml version='1.0'?>"
+		+ "<stream:stream xmlns='jabber:client'"
+		+ " xmlns:stream='http://etherx.jabber.org/streams'");
+	private static final byte[] TAG_END = bytes(">");
+	private static final ByteBuf STREAM_END = constant("</stream:stream>");
+
+	private static final byte[] STREAM = bytes("stream:stream");
+	private static final byte[] OPEN = bytes("open");
+	private static final byte[] CLOSE_NAME = bytes("close");
+
+	private final XmlStreamHeadDecoder decoder;
+	/** The server's sent </stream:stream>, the browser's sent <close/> */
+	volatile boolean serverClosed, clientClosed;
+
+	public StreamHeaderCodec(XmlStreamHeadDecoder decoder) {
+		this.decoder = decoder;
+	}
+
+	/** From the XMPP server */
+	@Override
+	protected void decode(ChannelHandlerContext ctx, ByteBuf msg, List<Object> out) {
+		StartTag tag = StartTag.get();
+		if (!decoder.started && tag.parse(msg) && !tag.closing && tag.nameIs(STREAM)) {
+			decoder.started = true;
+			out.add(rewrite(ctx, tag, OPEN_START, EMPTY_END));
+		} else if (isStreamEnd(tag, msg)) {
+			decoder.started = false;
+			serverClosed = true;
+			out.add(CLOSE.duplicate());
+		} else {
+			out.add(msg.retain());
+		}
+	}
+
+	/** From the websocket */
+	@Override
+	protected void encode(ChannelHandlerContext ctx, ByteBuf msg, List<Object> out) {
+		StartTag tag = StartTag.get();
+		if (!maybeOpenOrClose(msg) || !tag.parse(msg) || tag.closing) {
+			out.add(msg.retain());
+		} else if (tag.nameIs(OPEN)) {
+			//the server's going to send a new header in reply
+			decoder.started = false;
+			out.add(rewrite(ctx, tag, STREAM_START, TAG_END));
+		} else if (tag.nameIs(CLOSE_NAME)) {
+			clientClosed = true;
+			out.add(STREAM_END.duplicate());
+		} else {
+			out.add(msg.retain());
+		}
+	}
+
+	/** The tag just parsed, with a new name and namespaces */
+	private static ByteBuf rewrite(ChannelHandlerContext ctx, StartTag tag, byte[] start, byte[] end) {
+		ByteBuf out = ctx.alloc().buffer(
+			start.length + tag.attributesLength() + end.length);
+		out.writeBytes(start);
+		tag.writeAttributes(out);
+		return out.writeBytes(end);
+	}
+
+	/** Cheap checks first for these two, as they get asked about every
+	 * stanza */
+	private static boolean maybeOpenOrClose(ByteBuf msg) {
+		int i = msg.readerIndex(), end = msg.writerIndex();
+		while (i<end && StartTag.isWhitespace(msg.getByte(i))) i++;
+		if (i+1>=end || msg.getByte(i)!='<') return false;
+		byte b = msg.getByte(i+1);
+		return b=='o' || b=='c';
+	}
+
+
+	private static boolean isStreamEnd(StartTag tag, ByteBuf msg) {
+		return msg.readableBytes()>=2 && msg.getByte(msg.readerIndex()+1)=='/'
+			&& tag.parse(msg) && tag.closing && tag.nameIs(STREAM);
+	}
+}
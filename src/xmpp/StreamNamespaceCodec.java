@@ -0,0 +1,70 @@
+package xmpp;
+
+import static xmpp.StartTag.bytes;
+import static xmpp.StartTag.constant;
+import static xmpp.StartTag.startsWith;
+
+import java.util.List;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.MessageToMessageCodec;
+
+/** Stanzas in the stream namespace (features, errors) rely on the
+ * xmlns:stream declaration on the <stream:stream> element that wraps the
+ * whole XMPP stream. Over websockets each stanza is its own document, so
+ * the declaration has to go on the stanza itself. This splices it in after
+ * the element name on the way to the websocket, and takes it out again on
+ * the way to the server, where it's already declared.
+ *
+ * Anything not starting with <stream: is passed through without being
+ * looked at. That's nearly everything, so this has no state of its own and
+ * the one instance is shared by every session. */
+@Sharable
+public class StreamNamespaceCodec extends MessageToMessageCodec<ByteBuf, ByteBuf> {
+	public static final StreamNamespaceCodec INSTANCE = new StreamNamespaceCodec();
+
+	private static final byte[] PREFIX = bytes("<stream:");
+	private static final byte[] XMLNS_STREAM = bytes("xmlns:stream");
+	private static final ByteBuf DECLARATION = constant(
+		" xmlns:stream='http://etherx.jabber.org/streams'");
+
+	private StreamNamespaceCodec() {}
+
+	/** From the XMPP server */
+	@Override
+	protected void decode(ChannelHandlerContext ctx, ByteBuf msg, List<Object> out) {
+		StartTag tag;
+		if (!startsWith(msg, PREFIX) || !(tag = StartTag.get()).parse(msg)
+			|| tag.attr(XMLNS_STREAM)>=0) {
+			out.add(msg.retain());
+			return;
+		}
+		int start = msg.readerIndex(), end = msg.writerIndex();
+		out.add(ctx.alloc().compositeBuffer(3).addComponents(true,
+			msg.retainedSlice(start, tag.nameEnd-start),
+			DECLARATION.duplicate(),
+			msg.retainedSlice(tag.nameEnd, end-tag.nameEnd)));
+	}
+
+	/** From the websocket */
+	@Override
+	protected void encode(ChannelHandlerContext ctx, ByteBuf msg, List<Object> out) {
+		StartTag tag;
+		int attr;
+		if (!startsWith(msg, PREFIX) || !(tag = StartTag.get()).parse(msg)
+			|| (attr = tag.attr(XMLNS_STREAM))<0) {
+			out.add(msg.retain());
+			return;
+		}
+		//cut from the whitespace before the attribute to the closing quote
+		int cut = tag.attrNameStart[attr];
+		while (StartTag.isWhitespace(msg.getByte(cut-1))) cut--;
+		int resume = tag.valueEnd[attr]+1;
+		int start = msg.readerIndex(), end = msg.writerIndex();
+		out.add(ctx.alloc().compositeBuffer(2).addComponents(true,
+			msg.retainedSlice(start, cut-start),
+			msg.retainedSlice(resume, end-resume)));
+	}
+}
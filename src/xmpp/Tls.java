@@ -0,0 +1,211 @@
+package xmpp;
+
+import java.io.File;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import io.netty.channel.Channel;
+import io.netty.handler.ssl.ApplicationProtocolConfig;
+import io.netty.handler.ssl.ApplicationProtocolNames;
+import io.netty.handler.ssl.OpenSsl;
+import io.netty.handler.ssl.OpenSslSessionContext;
+import io.netty.handler.ssl.OpenSslSessionTicketKey;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.ssl.SslProvider;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+/** TLS on the websockets, so browsers can have wss:// straight to the
+ * bridge rather than through a proxy that does it for them. On when
+ * xmpp.tls.cert and xmpp.tls.key are set, to PEM files of the certificate
+ * chain and its PKCS#8 private key (xmpp.tls.keyPassword if the key's
+ * encrypted). /metrics is https then too, unless it's on the admin port.
+ *
+ * OpenSSL does the work if netty-tcnative is in libs (the boringssl-static
+ * jar is the easy one), otherwise it's the JDK's. xmpp.tls.provider=jdk or
+ * openssl picks one. TlsBench has what a handshake costs with each.
+ *
+ * A resumed session skips the expensive part of the handshake, which is
+ * what matters when a few thousand phones reconnect at once. There's a
+ * session cache, xmpp.tls.sessionCache sessions (20000) kept for
+ * xmpp.tls.sessionTimeout seconds (3600), and session tickets. With OpenSSL
+ * the bridge makes the ticket keys itself, so a reload doesn't throw away
+ * everyone's tickets along with the cache. There's a new one every
+ * sessionTimeout, with the one before kept to read the tickets it made, so
+ * a key that got out would only open an hour or two of sessions, not
+ * everything since the bridge started. The JDK does tickets itself, for
+ * TLS 1.3, and its keys last as long as the process.
+ * ALPN offers http/1.1, which is all that's spoken here.
+ *
+ * The files get looked at every xmpp.tls.reloadInterval ms (60000), and
+ * when they change the new certificate's used for connections from then
+ * on, without a restart. One that won't load is logged and the old one
+ * kept. That and the key changes happen on a thread of their own, as
+ * reading files and building a context on an event loop would hold up
+ * every connection on it.
+ *
+ * xmpp.upstream.tls=true does TLS to the XMPP servers as well, as soon as
+ * the socket's connected, which is XEP-0368's direct TLS (port 5223 on
+ * most servers) rather than STARTTLS. STARTTLS would have the bridge
+ * negotiating the stream the browser thinks it's negotiating, while this
+ * leaves the stream alone, and lets the sockets in a {@link WarmPool} be
+ * handshaken before anyone wants them. The server's certificate is checked
+ * against the JDK's CAs, or those in xmpp.upstream.tls.trust, and has to
+ * name the host it's connected to. xmpp.upstream.tls.insecure=true skips
+ * that, for testing. */
+class Tls {
+	static final Logger log = LogManager.getLogger(Tls.class);
+
+	static final String CERT = System.getProperty("xmpp.tls.cert");
+	static final String KEY = System.getProperty("xmpp.tls.key");
+	static final String KEY_PASSWORD = System.getProperty("xmpp.tls.keyPassword");
+	static final boolean ENABLED = CERT!=null && KEY!=null;
+	static final SslProvider PROVIDER = provider(System.getProperty("xmpp.tls.provider"));
+	static final int SESSION_CACHE = Integer.getInteger("xmpp.tls.sessionCache", 20000);
+	static final int SESSION_TIMEOUT = Integer.getInteger("xmpp.tls.sessionTimeout", 3600);
+	static final int RELOAD_INTERVAL = Integer.getInteger("xmpp.tls.reloadInterval", 60000);
+
+	static final boolean UPSTREAM = Boolean.getBoolean("xmpp.upstream.tls");
+	static final String UPSTREAM_TRUST = System.getProperty("xmpp.upstream.tls.trust");
+	static final boolean UPSTREAM_INSECURE = Boolean.getBoolean("xmpp.upstream.tls.insecure");
+
+	static final ApplicationProtocolConfig ALPN = new ApplicationProtocolConfig(
+		ApplicationProtocolConfig.Protocol.ALPN,
+		ApplicationProtocolConfig.SelectorFailureBehavior.NO_ADVERTISE,
+		ApplicationProtocolConfig.SelectedListenerFailureBehavior.ACCEPT,
+		ApplicationProtocolNames.HTTP_1_1);
+
+	/** 48 random bytes each for OpenSSL's ticket keys, the one tickets are
+	 * made with and the one before, or null */
+	private static byte[] ticketKey, previousTicketKey;
+	private static volatile SslContext server;
+	/** when the files were last loaded, or tried */
+	private static long loaded;
+
+	/** Loads the certificate, and keeps an eye on the files from then on.
+	 * Throws if it won't load, as a bridge that's meant to be doing TLS
+	 * shouldn't start without it */
+	static synchronized void start() {
+		if (!ENABLED || server!=null) return;
+		loaded = stamp();
+		try {
+			server = server(PROVIDER, new File(CERT), new File(KEY), KEY_PASSWORD);
+		} catch (SSLException | IllegalArgumentException e) {
+			throw new IllegalStateException("can't load " + CERT + " and " + KEY, e);
+		}
+		log.info("TLS with {}, {}", PROVIDER, CERT);
+		//a daemon, as it's only ever waiting on the timers
+		ScheduledExecutorService timer =
+			Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("tls", true));
+		if (RELOAD_INTERVAL>0) timer.scheduleWithFixedDelay(Tls::reload,
+			RELOAD_INTERVAL, RELOAD_INTERVAL, TimeUnit.MILLISECONDS);
+		if (PROVIDER!=SslProvider.JDK) timer.scheduleWithFixedDelay(Tls::rotate,
+			SESSION_TIMEOUT, SESSION_TIMEOUT, TimeUnit.SECONDS);
+	}
+
+	/** For a connection that's just been accepted */
+	static SslHandler handler(Channel ch) {
+		return server.newHandler(ch.alloc());
+	}
+
+	private static synchronized void reload() {
+		long stamp = stamp();
+		if (stamp==loaded) return;
+		//tried once either way. A key that's half written will have changed
+		//again by the time it's finished
+		loaded = stamp;
+		try {
+			server = server(PROVIDER, new File(CERT), new File(KEY), KEY_PASSWORD);
+			log.info("reloaded {}", CERT);
+		} catch (Exception e) {
+			log.warn("couldn't reload {}, keeping the old one", CERT, e);
+		}
+	}
+
+	/** A new ticket key, keeping the last one to decrypt with */
+	private static synchronized void rotate() {
+		previousTicketKey = ticketKey;
+		ticketKey = null;
+		SslContext ctx = server;
+		if (ctx!=null) setTicketKeys(ctx);
+		log.debug("new TLS ticket key");
+	}
+
+	private static long stamp() {
+		return new File(CERT).lastModified()*31 + new File(KEY).lastModified();
+	}
+
+	/** Not private so TlsBench can make them */
+	static SslContext server(SslProvider provider, File cert, File key, String password)
+		throws SSLException
+	{
+		SslContext ctx = SslContextBuilder.forServer(cert, key, password)
+			.sslProvider(provider)
+			.sessionCacheSize(SESSION_CACHE)
+			.sessionTimeout(SESSION_TIMEOUT)
+			.applicationProtocolConfig(ALPN)
+			.build();
+		if (provider!=SslProvider.JDK) setTicketKeys(ctx);
+		return ctx;
+	}
+
+	/** Only for OpenSSL, whose classes aren't there otherwise. The first
+	 * key makes tickets, and either can read them */
+	private static synchronized void setTicketKeys(SslContext ctx) {
+		if (ticketKey==null) {
+			ticketKey = new byte[OpenSslSessionTicketKey.TICKET_KEY_SIZE];
+			new SecureRandom().nextBytes(ticketKey);
+		}
+		OpenSslSessionContext session = (OpenSslSessionContext)ctx.sessionContext();
+		if (previousTicketKey==null) session.setTicketKeys(ticketKey(ticketKey));
+		else session.setTicketKeys(ticketKey(ticketKey), ticketKey(previousTicketKey));
+	}
+
+	private static OpenSslSessionTicketKey ticketKey(byte[] k) {
+		return new OpenSslSessionTicketKey(Arrays.copyOfRange(k, 0, 16),
+			Arrays.copyOfRange(k, 16, 32), Arrays.copyOfRange(k, 32, 48));
+	}
+
+	/** For the sockets to the XMPP servers, checking their certificates
+	 * unless told not to */
+	static SslContext client(SslProvider provider, boolean insecure, String trust)
+		throws SSLException
+	{
+		SslContextBuilder b = SslContextBuilder.forClient().sslProvider(provider);
+		if (insecure) b.trustManager(InsecureTrustManagerFactory.INSTANCE);
+		else if (trust!=null) b.trustManager(new File(trust));
+		return b.build();
+	}
+
+	/** Goes first in a freshly connected upstream socket's pipeline, and
+	 * starts the handshake. Anything written meanwhile waits for it */
+	static void connected(SslContext ctx, Channel ch, String host, int port) {
+		SslHandler h = ctx.newHandler(ch.alloc(), host, port);
+		if (!UPSTREAM_INSECURE) {
+			SSLParameters params = h.engine().getSSLParameters();
+			params.setEndpointIdentificationAlgorithm("HTTPS");
+			h.engine().setSSLParameters(params);
+		}
+		ch.pipeline().addFirst("tls", h);
+	}
+
+	private static SslProvider provider(String wanted) {
+		if ("jdk".equalsIgnoreCase(wanted)) return SslProvider.JDK;
+		if (OpenSsl.isAvailable()) return SslProvider.OPENSSL;
+		if ("openssl".equalsIgnoreCase(wanted)) {
+			log.warn("OpenSSL isn't available, using the JDK's TLS", OpenSsl.unavailabilityCause());
+		}
+		return SslProvider.JDK;
+	}
+}
@@ -0,0 +1,190 @@
+package xmpp;
+
+import java.net.StandardSocketOptions;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioChannelOption;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.incubator.channel.uring.IOUring;
+import io.netty.incubator.channel.uring.IOUringChannelOption;
+import io.netty.incubator.channel.uring.IOUringEventLoopGroup;
+import io.netty.incubator.channel.uring.IOUringServerSocketChannel;
+import io.netty.incubator.channel.uring.IOUringSocketChannel;
+
+/** Picks which of netty's socket implementations to use. The native ones are
+ * only there on Linux, and only if their jars (and the .so files inside them)
+ * have been dropped into libs, so everything falls back to plain NIO.
+ *
+ * Set -Dxmpp.transport=nio|epoll|io_uring to force one. Asking for one that
+ * isn't available gets you the best one that is.
+ *
+ * The event loop group and the channel classes have to come from the same
+ * transport, which is why the upstream client asks {@link #of} for whatever
+ * its websocket is running on rather than just using {@link #best()} */
+public enum Transport {
+	IO_URING {
+		@Override boolean available() {
+			return IOUring.isAvailable();
+		}
+		@Override public EventLoopGroup newGroup(int threads) {
+			return new IOUringEventLoopGroup(threads);
+		}
+		@Override public Class<? extends ServerChannel> serverChannel() {
+			return IOUringServerSocketChannel.class;
+		}
+		@Override public Class<? extends SocketChannel> socketChannel() {
+			return IOUringSocketChannel.class;
+		}
+		@Override boolean owns(EventLoopGroup group) {
+			return group.getClass().getName().startsWith(
+				"io.netty.incubator.channel.uring.");
+		}
+		@Override public ServerBootstrap configure(ServerBootstrap b) {
+			return b.option(ChannelOption.TCP_FASTOPEN, FASTOPEN_QUEUE)
+				.childOption(IOUringChannelOption.TCP_QUICKACK, true);
+		}
+		@Override public ServerBootstrap reusePort(ServerBootstrap b) {
+			return b.option(IOUringChannelOption.SO_REUSEPORT, true);
+		}
+		@Override public Bootstrap configure(Bootstrap b) {
+			return b.option(IOUringChannelOption.TCP_QUICKACK, true);
+		}
+	},
+	EPOLL {
+		@Override boolean available() {
+			return Epoll.isAvailable();
+		}
+		@Override public EventLoopGroup newGroup(int threads) {
+			return new EpollEventLoopGroup(threads);
+		}
+		@Override public Class<? extends ServerChannel> serverChannel() {
+			return EpollServerSocketChannel.class;
+		}
+		@Override public Class<? extends SocketChannel> socketChannel() {
+			return EpollSocketChannel.class;
+		}
+		@Override boolean owns(EventLoopGroup group) {
+			return group.getClass().getName().startsWith("io.netty.channel.epoll.");
+		}
+		@Override public ServerBootstrap configure(ServerBootstrap b) {
+			return b.option(ChannelOption.TCP_FASTOPEN, FASTOPEN_QUEUE)
+				.childOption(EpollChannelOption.TCP_QUICKACK, true);
+		}
+		@Override public ServerBootstrap reusePort(ServerBootstrap b) {
+			return b.option(EpollChannelOption.SO_REUSEPORT, true);
+		}
+		@Override public Bootstrap configure(Bootstrap b) {
+			return b.option(EpollChannelOption.TCP_QUICKACK, true);
+		}
+	},
+	NIO {
+		@Override boolean available() {
+			return true;
+		}
+		@Override public EventLoopGroup newGroup(int threads) {
+			return new NioEventLoopGroup(threads);
+		}
+		@Override public Class<? extends ServerChannel> serverChannel() {
+			return NioServerSocketChannel.class;
+		}
+		@Override public Class<? extends SocketChannel> socketChannel() {
+			return NioSocketChannel.class;
+		}
+		@Override boolean owns(EventLoopGroup group) {
+			return group.getClass().getName().startsWith("io.netty.channel.nio.");
+		}
+		@Override public ServerBootstrap configure(ServerBootstrap b) {
+			return b;
+		}
+		/** The JDK's had it since 9, on the platforms that have it */
+		@Override public ServerBootstrap reusePort(ServerBootstrap b) {
+			return b.option(NioChannelOption.of(StandardSocketOptions.SO_REUSEPORT), true);
+		}
+		@Override public Bootstrap configure(Bootstrap b) {
+			return b;
+		}
+	};
+
+	static final Logger log = LogManager.getLogger(Transport.class);
+
+	/** Length of the pending TCP fast open queue on listening sockets */
+	static final int FASTOPEN_QUEUE =
+		Integer.getInteger("xmpp.tcpFastOpen", 256);
+
+	private static volatile Transport best;
+
+	/** Whether the native bits of this transport loaded. The checks can
+	 * throw rather than return false if the jar isn't on the classpath */
+	abstract boolean available();
+
+	/** @param threads number of event loops, or 0 for netty's default */
+	public abstract EventLoopGroup newGroup(int threads);
+	public abstract Class<? extends ServerChannel> serverChannel();
+	public abstract Class<? extends SocketChannel> socketChannel();
+	abstract boolean owns(EventLoopGroup group);
+
+	/** Adds the transport specific socket options. Native ones only.
+	 * Upstream sockets don't get TCP fast open, as netty only uses it for
+	 * data that's queued before the connect, and nothing here writes until
+	 * after */
+	public abstract ServerBootstrap configure(ServerBootstrap b);
+	public abstract Bootstrap configure(Bootstrap b);
+	/** Sets SO_REUSEPORT on listening sockets, so several of them can be
+	 * bound to the same port and have the kernel share connections out
+	 * between them */
+	public abstract ServerBootstrap reusePort(ServerBootstrap b);
+
+	private boolean usable() {
+		try {
+			return available();
+		} catch (Throwable e) {
+			return false;
+		}
+	}
+
+	/** The best transport available on this box, worked out once */
+	public static Transport best() {
+		if (best==null) {
+			Transport t = pick(System.getProperty("xmpp.transport"));
+			log.info("using {} transport", t);
+			best = t;
+		}
+		return best;
+	}
+
+	static Transport pick(String wanted) {
+		if (wanted!=null) {
+			try {
+				Transport t = valueOf(wanted.trim().toUpperCase());
+				if (t.usable()) return t;
+				log.warn("{} transport not available", t);
+			} catch (IllegalArgumentException e) {
+				log.warn("unknown transport {}", wanted);
+			}
+		}
+		for (Transport t: values()) if (t.usable()) return t;
+		return NIO;
+	}
+
+	/** The transport that a group (or a single event loop) belongs to */
+	public static Transport of(EventLoopGroup group) {
+		for (Transport t: values()) if (t.owns(group)) return t;
+		throw new IllegalArgumentException(
+			"unknown event loop type " + group.getClass().getName());
+	}
+}
@@ -0,0 +1,260 @@
+package xmpp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLException;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.handler.ssl.SslContext;
+import io.netty.util.concurrent.Promise;
+
+/** The XMPP servers the bridge can send sessions to, eg the nodes of a
+ * cluster, given as host[:port],host[:port],... with 5222 the default port.
+ *
+ * Each session goes to one node, picked either by fewest connections
+ * (xmpp.upstream.balance=leastconn, the default) or by consistent hashing
+ * of the domain in the client's <open to='...'/> (=hash), which keeps a
+ * domain on the same node for as long as that node's up. Hashing means the
+ * connect has to wait for the <open/>.
+ *
+ * Nodes that are down get skipped, known about two ways. Every
+ * xmpp.upstream.probeInterval ms (5000) each node gets a TCP connect, and
+ * its answer decides whether it's up. And a failed connect for a session
+ * takes a node out straight away, for a second, doubling each time it
+ * fails again, up to half a minute. A failed connect goes on to the next
+ * node, until they've all been tried. If every node's down they get tried
+ * anyway, in case the probes are wrong.
+ *
+ * With xmpp.upstream.tls=true the sockets do TLS as soon as they're
+ * connected, see {@link Tls}. A handshake that fails closes the session
+ * like any other error on its socket, it doesn't go on to the next node. */
+public class UpstreamPool {
+	static final Logger log = LogManager.getLogger(UpstreamPool.class);
+
+	static final String BALANCE = System.getProperty("xmpp.upstream.balance", "leastconn");
+	static final int PROBE_INTERVAL = Integer.getInteger("xmpp.upstream.probeInterval", 5000);
+	static final int CONNECT_TIMEOUT = Integer.getInteger("xmpp.upstream.connectTimeout", 2000);
+	/** points on the hash ring per node, to even out the spread */
+	static final int VIRTUAL_NODES = 100;
+
+	public static class UpstreamNode {
+		public final String host;
+		public final int port;
+		final AtomicInteger connections = new AtomicInteger();
+		/** what the last probe said */
+		volatile boolean healthy = true;
+		/** out of use until then after failed connects */
+		volatile long downUntil;
+		private final AtomicInteger failures = new AtomicInteger();
+
+		UpstreamNode(String host, int port) {
+			this.host = host;
+			this.port = port;
+		}
+
+		public boolean up() {
+			return healthy && (failures.get()==0 || System.nanoTime()-downUntil>=0);
+		}
+
+		public int connections() {
+			return connections.get();
+		}
+
+		void connected() {
+			failures.set(0);
+		}
+
+		void failed() {
+			int n = Math.min(failures.incrementAndGet(), 6);
+			long backoff = Math.min(TimeUnit.SECONDS.toNanos(1) << (n-1),
+				TimeUnit.SECONDS.toNanos(30));
+			downUntil = System.nanoTime() + backoff;
+		}
+
+		@Override
+		public String toString() {
+			return host + ":" + port;
+		}
+	}
+
+	final List<UpstreamNode> nodes;
+	private final boolean hash;
+	private final TreeMap<Integer, UpstreamNode> ring = new TreeMap<>();
+	/** spare sockets for each group sessions connect on */
+	private final Map<EventLoopGroup, WarmPool> warm = new ConcurrentHashMap<>();
+	/** for xmpp.upstream.tls, or null */
+	private final SslContext tls;
+
+	public UpstreamPool(List<UpstreamNode> nodes, boolean hash) {
+		if (nodes.isEmpty()) throw new IllegalArgumentException("no upstream servers");
+		this.nodes = Collections.unmodifiableList(nodes);
+		this.hash = hash;
+		for (UpstreamNode n: nodes) {
+			for (int i = 0; i<VIRTUAL_NODES; i++) ring.put(mix((n + "#" + i).hashCode()), n);
+		}
+		try {
+			tls = Tls.UPSTREAM
+				? Tls.client(Tls.PROVIDER, Tls.UPSTREAM_INSECURE, Tls.UPSTREAM_TRUST) : null;
+		} catch (SSLException e) {
+			throw new IllegalArgumentException("can't set up upstream TLS", e);
+		}
+	}
+
+	/** host[:port],host[:port],... balanced the way xmpp.upstream.balance
+	 * says */
+	public static UpstreamPool parse(String spec) {
+		List<UpstreamNode> nodes = new ArrayList<>();
+		for (String s: spec.split(",")) {
+			s = s.trim();
+			if (s.isEmpty()) continue;
+			int colon = s.lastIndexOf(':');
+			nodes.add(colon<0 ? new UpstreamNode(s, 5222)
+				: new UpstreamNode(s.substring(0, colon), Integer.parseInt(s.substring(colon+1))));
+		}
+		return new UpstreamPool(nodes, "hash".equalsIgnoreCase(BALANCE));
+	}
+
+	public List<UpstreamNode> nodes() {
+		return nodes;
+	}
+
+	/** For xmpp.upstream.tls, or null */
+	SslContext tls() {
+		return tls;
+	}
+
+	/** Whether sessions have to say which domain they want before a node
+	 * can be picked */
+	public boolean needsDomain() {
+		return hash;
+	}
+
+	/** Connects a session somewhere, trying each node in turn until one
+	 * works, and taking a spare from the {@link WarmPool} if there is one.
+	 * The promise gets the channel, or the last failure. Cancelling it
+	 * stops any more tries, and closes the channel if one turns up after. */
+	public void connect(Bootstrap b, String domain, Promise<Channel> result) {
+		b.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, CONNECT_TIMEOUT);
+		attempt(b, domain, new HashSet<>(), result);
+	}
+
+	private void attempt(Bootstrap b, String domain, Set<UpstreamNode> tried,
+		Promise<Channel> result)
+	{
+		UpstreamNode node = pick(domain, tried);
+		tried.add(node);
+		long start = System.nanoTime();
+		Channel spare = WarmPool.MAX>0 ? warm.computeIfAbsent(b.config().group(),
+			g->new WarmPool(nodes, b, tls)).take(node) : null;
+		if (spare!=null) {
+			node.connections.incrementAndGet();
+			spare.closeFuture().addListener(x->node.connections.decrementAndGet());
+			spare.pipeline().addLast(b.config().handler());
+			Metrics.upstreamConnect.recordNanos(System.nanoTime() - start);
+			if (!result.trySuccess(spare)) spare.close();
+			return;
+		}
+		//counted from now, or a burst of sessions would all pick the same node
+		node.connections.incrementAndGet();
+		b.connect(node.host, node.port).addListener((ChannelFuture c)->{
+			if (c.isSuccess()) {
+				node.connected();
+				if (tls!=null) Tls.connected(tls, c.channel(), node.host, node.port);
+				c.channel().closeFuture().addListener(x->node.connections.decrementAndGet());
+				Metrics.upstreamConnect.recordNanos(System.nanoTime() - start);
+				if (!result.trySuccess(c.channel())) c.channel().close();
+				return;
+			}
+			node.connections.decrementAndGet();
+			log.warn("couldn't connect to {}: {}", node, c.cause().toString());
+			node.failed();
+			Metrics.upstreamConnectFailures.increment();
+			if (result.isDone()) return;
+			if (tried.size()<nodes.size()) attempt(b, domain, tried, result);
+			else result.tryFailure(c.cause());
+		});
+	}
+
+	/** The node a session should go to, out of those not tried yet */
+	UpstreamNode pick(String domain, Set<UpstreamNode> tried) {
+		UpstreamNode best = hash ? hashed(domain, tried, true) : leastConnections(tried, true);
+		if (best!=null) return best;
+		//nothing's up, so go with what the probes don't know
+		return hash ? hashed(domain, tried, false) : leastConnections(tried, false);
+	}
+
+	private UpstreamNode leastConnections(Set<UpstreamNode> tried, boolean upOnly) {
+		UpstreamNode best = null;
+		for (UpstreamNode n: nodes) {
+			if (tried.contains(n) || upOnly && !n.up()) continue;
+			if (best==null || n.connections()<best.connections()) best = n;
+		}
+		return best;
+	}
+
+	/** Clockwise round the ring from the domain's hash to the first node
+	 * that'll do */
+	private UpstreamNode hashed(String domain, Set<UpstreamNode> tried, boolean upOnly) {
+		int h = mix(domain==null ? 0 : domain.toLowerCase().hashCode());
+		for (Map<Integer, UpstreamNode> part: List.of(ring.tailMap(h), ring.headMap(h))) {
+			for (UpstreamNode n: part.values()) {
+				if (!tried.contains(n) && (!upOnly || n.up())) return n;
+			}
+		}
+		return null;
+	}
+
+	/** String hashes are too alike for nearby strings to spread round a
+	 * ring. This is murmur3's finalizer */
+	static int mix(int h) {
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		return h ^ h >>> 16;
+	}
+
+	/** Starts probing the nodes on one of the group's loops. Doesn't
+	 * bother for a single node, as it gets tried whatever they say */
+	public UpstreamPool startProbes(EventLoopGroup group) {
+		if (nodes.size()<2 || PROBE_INTERVAL<=0) return this;
+		Transport t = Transport.of(group);
+		Bootstrap b = t.configure(new Bootstrap()).group(group).channel(t.socketChannel())
+			.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, CONNECT_TIMEOUT)
+			.handler(new ChannelInitializer<Channel>() {
+				@Override
+				protected void initChannel(Channel ch) {
+					//nothing to do, they're closed as soon as they connect
+				}
+			});
+		group.next().scheduleWithFixedDelay(()->{
+			for (UpstreamNode n: nodes) {
+				b.connect(n.host, n.port).addListener((ChannelFuture c)->{
+					if (n.healthy!=c.isSuccess()) {
+						log.warn("{} is {}", n, c.isSuccess() ? "up" : "down");
+					}
+					n.healthy = c.isSuccess();
+					if (c.isSuccess()) c.channel().close();
+				});
+			}
+		}, 0, PROBE_INTERVAL, TimeUnit.MILLISECONDS);
+		return this;
+	}
+}
@@ -5,6 +5,7 @@ import org.apache.logging.log4j.Logger;
 
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
 import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.buffer.Unpooled;
 
@@ -17,10 +18,9 @@ import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoop;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.codec.http.FullHttpRequest;
 import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.codec.http.HttpHeaders;
@@ -32,13 +32,22 @@ import io.netty.handler.codec.http.HttpResponseEncoder;
 import io.netty.handler.codec.http.HttpUtil;
 import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
 import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.ContinuationWebSocketFrame;
 import io.netty.handler.codec.http.websocketx.PingWebSocketFrame;
 import io.netty.handler.codec.http.websocketx.PongWebSocketFrame;
 import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketCloseStatus;
 import io.netty.handler.codec.http.websocketx.WebSocketFrame;
 import io.netty.handler.codec.http.websocketx.WebSocketServerHandshaker;
 import io.netty.handler.codec.http.websocketx.WebSocketServerHandshakerFactory;
 import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.ScheduledFuture;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiConsumer;
 import java.util.function.BiFunction;
 import java.util.function.Consumer;
@@ -47,8 +56,30 @@ import java.util.function.Consumer;
  * Slightly grubby websocket server writted in Netty. Issues include:
  * - There are better classes for supporting the websocket protocol now, and 
  * 		this thing could probably be reduced to about 3 lines
- * - It doesn't seem to handle continuation frames, which will affect large
- * 		
+ *
+ * Messages that come in several frames are put back together, or streamed
+ * with {@link #wsFragmentHandler}. No frame can be bigger than
+ * xmpp.ws.maxFrameSize (64KB) and no message bigger than
+ * xmpp.ws.maxMessageSize (256KB), or the websocket gets closed with 1009.
+ *
+ * With xmpp.reusePort=true there's a listening socket per event loop, all
+ * on the same port with SO_REUSEPORT, and what each one accepts stays on its
+ * loop. The kernel spreads new connections over them, so accepting and
+ * upgrading isn't all queued up behind one thread (and one backlog) when
+ * everybody reconnects at once. Other processes with it set can bind the
+ * port too, which is how a new bridge takes over from an old one without
+ * refusing anyone, see {@link #stop()}.
+ *
+ * A websocket that's sent nothing for a whole xmpp.ws.pingInterval (30s)
+ * gets a ping, and if there's still nothing by the end of the next one it's
+ * closed, which is what happens to browsers that went away without saying.
+ * A plain HTTP connection gets closed the first time. That's a timer per
+ * connection, on the handler itself, rather than an IdleStateHandler, which
+ * is three objects and a pipeline slot a time for something that's only
+ * looked at twice a minute.
+ *
+ * With xmpp.tls.cert and xmpp.tls.key set it's wss:// (and https), see
+ * {@link Tls}.
  * Please feel free to rewrite or replace */
 public class WSServer {
 	protected static final Logger log = LogManager.getLogger(WSServer.class);
@@ -56,6 +87,10 @@ public class WSServer {
 	private BiFunction<Channel, FullHttpRequest, HttpResponse> httpHandler;
 	private BiConsumer<Channel, FullHttpRequest> wsUpgrade;
 	private BiConsumer<Channel, byte[]> wsHandler;
+	private BiConsumer<Channel, ByteBuf> wsBufHandler;
+	private BiConsumer<Channel, ByteBuf> wsFragmentHandler;
+	private Consumer<Channel> wsReadComplete;
+	private Consumer<Channel> wsWritabilityChanged;
 	private Consumer<String> cbMonitor;
 	
 	public WSServer(int port) {
@@ -79,19 +114,107 @@ public class WSServer {
 		return this;
 	}
 
+	/** Like wsHandler, but gets the frame's content as it came off the wire
+	 * rather than a copy. The handler owns the buffer and has to release it
+	 * (or pass it on to something that will). If both are set this one wins */
+	public WSServer wsBufHandler(BiConsumer<Channel, ByteBuf> wsBufHandler) {
+		this.wsBufHandler = wsBufHandler;
+		return this;
+	}
+
+	/** Gets the rest of a message that came in several frames as each
+	 * frame arrives, rather than it all being held until the last one. The
+	 * start of it, up to the first {@link #HEAD} bytes, still goes to
+	 * wsBufHandler first, so the first tag's there whole for anything that
+	 * looks at it. The parts carry straight on from there, nothing marks
+	 * where they are in the message. Ownership's the same as wsBufHandler */
+	public WSServer wsFragmentHandler(BiConsumer<Channel, ByteBuf> wsFragmentHandler) {
+		this.wsFragmentHandler = wsFragmentHandler;
+		return this;
+	}
+
+	/** Called at the end of each read on a websocket, once all the frames
+	 * from it have been handled. Anything passing them on without flushing
+	 * should flush here */
+	public WSServer wsReadComplete(Consumer<Channel> wsReadComplete) {
+		this.wsReadComplete = wsReadComplete;
+		return this;
+	}
+
+	/** Called when a websocket goes over or back under its write buffer's
+	 * high water mark. See {@link Backpressure} */
+	public WSServer wsWritabilityChanged(Consumer<Channel> wsWritabilityChanged) {
+		this.wsWritabilityChanged = wsWritabilityChanged;
+		return this;
+	}
+
 	public WSServer monitor(Consumer<String> cb) {
 		cbMonitor = cb;
 		return this;
 	}
 
-	private class Handler extends ChannelInboundHandlerAdapter {
-		private WebSocketServerHandshaker handshaker;
+	static final int MAX_FRAME = Integer.getInteger("xmpp.ws.maxFrameSize", 64 * 1024);
+	static final int MAX_MESSAGE = Integer.getInteger("xmpp.ws.maxMessageSize", 256 * 1024);
+	/** How much of a fragmented message is held before the rest gets
+	 * streamed. A start tag that's longer than this is asking for it */
+	static final int HEAD = 4096;
+	/** Only the handshake (and /metrics) ever goes through the aggregator,
+	 * netty's handshaker takes it out of the pipeline once upgraded */
+	static final int MAX_REQUEST = 8192;
+	static final boolean REUSE_PORT = Boolean.getBoolean("xmpp.reusePort");
+	/** Per listening socket. The kernel caps it at net.core.somaxconn */
+	static final int BACKLOG = Integer.getInteger("xmpp.backlog", 1024);
+	static final int PING_INTERVAL = Integer.getInteger("xmpp.ws.pingInterval", 30000);
+
+	/** All there is of a connection in here. The handshaker's only wanted
+	 * for the handshake, so it isn't kept */
+	private class Handler extends ChannelInboundHandlerAdapter implements Runnable {
+		private ChannelHandlerContext ctx;
+		private ScheduledFuture<?> ticker;
+		private boolean upgraded;
+		/** The message being put together from several frames, and how much
+		 * of it there's been so far. Null once it's being streamed */
+		private CompositeByteBuf head;
+		private int messageSize;
+		private boolean streaming;
+		/** something's come in since the last tick, and a ping's gone out
+		 * that nothing's come in since */
+		private boolean read, pinged;
+
+		@Override
+		public void handlerAdded(ChannelHandlerContext ctx) {
+			this.ctx = ctx;
+			if (PING_INTERVAL>0) ticker = ctx.executor().scheduleAtFixedRate(
+				this, PING_INTERVAL, PING_INTERVAL, TimeUnit.MILLISECONDS);
+		}
+
+		/** Every pingInterval */
+		@Override
+		public void run() {
+			if (read || upgraded && !ctx.channel().config().isAutoRead()) {
+				//it's us that's stopped reading, for backpressure or such,
+				//so a pong could be sitting there unread. Start again once
+				//it's reading
+				read = pinged = false;
+			} else if (!upgraded || pinged) {
+				Metrics.idleClosed.increment();
+				ctx.close();
+			} else {
+				pinged = true;
+				ctx.writeAndFlush(new PingWebSocketFrame(), ctx.voidPromise());
+			}
+		}
 
 		@Override
 		public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+			read = true;
 			try {
 				if (msg instanceof FullHttpRequest) {
-					http(ctx, (FullHttpRequest) msg);
+					try {
+						http(ctx, (FullHttpRequest) msg);
+					} finally {
+						((FullHttpRequest) msg).release();
+					}
 				} else if (msg instanceof WebSocketFrame) {
 					websocket(ctx, (WebSocketFrame) msg);
 				} else {
@@ -106,8 +229,30 @@ public class WSServer {
 		@Override
 		public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
 			ctx.flush();
+			if (upgraded && wsReadComplete!=null) {
+				wsReadComplete.accept(ctx.channel());
+			}
 		}
 		
+		@Override
+		public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+			if (ticker!=null) ticker.cancel(false);
+			if (upgraded) Metrics.wsSessions.decrement();
+			if (head!=null) {
+				head.release();
+				head = null;
+			}
+			ctx.fireChannelInactive();
+		}
+
+		@Override
+		public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+			if (upgraded && wsWritabilityChanged!=null) {
+				wsWritabilityChanged.accept(ctx.channel());
+			}
+			ctx.fireChannelWritabilityChanged();
+		}
+
 		private boolean isUpgrade(HttpRequest req) {
 			return req.method() == GET && req.headers().contains("Upgrade");
 		}
@@ -121,16 +266,18 @@ public class WSServer {
 			} else if (isUpgrade(req)) {
 				WebSocketServerHandshakerFactory wsFactory = 
 					new WebSocketServerHandshakerFactory(
-						"wss://" + head.get(HttpHeaderNames.HOST),
-						"xmpp", false, Integer.MAX_VALUE
+						(Tls.ENABLED ? "wss://" : "ws://") + head.get(HttpHeaderNames.HOST),
+						"xmpp", Deflate.ENABLED, MAX_FRAME
 				);
-				handshaker = wsFactory.newHandshaker(req);
+				WebSocketServerHandshaker handshaker = wsFactory.newHandshaker(req);
 				if (handshaker == null) {
 					log.debug("Hit unsupported");
 					WebSocketServerHandshakerFactory
 						.sendUnsupportedVersionResponse(ch);
 				} else {
 					handshaker.handshake(ch, req);
+					upgraded = true;
+					Metrics.wsSessions.increment();
 					if (wsUpgrade!=null) wsUpgrade.accept(ch, req);
 				}
 			} else {
@@ -142,33 +289,29 @@ public class WSServer {
 					}
 				}
 			}
-			
-			// TODO: proably matters httpRes.release();
 		}
 		
 		private void websocket(ChannelHandlerContext ctx, WebSocketFrame f) {
 			Channel ch = ctx.channel();
 			if (f instanceof CloseWebSocketFrame) {
-				handshaker.close(ch, (CloseWebSocketFrame) f);
+				close(ch, (CloseWebSocketFrame) f);
 			} else if (f instanceof PingWebSocketFrame) {
 				ctx.write(new PongWebSocketFrame(
 					f.isFinalFragment(), f.rsv(),
 					f.content()), ctx.voidPromise());
-			} else if (f instanceof BinaryWebSocketFrame) {
-				if (wsHandler!=null) {
-					wsHandler.accept(ch, bufToBytes(f.content()));
-				}
-				// } else if (frame instanceof ContinuationWebSocketFrame) {
-				// ctx.write(frame, ctx.voidPromise());
-				f.release();
-			} else if (f instanceof TextWebSocketFrame) {
-				log.error("text frame {}", f);
-				if (wsHandler!=null) {
-					wsHandler.accept(ch, bufToBytes(f.content()));
+			} else if (f instanceof BinaryWebSocketFrame || f instanceof TextWebSocketFrame) {
+				if (f instanceof TextWebSocketFrame) log.trace("text frame {}", f);
+				messageSize = 0;
+				if (f.isFinalFragment() && f.content().readableBytes()<=MAX_MESSAGE) {
+					payload(ch, f.content());
+				} else {
+					fragment(ctx, f);
 				}
-				// } else if (frame instanceof ContinuationWebSocketFrame) {
-				// ctx.write(frame, ctx.voidPromise());
-				f.release();
+			} else if (f instanceof ContinuationWebSocketFrame) {
+				//netty's decoder has already checked there's a message to
+				//continue, so if there isn't it's one that was too big
+				if (head!=null || streaming) fragment(ctx, f);
+				else f.release();
 			} else if (f instanceof PongWebSocketFrame) {
 				f.release(); // Ignore
 			} else {
@@ -179,42 +322,132 @@ public class WSServer {
 			}
 		}
 		
+		/** Hands a whole message (or the start of one) on, releasing it
+		 * unless the buffer handler has taken it */
+		private void payload(Channel ch, ByteBuf content) {
+			if (wsBufHandler!=null) {
+				wsBufHandler.accept(ch, content);
+				return;
+			}
+			if (wsHandler!=null) {
+				wsHandler.accept(ch, bufToBytes(content));
+			}
+			content.release();
+		}
+
+		/** A frame of a message in several, or one on its own that's too
+		 * big. The first HEAD bytes are held and go on together, after that
+		 * each frame's passed on as it comes if there's a fragment handler.
+		 * Without one it's all held until the last frame */
+		private void fragment(ChannelHandlerContext ctx, WebSocketFrame f) {
+			Channel ch = ctx.channel();
+			ByteBuf content = f.content();
+			messageSize += content.readableBytes();
+			if (messageSize>MAX_MESSAGE || messageSize<0) {
+				f.release();
+				if (head!=null) head.release();
+				head = null;
+				streaming = false;
+				log.warn("message of more than {} bytes from {}", MAX_MESSAGE, ch.remoteAddress());
+				close(ch, new CloseWebSocketFrame(WebSocketCloseStatus.MESSAGE_TOO_BIG));
+				return;
+			}
+			if (streaming) {
+				streaming = !f.isFinalFragment();
+				wsFragmentHandler.accept(ch, content);
+				return;
+			}
+			if (head==null) head = ctx.alloc().compositeBuffer(64);
+			head.addComponent(true, content);
+			if (f.isFinalFragment() || wsFragmentHandler!=null && head.readableBytes()>=HEAD) {
+				ByteBuf start = head;
+				head = null;
+				streaming = !f.isFinalFragment();
+				payload(ch, start);
+			}
+		}
+		
+		/** What the handshaker would do */
+		private void close(Channel ch, CloseWebSocketFrame f) {
+			if (ch.isActive()) {
+				ch.writeAndFlush(f).addListener(ChannelFutureListener.CLOSE);
+			} else {
+				f.release();
+			}
+		}
+
 		@Override
 		public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause)
 			throws Exception {
-			cause.printStackTrace();
+			log.warn("closing {}", ctx.channel().remoteAddress(), cause);
 			ctx.close();
 		}
 	}
 	private final int port;
-	private ChannelFuture f;
+	private final List<Channel> listeners = new CopyOnWriteArrayList<>();
+
+	/** Sets up a freshly accepted connection. Not private so the benchmarks
+	 * can put the same pipeline on an EmbeddedChannel */
+	void initChannel(Channel ch) {
+		ch.pipeline()
+			.addLast("stamp", new Metrics.ReadStamp())
+			.addLast("decoder", new HttpRequestDecoder())
+			.addLast("aggregator", new HttpObjectAggregator(MAX_REQUEST))
+			.addLast("encoder", new HttpResponseEncoder());
+		if (Deflate.ENABLED) ch.pipeline().addLast("deflate", Deflate.handler(ch));
+		ch.pipeline().addLast("handler", new Handler());
+		FlushBatchHandler.install(ch.pipeline());
+		//ahead of the flush batching, so a batch is as few records as it can be
+		if (Tls.ENABLED) ch.pipeline().addFirst("tls", Tls.handler(ch));
+	}
+
 	public void run() throws InterruptedException {
-		EventLoopGroup group = new NioEventLoopGroup();
-		ServerBootstrap b = new ServerBootstrap();
-		b.group(group).channel(NioServerSocketChannel.class)
+		Transport transport = Transport.best();
+		EventLoopGroup group = transport.newGroup(0);
+		Metrics.watch("ws", group);
+		Tls.start();
+		ServerBootstrap b = Backpressure.configure(transport.configure(new ServerBootstrap()));
+		b.channel(transport.serverChannel())
 			.childOption(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
-			.option(ChannelOption.SO_BACKLOG, 1024)
+			.childOption(ChannelOption.RCVBUF_ALLOCATOR, Backpressure.RECV)
+			.option(ChannelOption.SO_BACKLOG, BACKLOG)
 			.childHandler(new ChannelInitializer<SocketChannel>() { // (4)
 				@Override
 				public void initChannel(SocketChannel ch) throws Exception {
-					ch.pipeline()
-						.addLast("decoder", new HttpRequestDecoder())
-						.addLast("aggregator", new HttpObjectAggregator(2300000))
-						.addLast("encoder", new HttpResponseEncoder())
-						.addLast("handler", new Handler());
+					WSServer.this.initChannel(ch);
 				}
 			});
-		f = b.bind(port);
-		log.info("binding to port {}", port);
-		f.addListener(new FutureLambda<ChannelFuture>(
-			i->log.info((i.isSuccess() ? "bound" : "failed to bind") + " to port {}", port)));
-		f.channel().closeFuture()
-			.addListener(new FutureLambda<ChannelFuture>(i-> group.shutdownGracefully()));
-
+		List<ChannelFuture> binds = new ArrayList<>();
+		if (REUSE_PORT) {
+			transport.reusePort(b);
+			for (EventExecutor loop: group) {
+				EventLoop l = (EventLoop)loop;
+				binds.add(b.clone().group(l, l).bind(port));
+			}
+		} else {
+			binds.add(b.group(group).bind(port));
+		}
+		log.info("binding {} listener(s) to port {}", binds.size(), port);
+		AtomicInteger open = new AtomicInteger(binds.size());
+		for (ChannelFuture f: binds) {
+			listeners.add(f.channel());
+			f.addListener(new FutureLambda<ChannelFuture>(
+				i->log.info((i.isSuccess() ? "bound" : "failed to bind") + " to port {}", port)));
+			//the sessions go when the last listener does
+			f.channel().closeFuture().addListener(new FutureLambda<ChannelFuture>(i->{
+				if (open.decrementAndGet()==0) group.shutdownGracefully();
+			}));
+		}
 	}
-	
+
+	/** Stops listening, and waits until it has. With xmpp.reusePort the
+	 * kernel sends new connections to whatever else is bound to the port
+	 * from then on, so to restart without refusing anyone, start the new
+	 * bridge and then stop this one. The sessions here get dropped and
+	 * reconnect to the new one. Anything that was waiting in this one's
+	 * accept queue when it closed gets reset, the kernel doesn't move it */
 	public void stop() {
-		f.channel().disconnect();
+		for (Channel ch: listeners) ch.close().syncUninterruptibly();
 	}
 
 	public static byte[] bufToBytes(ByteBuf buf) {
@@ -237,9 +470,9 @@ public class WSServer {
 	
 	public static void main(String[] args) throws InterruptedException {
 		WSServer wss = new WSServer(8080);
-		wss.wsUpgrade((u,i)->log.error("upgrade"))
+		wss.wsUpgrade((u,i)->log.info("upgrade"))
 			.wsHandler((u,i)->{
-				log.error("got {}", i);
+				log.info("got {}", i);
 				wss.writeToChannel(u, "you said "+new String(i));
 			})
 			.wsUpgrade((ch, d)->wss.writeToChannel(ch, "oh hai"))
@@ -0,0 +1,192 @@
+package xmpp;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.ssl.SslContext;
+import io.netty.util.ReferenceCountUtil;
+
+/** Sockets to the XMPP servers dialled ahead of time, so a new session can
+ * have one straight away instead of waiting on a TCP handshake (or a TLS
+ * terminating load balancer's). They're connected and nothing else, the
+ * session's own pipeline goes on when it takes one and it sends its
+ * <open/> as usual. With upstream TLS they've done the handshake too, or
+ * started it.
+ *
+ * There's one of these for each group the upstream sockets go on, which
+ * by default means one per websocket event loop, so a session still gets a
+ * socket on its own thread. Each node has its own stock, sized to about a
+ * second's worth of the sessions that have wanted that node lately (a
+ * decaying average over ten seconds), up to xmpp.upstream.warm. Nobody
+ * asking means no spares. They're closed after xmpp.upstream.warmIdle ms
+ * (20000) unused, which wants to be under whatever the server allows a
+ * connection that hasn't opened a stream.
+ *
+ * Everything's under the pool's lock, which is only ever contended when
+ * there's a shared upstream group. */
+class WarmPool {
+	static final int MAX = Integer.getInteger("xmpp.upstream.warm", 0);
+	static final long IDLE = TimeUnit.MILLISECONDS.toNanos(
+		Integer.getInteger("xmpp.upstream.warmIdle", 20000));
+	/** how far back the demand average looks */
+	static final double TAU = TimeUnit.SECONDS.toNanos(10);
+
+	private static class Spare {
+		final Channel ch;
+		final long born = System.nanoTime();
+
+		Spare(Channel ch) {
+			this.ch = ch;
+		}
+	}
+
+	/** One node's spares */
+	private static class Stock {
+		final ArrayDeque<Spare> idle = new ArrayDeque<>();
+		int dialling;
+		/** sessions per second that wanted this node, as of at */
+		double rate;
+		long at = System.nanoTime();
+
+		double rate(long now) {
+			return rate * Math.exp(-(now-at)/TAU);
+		}
+
+		void demand(long now) {
+			rate = rate(now) + 1e9/TAU;
+			at = now;
+		}
+
+		/** A second's worth, but not for the odd session now and then */
+		int target(long now) {
+			double r = rate(now);
+			return r<0.05 ? 0 : (int)Math.min(MAX, Math.ceil(r));
+		}
+	}
+
+	/** What's on a spare's pipeline until someone takes it. The server
+	 * shouldn't say anything before it's had an <open/>, so if it does
+	 * something's off and the socket's no good */
+	@Sharable
+	static class Waiting extends ChannelInboundHandlerAdapter {
+		static final Waiting INSTANCE = new Waiting();
+
+		@Override
+		public void channelRead(ChannelHandlerContext ctx, Object msg) {
+			ReferenceCountUtil.release(msg);
+			ctx.close();
+		}
+
+		@Override
+		public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+			ctx.close();
+		}
+	}
+
+	private final List<UpstreamPool.UpstreamNode> nodes;
+	private final Stock[] stocks;
+	private final Bootstrap dial;
+	private final SslContext tls;
+
+	/** @param b a session's bootstrap, whose group and options the spares
+	 * get
+	 * @param tls for upstream TLS, or null */
+	WarmPool(List<UpstreamPool.UpstreamNode> nodes, Bootstrap b, SslContext tls) {
+		this.nodes = nodes;
+		this.tls = tls;
+		stocks = new Stock[nodes.size()];
+		for (int i = 0; i<stocks.length; i++) stocks[i] = new Stock();
+		dial = b.clone().handler(Waiting.INSTANCE);
+		b.config().group().next().scheduleWithFixedDelay(
+			this::refill, 1, 1, TimeUnit.SECONDS);
+	}
+
+	/** A connected socket to the node with nothing on its pipeline, or null
+	 * if there isn't one spare. Either way the node gets topped up */
+	synchronized Channel take(UpstreamPool.UpstreamNode node) {
+		long now = System.nanoTime();
+		int i = nodes.indexOf(node);
+		Stock stock = stocks[i];
+		stock.demand(now);
+		Channel ch = null;
+		for (Spare s; ch==null && (s = stock.idle.poll())!=null; ) {
+			Metrics.upstreamSpares.decrement();
+			if (s.ch.isActive() && now-s.born<IDLE) {
+				try {
+					s.ch.pipeline().remove(Waiting.INSTANCE);
+					ch = s.ch;
+				} catch (NoSuchElementException e) {
+					//closed on its own loop since isActive()
+				}
+			} else {
+				s.ch.close();
+			}
+		}
+		if (ch!=null) {
+			Metrics.warmHits.increment();
+		} else {
+			Metrics.warmMisses.increment();
+		}
+		topUp(i, now);
+		return ch;
+	}
+
+	/** Gets rid of the stale ones and dials more if they're wanted. Runs
+	 * every second on one of the group's loops. A spare nobody wanted for
+	 * the whole of warmIdle means there were too many, so the demand gets
+	 * halved for each, rather than dialling its replacement straight away */
+	private synchronized void refill() {
+		long now = System.nanoTime();
+		for (int i = 0; i<stocks.length; i++) {
+			Stock stock = stocks[i];
+			for (Iterator<Spare> it = stock.idle.iterator(); it.hasNext(); ) {
+				Spare s = it.next();
+				if (s.ch.isActive() && now-s.born<IDLE) continue;
+				it.remove();
+				Metrics.upstreamSpares.decrement();
+				if (s.ch.isActive()) {
+					stock.rate = stock.rate(now)/2;
+					stock.at = now;
+				}
+				s.ch.close();
+			}
+			topUp(i, now);
+		}
+	}
+
+	private void topUp(int i, long now) {
+		UpstreamPool.UpstreamNode node = nodes.get(i);
+		Stock stock = stocks[i];
+		if (!node.up()) return;
+		for (int n = stock.target(now) - stock.idle.size() - stock.dialling; n>0; n--) {
+			stock.dialling++;
+			dial.connect(node.host, node.port).addListener((ChannelFuture c)->{
+				if (c.isSuccess()) {
+					node.connected();
+					if (tls!=null) Tls.connected(tls, c.channel(), node.host, node.port);
+				} else {
+					node.failed();
+				}
+				synchronized (this) {
+					stock.dialling--;
+					if (!c.isSuccess()) return;
+					if (stock.idle.size()<stock.target(System.nanoTime())) {
+						stock.idle.add(new Spare(c.channel()));
+						Metrics.upstreamSpares.increment();
+					} else {
+						c.channel().close();
+					}
+				}
+			});
+		}
+	}
+}
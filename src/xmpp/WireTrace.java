@@ -0,0 +1,151 @@
+package xmpp;
+
+import static io.netty.handler.codec.http.HttpResponseStatus.NOT_FOUND;
+import static io.netty.handler.codec.http.HttpResponseStatus.OK;
+import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
+import static io.netty.util.CharsetUtil.UTF_8;
+
+import java.net.SocketAddress;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.QueryStringDecoder;
+
+/** The last few messages each way through a session, for working out what
+ * happened to it afterwards, which logging every stanza used to be for.
+ * Turned on with xmpp.trace=<n>, n being how many messages each session
+ * keeps (0, off).
+ *
+ * Only each message's first tag goes in, up to HEAD bytes of it, with its
+ * size and when it went, so there's who and what but not what anyone said.
+ * Parts of a message that came in several frames are just a size. It's
+ * all in arrays made up front, so recording is a copy of a few bytes and
+ * nothing else, under the session's lock (which is only ever contended
+ * when there's a shared upstream group).
+ *
+ * A session's trace goes to the log, at warn, when it ends in an error or
+ * the server drops it. /trace on the {@link Admin} port (xmpp.admin.port)
+ * lists the sessions with one, and /trace?session=<id> dumps it. It's not
+ * on the browsers' port at all, as there are JIDs in it. */
+class WireTrace {
+	static final int SIZE = Integer.getInteger("xmpp.trace", 0);
+	static final boolean ENABLED = SIZE>0;
+	/** Most of a first tag that's kept */
+	static final int HEAD = 96;
+
+	static final byte TO_SERVER = '>', TO_CLIENT = '<';
+
+	private static final Map<Long, WireTrace> sessions = new ConcurrentHashMap<>();
+	private static final AtomicLong ids = new AtomicLong();
+
+	final long id;
+	private final String from;
+	private final long[] times = new long[SIZE];
+	private final int[] sizes = new int[SIZE];
+	private final byte[] dirs = new byte[SIZE];
+	private final byte[] heads = new byte[SIZE*HEAD];
+	private final int[] headLengths = new int[SIZE];
+	/** How many there's been, so next%SIZE is where the next one goes */
+	private long next;
+
+	private WireTrace(SocketAddress from) {
+		this.id = ids.incrementAndGet();
+		this.from = String.valueOf(from);
+	}
+
+	/** A trace for a new session, or null if they're off */
+	static WireTrace start(Channel ws) {
+		if (!ENABLED) return null;
+		WireTrace t = new WireTrace(ws.remoteAddress());
+		sessions.put(t.id, t);
+		return t;
+	}
+
+	/** A whole message, or the start of one */
+	synchronized void message(byte dir, ByteBuf msg) {
+		int i = (int)(next++ % SIZE);
+		times[i] = System.currentTimeMillis();
+		dirs[i] = dir;
+		int n = msg.readableBytes();
+		sizes[i] = n;
+		int start = msg.readerIndex(), len = Math.min(n, HEAD);
+		int gt = msg.indexOf(start, start+len, (byte)'>');
+		if (gt>=0) len = gt+1-start;
+		msg.getBytes(start, heads, i*HEAD, len);
+		headLengths[i] = len;
+	}
+
+	/** The rest of a message, which might be anything, so only its size */
+	synchronized void part(byte dir, int size) {
+		int i = (int)(next++ % SIZE);
+		times[i] = System.currentTimeMillis();
+		dirs[i] = dir;
+		sizes[i] = size;
+		headLengths[i] = 0;
+	}
+
+	/** The session's over */
+	void end() {
+		sessions.remove(id);
+	}
+
+	/** Oldest first, a line each */
+	synchronized String dump() {
+		StringBuilder sb = new StringBuilder(64 + (int)Math.min(next, SIZE)*(HEAD+32));
+		sb.append("session ").append(id).append(" from ").append(from).append(", ")
+			.append(next).append(" messages\n");
+		SimpleDateFormat time = new SimpleDateFormat("HH:mm:ss.SSS");
+		for (long m = Math.max(0, next-SIZE); m<next; m++) {
+			int i = (int)(m % SIZE);
+			sb.append(time.format(new Date(times[i]))).append(' ').append((char)dirs[i])
+				.append(' ').append(sizes[i]);
+			if (headLengths[i]>0) {
+				sb.append(' ').append(new String(heads, i*HEAD, headLengths[i], UTF_8));
+				if (headLengths[i]<sizes[i]) sb.append("...");
+			}
+			sb.append('\n');
+		}
+		return sb.toString();
+	}
+
+	/** /trace, on the {@link Admin} port */
+	static FullHttpResponse response(Channel ch, FullHttpRequest req) {
+		if (!ENABLED) return text(NOT_FOUND, "");
+		List<String> session = new QueryStringDecoder(req.uri()).parameters().get("session");
+		if (session==null) {
+			StringBuilder sb = new StringBuilder();
+			for (WireTrace t: sessions.values()) {
+				sb.append(t.id).append(' ').append(t.from).append('\n');
+			}
+			return text(OK, sb.toString());
+		}
+		WireTrace t;
+		try {
+			t = sessions.get(Long.valueOf(session.get(0)));
+		} catch (NumberFormatException e) {
+			t = null;
+		}
+		return t==null ? text(NOT_FOUND, "") : text(OK, t.dump());
+	}
+
+	static FullHttpResponse text(HttpResponseStatus status, String s) {
+		FullHttpResponse res = new DefaultFullHttpResponse(HTTP_1_1, status,
+			Unpooled.copiedBuffer(s, UTF_8));
+		res.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/plain; charset=utf-8");
+		HttpUtil.setContentLength(res, res.content().readableBytes());
+		return res;
+	}
+}
@@ -7,21 +7,75 @@ import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.ByteToMessageDecoder;
 import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.handler.codec.TooLongFrameException;
+import io.netty.util.ByteProcessor;
 import io.netty.util.CharsetUtil;
 
 /** This decoder is the built-in netty one from 4.0.56, but mangled so it does
  * the opening and closing stanzas xml streaming protocols such as
- * <a href="http://xmpp.org/rfcs/rfc6120.html">XMPP</a>, where an initial xml 
- * element opens the stream and only gets closed at the end of the session. */
+ * <a href="http://xmpp.org/rfcs/rfc6120.html">XMPP</a>, where an initial xml
+ * element opens the stream and only gets closed at the end of the session.
+ *
+ * Unlike the netty one it remembers how far it got between calls, so a big
+ * stanza turning up a few bytes at a time gets looked at once rather than
+ * from the start every time another segment arrives. That means all the
+ * peek-ahead/peek-behind has become state carried from one byte to the
+ * next. */
 public class XmlStreamHeadDecoder extends ByteToMessageDecoder {
 
+    /** Default for the biggest stanza we'll buffer before giving up */
+    public static final int DEFAULT_MAX_STANZA_SIZE =
+        Integer.getInteger("xmpp.maxStanzaSize", 4 * 1024 * 1024);
+
+    /** Spare room in the buffer that's worth copying a partial stanza to get
+     * back */
+    private static final int TRIM_SLACK = 1024;
+
+    private static final byte[] CDATA_START = "[CDATA[".getBytes(CharsetUtil.US_ASCII);
+
     public boolean started = false;
     private Consumer<String> infoLogger;
+    private final int maxStanzaSize;
+
+    // Scan state. Everything here survives between decode() calls, and gets
+    // reset once a frame has been pulled out
+
+    /** bytes after the reader index which have already been looked at. It's
+     * relative because the cumulation gets compacted from under us */
+    private int scanned;
+    private boolean openingBracketFound;
+    private boolean atLeastOneXmlElementFound;
+    private boolean inCDATASection;
+    private long openBracketsCount;
+    private int length;
+    private int leadingWhiteSpaceCount;
+    /** last two bytes seen, standing in for the old peek-behind */
+    private byte prev, prev2;
+    /** the last byte was an opening bracket outside a CDATA section */
+    private boolean afterOpenBracket;
+    /** how far through "<!--" or "<![CDATA[" we are, after the "<!" */
+    private int commentMatched, cdataMatched;
+    private boolean inMarkupDeclaration;
+    private boolean garbage;
+    /** the scan stopped on the > that ends a frame */
+    private boolean frameFound;
+
+    private final ByteProcessor scanner = this::process;
+
+    /** what this one last added to {@link Metrics#decoderBuffered} */
+    private int buffered;
 
     public XmlStreamHeadDecoder() {
+        this(DEFAULT_MAX_STANZA_SIZE);
+    }
+
+    /** @param maxStanzaSize the most bytes a single stanza (or the stream
+     * header) can take up before the decoder gives up on it */
+    public XmlStreamHeadDecoder(int maxStanzaSize) {
     	//ByteBufs do my head in. This will probably fail with a decent
     	//number of users
     	setDiscardAfterReads(100);
+    	this.maxStanzaSize = maxStanzaSize;
     }
 
     /** Instantiate with some logging if you want
@@ -35,101 +89,203 @@ public class XmlStreamHeadDecoder extends ByteToMessageDecoder {
     protected void decode(
     	ChannelHandlerContext ctx, ByteBuf in, List<Object> out
     ) throws Exception {
+        try {
+            scan(ctx, in, out);
+        } finally {
+            Metrics.decoderBuffered.add(in.readableBytes() - buffered);
+            buffered = in.readableBytes();
+        }
+    }
+
+    /** Cuts the buffer down to what's in it. ByteToMessageDecoder lets go
+     * of it as soon as it's empty, so this is for a half read stanza on a
+     * connection that's gone quiet, which would otherwise keep however big
+     * a buffer the last read went into. Not while anything sliced out of
+     * it is still about, as that would move the bytes under them */
+    public void trim() {
+        ByteBuf in = internalBuffer();
+        int n = in.readableBytes();
+        if (n==0 || in.refCnt()!=1 || in.capacity()-n<TRIM_SLACK) return;
+        in.discardReadBytes();
+        in.capacity(n);
+    }
+
+    @Override
+    protected void handlerRemoved0(ChannelHandlerContext ctx) {
+        Metrics.decoderBuffered.add(-buffered);
+        buffered = 0;
+    }
+
+    private void scan(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) {
     	if (infoLogger!=null) infoLogger.accept(in.toString(CharsetUtil.UTF_8));
-        boolean openingBracketFound = false;
-        boolean atLeastOneXmlElementFound = false;
-        boolean inCDATASection = false;
-        long openBracketsCount = 0;
-        int length = 0;
-        int leadingWhiteSpaceCount = 0;
-
-        for (int i = in.readerIndex(); i < in.writerIndex(); i++) {
-            final byte readByte = in.getByte(i);
-            if (!openingBracketFound && Character.isWhitespace(readByte)) {
-                // xml has not started and whitespace char found
-                leadingWhiteSpaceCount++;
-            } else if (!openingBracketFound && readByte != '<') {
-                // garbage found before xml start
-              ctx.fireExceptionCaught(new 
-            	  CorruptedFrameException("frame contains content before the xml starts"));
-                in.skipBytes(1); //in.readableBytes());
-                return;
-            } else if (!inCDATASection && readByte == '<') {
-                openingBracketFound = true;
-
-                if (i < in.writerIndex() - 1) {
-                    final byte peekAheadByte = in.getByte(i + 1);
-                    if (peekAheadByte == '/') {
-                        // found </, decrementing openBracketsCount
-                        openBracketsCount--;
-                    } else if (isValidStartCharForXmlElement(peekAheadByte)) {
-                        atLeastOneXmlElementFound = true;
-                        // char after < is a valid xml element start char,
-                        // incrementing openBracketsCount
-                        openBracketsCount++;
-                    } else if (peekAheadByte == '!') {
-                        if (isCommentBlockStart(in, i)) {
-                            // <!-- comment --> start found
-                            openBracketsCount++;
-                        } else if (isCDATABlockStart(in, i)) {
-                            // <![CDATA[ start found
-                            openBracketsCount++;
-                            inCDATASection = true;
-                        }
-                    } else if (peekAheadByte == '?') {
-                        // <?xml ?> start found
-                        openBracketsCount++;
-                    }
-                }
-            } else if (!inCDATASection && readByte == '/') {
-                if (i < in.writerIndex() - 1 && in.getByte(i + 1) == '>') {
+        final int readerIndex = in.readerIndex();
+        final int unscanned = in.readableBytes() - scanned;
+        if (unscanned > 0) {
+            in.forEachByte(readerIndex + scanned, unscanned, scanner);
+        }
+
+        if (garbage) {
+            // garbage found before xml start
+            in.skipBytes(scanned);
+            reset();
+            ctx.fireExceptionCaught(new
+                CorruptedFrameException("frame contains content before the xml starts"));
+            return;
+        }
+
+        if (frameFound) {
+            final ByteBuf frame =
+                    extractFrame(in, readerIndex + leadingWhiteSpaceCount, length - leadingWhiteSpaceCount);
+            in.skipBytes(length);
+            reset();
+            out.add(frame);
+        } else if (!openingBracketFound) {
+            // nothing but whitespace so far (keepalives), no point holding it
+            in.skipBytes(scanned);
+            reset();
+        } else if (scanned - leadingWhiteSpaceCount > maxStanzaSize) {
+            in.skipBytes(in.readableBytes());
+            reset();
+            throw new TooLongFrameException(
+                "stanza bigger than " + maxStanzaSize + " bytes");
+        }
+    }
+
+    private int threshold() {
+        return started ? 0 : 1;
+    }
+
+    /** Either a whole element, or a closing tag with nothing opened before it,
+     * which is how the </stream:stream> at the end shows up. Only checked on
+     * a >, so a lone <?xml ?> doesn't get sent off on its own when the
+     * stream header is split across two reads */
+    private boolean complete() {
+        return atLeastOneXmlElementFound && openBracketsCount <= threshold()
+            || openBracketsCount < 0;
+    }
+
+    /** Looks at one byte. Returns false when there's a frame to pull out, or
+     * garbage, which stops the scan with the byte counted in scanned */
+    private boolean process(final byte readByte) {
+        scanned++;
+        final boolean wasAfterOpenBracket = afterOpenBracket;
+        afterOpenBracket = false;
+        final byte peekBehindByte = prev, peekBehindBehindByte = prev2;
+        prev2 = prev;
+        prev = readByte;
+
+        if (!openingBracketFound && Character.isWhitespace(readByte)) {
+            // xml has not started and whitespace char found
+            leadingWhiteSpaceCount++;
+            return true;
+        }
+        if (!openingBracketFound && readByte != '<') {
+            garbage = true;
+            return false;
+        }
+
+        if (wasAfterOpenBracket) {
+            // what used to be the peek ahead after a <
+            if (readByte == '/') {
+                // found </, decrementing openBracketsCount
+                openBracketsCount--;
+            } else if (isValidStartCharForXmlElement(readByte)) {
+                atLeastOneXmlElementFound = true;
+                // char after < is a valid xml element start char,
+                // incrementing openBracketsCount
+                openBracketsCount++;
+            } else if (readByte == '!') {
+                inMarkupDeclaration = true;
+                commentMatched = cdataMatched = 0;
+                return true;
+            } else if (readByte == '?') {
+                // <?xml ?> start found
+                openBracketsCount++;
+            }
+        } else if (inMarkupDeclaration) {
+            markupDeclaration(readByte);
+        }
+
+        if (!inCDATASection && readByte == '<') {
+            openingBracketFound = true;
+            afterOpenBracket = true;
+        } else if (readByte == '>') {
+            length = scanned;
+
+            if (!inCDATASection) {
+                if (peekBehindByte == '/') {
                     // found />, decrementing openBracketsCount
                     openBracketsCount--;
+                } else if (peekBehindByte == '?') {
+                    // an <?xml ?> tag was closed
+                    openBracketsCount--;
+                } else if (peekBehindByte == '-' && peekBehindBehindByte == '-') {
+                    // a <!-- comment --> was closed
+                    openBracketsCount--;
                 }
-            } else if (readByte == '>') {
-                length = i + 1 - in.readerIndex();
-
-                if (i - 1 > -1) {
-                    final byte peekBehindByte = in.getByte(i - 1);
-
-                    if (!inCDATASection) {
-                        if (peekBehindByte == '?') {
-                            // an <?xml ?> tag was closed
-                            openBracketsCount--;
-                        } else if (peekBehindByte == '-' && i - 2 > -1 && in.getByte(i - 2) == '-') {
-                            // a <!-- comment --> was closed
-                            openBracketsCount--;
-                        }
-                    } else if (peekBehindByte == ']' && i - 2 > -1 && in.getByte(i - 2) == ']') {
-                        // a <![CDATA[...]]> block was closed
-                        openBracketsCount--;
-                        inCDATASection = false;
-                    }
-                }
+            } else if (peekBehindByte == ']' && peekBehindBehindByte == ']') {
+                // a <![CDATA[...]]> block was closed
+                openBracketsCount--;
+                inCDATASection = false;
+            }
 
-                if (atLeastOneXmlElementFound && openBracketsCount<= (started ? 0 : 1)) {
-                    // we have enough to start
-                    break;
-                }
+            if (complete()) {
+                // we have enough to start
+                frameFound = true;
+                return false;
             }
         }
+        return true;
+    }
 
-        final int readerIndex = in.readerIndex();
-
-        if (openBracketsCount <= (started ? 0 : 1) && length > 0) {
-            if (length + readerIndex > in.writerIndex()) {
-                ctx.fireExceptionCaught(new 
-              	  CorruptedFrameException("badness. blew the frame size "+length+" "+readerIndex + " "+ in.writerIndex()));
+    /** Matches the rest of "<!--" or "<![CDATA[" one byte at a time. Anything
+     * else starting with "<!" (a DOCTYPE, say) isn't counted, same as before */
+    private void markupDeclaration(final byte readByte) {
+        if (commentMatched >= 0) {
+            if (readByte == '-' && ++commentMatched == 2) {
+                // <!-- comment --> start found
+                openBracketsCount++;
+                inMarkupDeclaration = false;
+                return;
+            } else if (readByte != '-') {
+                commentMatched = -1;
             }
-            final ByteBuf frame =
-                    extractFrame(in, readerIndex + leadingWhiteSpaceCount, length - leadingWhiteSpaceCount);
-            in.skipBytes(length);
-            out.add(frame);
         }
+        if (cdataMatched >= 0) {
+            if (readByte == CDATA_START[cdataMatched]) {
+                if (++cdataMatched == CDATA_START.length) {
+                    // <![CDATA[ start found
+                    openBracketsCount++;
+                    inCDATASection = true;
+                    inMarkupDeclaration = false;
+                }
+                return;
+            }
+            cdataMatched = -1;
+        }
+        if (commentMatched < 0) inMarkupDeclaration = false;
+    }
+
+    private void reset() {
+        scanned = 0;
+        openingBracketFound = false;
+        atLeastOneXmlElementFound = false;
+        inCDATASection = false;
+        openBracketsCount = 0;
+        length = 0;
+        leadingWhiteSpaceCount = 0;
+        prev = prev2 = 0;
+        afterOpenBracket = false;
+        inMarkupDeclaration = false;
+        garbage = false;
+        frameFound = false;
     }
 
+    /** A slice rather than a copy. While it's alive the cumulation has more
+     * than one reference, and ByteToMessageDecoder knows not to compact it
+     * from under the slice */
     private ByteBuf extractFrame(ByteBuf buffer, int index, int length) {
-        return buffer.copy(index, length);
+        return buffer.retainedSlice(index, length);
     }
 
     /**
@@ -146,21 +302,4 @@ public class XmlStreamHeadDecoder extends ByteToMessageDecoder {
     private boolean isValidStartCharForXmlElement(final byte b) {
         return b >= 'a' && b <= 'z' || b >= 'A' && b <= 'Z' || b == ':' || b == '_';
     }
-
-    private boolean isCommentBlockStart(final ByteBuf in, final int i) {
-        return i < in.writerIndex() - 3
-                && in.getByte(i + 2) == '-'
-                && in.getByte(i + 3) == '-';
-    }
-
-    private boolean isCDATABlockStart(final ByteBuf in, final int i) {
-        return i < in.writerIndex() - 8
-                && in.getByte(i + 2) == '['
-                && in.getByte(i + 3) == 'C'
-                && in.getByte(i + 4) == 'D'
-                && in.getByte(i + 5) == 'A'
-                && in.getByte(i + 6) == 'T'
-                && in.getByte(i + 7) == 'A'
-                && in.getByte(i + 8) == '[';
-    }
-}
\ No newline at end of file
+}